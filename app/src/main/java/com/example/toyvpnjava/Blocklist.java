@@ -0,0 +1,155 @@
+package com.example.toyvpnjava;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only set of blocked domains, matched against query names by suffix: a domain in the
+ * set blocks itself and every name under it. Built offline by {@link BlocklistBuilder} and
+ * memory-mapped, so a list of millions of domains costs no heap and no load time; the kernel
+ * pages the table in as lookups touch it.
+ * <p>
+ * The file holds an open-addressing hash table of 64-bit keys, one per domain, each derived
+ * from a polynomial hash of the lower-cased name in wire format. Polynomial hashes of every
+ * suffix of a name follow from one pass over it, so a lookup hashes each byte of the query
+ * name twice, probes once per label, and allocates nothing. Distinct domains could in theory
+ * share a key; with 64 bits and a few million domains, that is not worth storing names for.
+ * <p>
+ * Lookups only read the mapping and are safe from any thread.
+ */
+final class Blocklist {
+    /** Name of the blocklist in the app's files directory. */
+    static final String FILE_NAME = "blocklist.bin";
+
+    // File layout, big-endian: magic, version, domain count, table size, then the table.
+    static final int MAGIC = 0x54564231;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    // Odd, so that it has an inverse modulo 2^64.
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final long INVERSE = inverse(MULTIPLIER);
+
+    private final ByteBuffer mTable;
+    private final int mMask;
+    private final int mCount;
+
+    private Blocklist(ByteBuffer table, int count) {
+        mTable = table;
+        mMask = (table.capacity() - HEADER_LENGTH) / 8 - 1;
+        mCount = count;
+    }
+
+    /**
+     * Maps the blocklist in {@code file}.
+     *
+     * @throws IOException if it cannot be read or is not a blocklist of this version.
+     */
+    static Blocklist open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a blocklist: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            final ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final int tableSize = table.getInt(12);
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION || tableSize <= 0
+                    || Integer.bitCount(tableSize) != 1
+                    || size != HEADER_LENGTH + 8L * tableSize) {
+                throw new IOException("Not a blocklist of version " + VERSION + ": " + file);
+            }
+            return new Blocklist(table, table.getInt(8));
+        }
+    }
+
+    /** Number of domains in the list. */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Whether the uncompressed name at {@code buf[name...]}, or a domain it is under, is in the
+     * list. The name must have been checked to end within the buffer.
+     */
+    boolean matches(ByteBuffer buf, int name) {
+        // First pass: the hash of the whole name, and MULTIPLIER^length.
+        long hash = 0;
+        long power = 1;
+        int position = name;
+        int length;
+        while ((length = buf.get(position) & 0xFF) != 0) {
+            if ((length & 0xC0) != 0) {
+                return false;
+            }
+            for (int i = 0; i <= length; i++) {
+                hash = hash * MULTIPLIER + toLowerCase(buf.get(position + i));
+                power *= MULTIPLIER;
+            }
+            position += 1 + length;
+        }
+        // Second pass: the hash of each suffix is that of the whole name minus that of the
+        // prefix before it, shifted by the suffix length.
+        long prefix = 0;
+        long inversePower = 1;
+        position = name;
+        while ((length = buf.get(position) & 0xFF) != 0) {
+            if (contains(key(hash - prefix * power * inversePower))) {
+                return true;
+            }
+            for (int i = 0; i <= length; i++) {
+                prefix = prefix * MULTIPLIER + toLowerCase(buf.get(position + i));
+                inversePower *= INVERSE;
+            }
+            position += 1 + length;
+        }
+        return false;
+    }
+
+    private boolean contains(long key) {
+        for (int index = (int) key & mMask; ; index = (index + 1) & mMask) {
+            final long slot = mTable.getLong(HEADER_LENGTH + 8 * index);
+            if (slot == key) {
+                return true;
+            } else if (slot == 0) {
+                return false;
+            }
+        }
+    }
+
+    /** Returns the key of the name in wire format at {@code name[0, length)}, lower case. */
+    static long nameKey(byte[] name, int length) {
+        long hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * MULTIPLIER + (name[i] & 0xFF);
+        }
+        return key(hash);
+    }
+
+    /** Spreads the bits of a name hash for the table; never 0, which marks empty slots. */
+    private static long key(long hash) {
+        // The finalizer of MurmurHash3, a bijection.
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    /** Newton's iteration for the inverse of an odd number modulo 2^64. */
+    private static long inverse(long odd) {
+        long inverse = odd;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - odd * inverse;
+        }
+        return inverse;
+    }
+}
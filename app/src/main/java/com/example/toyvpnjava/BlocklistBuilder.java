@@ -0,0 +1,170 @@
+package com.example.toyvpnjava;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Compiles a list of domains into the file format of {@link Blocklist}. Meant to run offline,
+ * as in
+ * <pre>
+ *   java com.example.toyvpnjava.BlocklistBuilder hosts.txt blocklist.bin
+ * </pre>
+ * after which the result is copied to the app's files directory as {@link Blocklist#FILE_NAME}.
+ * <p>
+ * Lines may hold a bare domain, a hosts file entry such as "0.0.0.0 ads.example.com", or an
+ * adblock style "||ads.example.com^" rule; "#" starts a comment. Entries that are not valid
+ * domain names are skipped.
+ */
+public final class BlocklistBuilder {
+    /** Most slots of the table are empty, so that lookups probe few others. */
+    private static final int MAX_LOAD_PERCENT = 50;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private long[] mKeys = new long[1024];
+    private int mCount;
+    private final byte[] mName = new byte[DnsMessage.MAX_NAME_LENGTH];
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BlocklistBuilder <domain list> <blocklist file>");
+            System.exit(2);
+        }
+        final BlocklistBuilder builder = new BlocklistBuilder();
+        try (Reader in = new FileReader(args[0])) {
+            builder.addAll(in);
+        }
+        final int count = builder.write(new File(args[1]));
+        System.out.println(count + " domains written to " + args[1]);
+    }
+
+    /** Adds every domain in the list read from {@code in}. */
+    void addAll(Reader in) throws IOException {
+        final BufferedReader lines = new BufferedReader(in);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            final int comment = line.indexOf('#');
+            final String[] fields =
+                    (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            // Hosts files put the address first.
+            add(fields.length > 1 ? fields[1] : fields[0]);
+        }
+    }
+
+    /**
+     * Adds {@code domain}, blocking it and every name under it.
+     *
+     * @return {@code false} if it is not a valid domain name.
+     */
+    boolean add(String domain) {
+        if (domain.startsWith("||")) {
+            domain = domain.substring(2);
+        }
+        if (domain.endsWith("^")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        // Hosts files also map local names like these to loopback, which is not a block.
+        if (domain.indexOf('.') < 0 || domain.equals("localhost.localdomain")) {
+            return false;
+        }
+        final int length = encode(domain);
+        if (length < 0) {
+            return false;
+        }
+        if (mCount == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, 2 * mKeys.length);
+        }
+        mKeys[mCount++] = Blocklist.nameKey(mName, length);
+        return true;
+    }
+
+    /**
+     * Writes the blocklist to {@code file}.
+     *
+     * @return the number of distinct domains in it.
+     */
+    int write(File file) throws IOException {
+        Arrays.sort(mKeys, 0, mCount);
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (count == 0 || mKeys[i] != mKeys[count - 1]) {
+                mKeys[count++] = mKeys[i];
+            }
+        }
+        int tableSize = 16;
+        while ((long) tableSize * MAX_LOAD_PERCENT / 100 < count) {
+            tableSize <<= 1;
+        }
+        final long[] table = new long[tableSize];
+        final int mask = tableSize - 1;
+        for (int i = 0; i < count; i++) {
+            int index = (int) mKeys[i] & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = mKeys[i];
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            final FileChannel channel = out.getChannel();
+            final ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buf.putInt(Blocklist.MAGIC).putInt(Blocklist.VERSION).putInt(count)
+                    .putInt(tableSize);
+            for (long key : table) {
+                if (!buf.hasRemaining()) {
+                    writeFully(channel, buf);
+                }
+                buf.putLong(key);
+            }
+            writeFully(channel, buf);
+        }
+        return count;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Writes {@code domain} to mName in wire format, lower case and without the terminating
+     * root label, which lookups leave out too.
+     *
+     * @return its length, or -1 if it is not a valid domain name.
+     */
+    private int encode(String domain) {
+        // Offset of the current label's length byte, filled in once the label ends.
+        int label = 0;
+        int length = 1;
+        for (int i = 0; i <= domain.length(); i++) {
+            final char c = i < domain.length() ? domain.charAt(i) : '.';
+            if (c == '.') {
+                final int labelLength = length - label - 1;
+                if (labelLength == 0 || labelLength > 63) {
+                    return -1;
+                }
+                mName[label] = (byte) labelLength;
+                label = length++;
+            } else if (c <= ' ' || c > '~' || c == '/' || c == '*' || c == '^' || c == '|'
+                    || length >= mName.length - 1) {
+                return -1;
+            } else {
+                mName[length++] = (byte) Character.toLowerCase(c);
+            }
+        }
+        // Without the length byte the last '.' reserved.
+        return length - 1;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed set of direct buffers, each big enough for one packet of the tun MTU, recycled across
+ * tun reads, upstream I/O and reply synthesis so the packet path never allocates.
+ * <p>
+ * Every buffer has {@link #HEADROOM} spare bytes in front of the packet area. An upstream answer
+ * is received right after the headroom, and the IP + UDP header of the reply is then prepended
+ * in place instead of copying the answer behind a header.
+ */
+final class BufferPool {
+    /** Largest IP + UDP header we ever prepend: a 60-byte IPv4 header plus 8 bytes of UDP. */
+    static final int HEADROOM = 68;
+
+    private final int mPacketSize;
+    // Guarded by "this".
+    private final ByteBuffer[] mFree;
+    private int mFreeCount;
+
+    BufferPool(int count, int packetSize) {
+        mPacketSize = packetSize;
+        mFree = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            mFree[i] = ByteBuffer.allocateDirect(HEADROOM + packetSize);
+        }
+        mFreeCount = count;
+    }
+
+    /** Number of buffers, in use or not. */
+    int size() {
+        return mFree.length;
+    }
+
+    /** Size of the largest packet a buffer holds, i.e. the tun MTU. */
+    int packetSize() {
+        return mPacketSize;
+    }
+
+    /**
+     * Returns a cleared buffer, or {@code null} if all of them are in use; callers then leave
+     * the packet where it is and try again once buffers come back.
+     */
+    synchronized ByteBuffer acquire() {
+        if (mFreeCount == 0) {
+            return null;
+        }
+        final ByteBuffer buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        mFree[mFreeCount++] = buffer;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) helpers working on absolute offsets of a {@link ByteBuffer}.
+ * <p>
+ * Sums are kept unfolded in an {@code int} while accumulating; a full 64 KB packet cannot
+ * overflow it, so callers fold once at the end with {@link #finish}.
+ */
+final class Checksum {
+
+    private Checksum() {
+    }
+
+    /** Adds the big-endian 16-bit words of {@code buffer[offset, offset + length)} to {@code sum}. */
+    static int add(ByteBuffer buffer, int offset, int length, int sum) {
+        final int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+        if ((length & 1) != 0) {
+            sum += (buffer.get(offset + length - 1) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Incrementally updates {@code checksum} after one 16-bit word of the covered data changed
+     * from {@code oldWord} to {@code newWord}, per RFC 1624 eqn. 3: HC' = ~(~HC + ~m + m').
+     */
+    static short update(short checksum, int oldWord, int newWord) {
+        return finish((~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF));
+    }
+
+    /** Sum of the TCP/UDP pseudo-header for either address family. */
+    static int pseudoHeader(ByteBuffer buffer, int sourceOffset, int destinationOffset,
+                            int addressLength, int protocol, int transportLength) {
+        int sum = add(buffer, sourceOffset, addressLength, 0);
+        sum = add(buffer, destinationOffset, addressLength, sum);
+        return sum + protocol + transportLength;
+    }
+
+    /** Folds the carries of {@code sum} and returns its one's complement. */
+    static short finish(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.toyvpnjava;
+
+import android.content.SharedPreferences;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tunables of a {@link ToyVpnConnection} that have sensible defaults and are not part of the
+ * connection form. They are read from the same preferences as the form, so they can be
+ * overridden without a rebuild.
+ */
+public class ConnectionOptions {
+    /**
+     * Default number of packets drained from the tun interface, and of replies written back,
+     * per wakeup. Larger batches amortize wakeups under bursty load at the cost of a little
+     * latency for the last packet of a burst.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 16;
+    public static final int MAX_BATCH_SIZE = 256;
+    /**
+     * Default MTU of the tun interface. Every packet buffer is sized after it, so a smaller
+     * value saves memory at the cost of truncating more large DNS answers.
+     */
+    public static final int DEFAULT_MTU = 1500;
+    // IPv6 requires links to carry at least 1280 bytes.
+    public static final int MIN_MTU = 1280;
+    public static final int MAX_MTU = 9000;
+
+    /**
+     * Default number of threads parsing packets read from the tun interface. Zero parses them
+     * on the reader thread itself, which is cheaper on single-core devices.
+     */
+    public static final int DEFAULT_CLASSIFIER_THREADS = 1;
+    public static final int MAX_CLASSIFIER_THREADS = 4;
+
+    /** Default number of DNS answers kept; zero disables the cache. */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    public static final int MAX_CACHE_SIZE = 1 << 16;
+
+    /**
+     * Default number of addresses remembered with the name they were resolved from, for PTR
+     * answers and attributing traffic to domains; zero disables the reverse index.
+     */
+    public static final int DEFAULT_REVERSE_INDEX_SIZE = 4096;
+    public static final int MAX_REVERSE_INDEX_SIZE = 1 << 20;
+
+    /**
+     * Default upstream resolvers: comma separated IP addresses, each optionally followed by a
+     * port, with IPv6 addresses in brackets then. Host names are not accepted, since resolving
+     * them would take the very DNS being set up. A "tls://" prefix selects DNS over TLS, on
+     * port 853 unless given, and a "#name" suffix the name its certificate must be valid for,
+     * as in "tls://1.1.1.1#cloudflare-dns.com"; without one, the address must be.
+     */
+    public static final String DEFAULT_UPSTREAMS = "1.1.1.1, 1.0.0.1";
+    public static final int MAX_UPSTREAMS = 8;
+
+    /**
+     * Default share of queries, in percent, that may also go to a second upstream when the
+     * first is slow to answer; zero disables hedging.
+     */
+    public static final int DEFAULT_HEDGE_PERCENT = 0;
+    public static final int MAX_HEDGE_PERCENT = 50;
+
+    /**
+     * Default number of TCP and UDP flows relayed at once in full-tunnel mode; apps get new
+     * connections refused beyond that.
+     */
+    public static final int DEFAULT_MAX_FLOWS = 4096;
+    public static final int MAX_MAX_FLOWS = 1 << 16;
+
+    /**
+     * Default time, in milliseconds, small packets may wait to share a tunnel datagram with the
+     * ones that follow them, with servers that take several per datagram; zero sends each on
+     * its own.
+     */
+    public static final int DEFAULT_AGGREGATION_DELAY_MS = 1;
+    public static final int MAX_AGGREGATION_DELAY_MS = 50;
+    /**
+     * Default number of sockets the tunnel spreads flows over, each a session of its own with a
+     * thread of its own, so that throughput scales with cores as far as the server keeps up.
+     */
+    public static final int DEFAULT_TUNNEL_SOCKETS = 1;
+    public static final int MAX_TUNNEL_SOCKETS = 8;
+    /** Default MTU of the path to the tunnel server, which aggregated datagrams stay within. */
+    public static final int DEFAULT_PATH_MTU = 1500;
+    private static final String TLS_SCHEME = "tls://";
+
+    public int batchSize = DEFAULT_BATCH_SIZE;
+    public int mtu = DEFAULT_MTU;
+    public int classifierThreads = DEFAULT_CLASSIFIER_THREADS;
+    /**
+     * Whether replies are written to the tun interface by a thread of their own, rather than by
+     * the thread receiving them from upstream.
+     */
+    public boolean writerThread = true;
+    public int cacheSize = DEFAULT_CACHE_SIZE;
+    public int reverseIndexSize = DEFAULT_REVERSE_INDEX_SIZE;
+    public String upstreams = DEFAULT_UPSTREAMS;
+    public int hedgePercent = DEFAULT_HEDGE_PERCENT;
+    /**
+     * Whether names on the {@link Blocklist} are answered with NXDOMAIN, rather than with the
+     * unspecified address 0.0.0.0 or ::, which some apps retry less eagerly.
+     */
+    public boolean blockNxdomain = true;
+    /**
+     * Whether all traffic is routed through the tun interface and relayed by a
+     * {@link FlowForwarder}, rather than DNS only.
+     */
+    public boolean fullTunnel;
+    public int maxFlows = DEFAULT_MAX_FLOWS;
+    /**
+     * Whether traffic other than DNS goes over a tunnel to the ToyVpn server of the connection
+     * form, which pushes the routes, rather than staying local. Takes precedence over
+     * {@link #fullTunnel}.
+     */
+    public boolean tunnel;
+    /**
+     * Whether the tunnel is encrypted and authenticated with keys derived from the shared
+     * secret, see {@link TunnelCipher}; servers that only speak the original, plaintext protocol
+     * need it off.
+     */
+    public boolean encryptTunnel = true;
+    /**
+     * Tunnel sockets to spread flows over. The interface takes the parameters of the first
+     * handshake, so more than one needs a server that routes every session's address to the
+     * same client; the original server gives each a tun interface of its own.
+     */
+    public int tunnelSockets = DEFAULT_TUNNEL_SOCKETS;
+    public int aggregationDelayMs = DEFAULT_AGGREGATION_DELAY_MS;
+    public int pathMtu = DEFAULT_PATH_MTU;
+
+    public static ConnectionOptions fromPreferences(SharedPreferences prefs) {
+        final ConnectionOptions options = new ConnectionOptions();
+        options.batchSize = clamp(
+                prefs.getInt(ToyVpnClient.Prefs.BATCH_SIZE, DEFAULT_BATCH_SIZE), 1, MAX_BATCH_SIZE);
+        options.mtu = clamp(prefs.getInt(ToyVpnClient.Prefs.MTU, DEFAULT_MTU), MIN_MTU, MAX_MTU);
+        options.classifierThreads = clamp(prefs.getInt(ToyVpnClient.Prefs.CLASSIFIER_THREADS,
+                DEFAULT_CLASSIFIER_THREADS), 0, MAX_CLASSIFIER_THREADS);
+        options.writerThread = prefs.getBoolean(ToyVpnClient.Prefs.WRITER_THREAD, true);
+        options.cacheSize = clamp(prefs.getInt(ToyVpnClient.Prefs.CACHE_SIZE, DEFAULT_CACHE_SIZE),
+                0, MAX_CACHE_SIZE);
+        options.reverseIndexSize = clamp(prefs.getInt(ToyVpnClient.Prefs.REVERSE_INDEX_SIZE,
+                DEFAULT_REVERSE_INDEX_SIZE), 0, MAX_REVERSE_INDEX_SIZE);
+        options.upstreams = prefs.getString(ToyVpnClient.Prefs.UPSTREAMS, DEFAULT_UPSTREAMS);
+        options.hedgePercent = clamp(prefs.getInt(ToyVpnClient.Prefs.HEDGE_PERCENT,
+                DEFAULT_HEDGE_PERCENT), 0, MAX_HEDGE_PERCENT);
+        options.blockNxdomain = prefs.getBoolean(ToyVpnClient.Prefs.BLOCK_NXDOMAIN, true);
+        options.fullTunnel = prefs.getBoolean(ToyVpnClient.Prefs.FULL_TUNNEL, false);
+        options.maxFlows = clamp(prefs.getInt(ToyVpnClient.Prefs.MAX_FLOWS, DEFAULT_MAX_FLOWS),
+                1, MAX_MAX_FLOWS);
+        options.tunnel = prefs.getBoolean(ToyVpnClient.Prefs.TUNNEL, false);
+        options.encryptTunnel = prefs.getBoolean(ToyVpnClient.Prefs.ENCRYPT_TUNNEL, true);
+        options.tunnelSockets = clamp(prefs.getInt(ToyVpnClient.Prefs.TUNNEL_SOCKETS,
+                DEFAULT_TUNNEL_SOCKETS), 1, MAX_TUNNEL_SOCKETS);
+        options.aggregationDelayMs = clamp(prefs.getInt(ToyVpnClient.Prefs.AGGREGATION_DELAY,
+                DEFAULT_AGGREGATION_DELAY_MS), 0, MAX_AGGREGATION_DELAY_MS);
+        options.pathMtu = clamp(prefs.getInt(ToyVpnClient.Prefs.PATH_MTU, DEFAULT_PATH_MTU),
+                MIN_MTU, MAX_MTU);
+        return options;
+    }
+
+    /**
+     * Parses {@link #upstreams}, skipping entries that are not valid, and falls back to
+     * {@link #DEFAULT_UPSTREAMS} if none is. At most {@link #MAX_UPSTREAMS} are returned.
+     */
+    UpstreamServer[] upstreamServers() {
+        List<UpstreamServer> servers = parseUpstreams(upstreams);
+        if (servers.isEmpty()) {
+            servers = parseUpstreams(DEFAULT_UPSTREAMS);
+        }
+        return servers.toArray(new UpstreamServer[0]);
+    }
+
+    private static List<UpstreamServer> parseUpstreams(String list) {
+        final List<UpstreamServer> servers = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            final UpstreamServer server = parseUpstream(entry.trim());
+            if (server != null && servers.size() < MAX_UPSTREAMS) {
+                servers.add(server);
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Parses "a.b.c.d", "a.b.c.d:port", "v6::addr" or "[v6::addr]:port", optionally in
+     * "tls://...#name" form; null if invalid.
+     */
+    private static UpstreamServer parseUpstream(String entry) {
+        int port = UpstreamServer.DNS_PORT;
+        String tlsName = null;
+        final boolean tls = entry.startsWith(TLS_SCHEME);
+        if (tls) {
+            entry = entry.substring(TLS_SCHEME.length());
+            port = UpstreamServer.DNS_OVER_TLS_PORT;
+            final int hash = entry.indexOf('#');
+            if (hash >= 0) {
+                tlsName = entry.substring(hash + 1).trim();
+                entry = entry.substring(0, hash);
+                if (tlsName.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+        String host = entry;
+        final int colon = entry.lastIndexOf(':');
+        if (entry.startsWith("[")) {
+            final int bracket = entry.indexOf(']');
+            if (bracket < 0) {
+                return null;
+            }
+            host = entry.substring(1, bracket);
+            if (bracket + 1 < entry.length()) {
+                if (entry.charAt(bracket + 1) != ':') {
+                    return null;
+                }
+                port = parsePort(entry.substring(bracket + 2));
+            }
+        } else if (colon >= 0 && entry.indexOf(':') == colon) {
+            host = entry.substring(0, colon);
+            port = parsePort(entry.substring(colon + 1));
+        }
+        if (port < 0 || host.isEmpty() || !Util.isNumericHost(host)) {
+            return null;
+        }
+        try {
+            // Numeric, so no lookup happens.
+            final InetSocketAddress address =
+                    new InetSocketAddress(InetAddress.getByName(host), port);
+            return new UpstreamServer(address, tls && tlsName == null ? host : tlsName);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static int parsePort(String port) {
+        try {
+            final int value = Integer.parseInt(port);
+            return value > 0 && value <= 0xFFFF ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.toyvpnjava;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Packs tun packets back to back into one tunnel datagram, for servers that take them so (see
+ * {@link TunnelProtocol}). Small packets, such as TCP acknowledgments and DNS queries, then
+ * share the per-datagram cost of a system call and of headers on the path.
+ * <p>
+ * With a {@link TunnelCipher}, datagrams are sealed in place as they go out, with room kept for
+ * the counter in front and the tag behind, in an array the cipher works on directly; every
+ * datagram goes through an aggregator then, even if it only ever carries one packet.
+ * <p>
+ * Pure Java like {@link TunnelProtocol}, so that the stand-in server under {@code server/}
+ * aggregates the same way. Not thread-safe.
+ */
+final class DatagramAggregator {
+    // Smallest packet that could still be added; below that much room, the datagram is full.
+    private static final int MIN_PACKET_LENGTH = 20;
+
+    private final ByteBuffer mDatagram;
+    private final TunnelCipher mCipher;
+    // Where packets start, after room for the counter of a sealed datagram.
+    private final int mStart;
+    // Where packets of a datagram of several must end, before room for the tag.
+    private final int mEnd;
+    private int mPackets;
+
+    /** @param maxDatagram the size of the largest datagram to send. */
+    DatagramAggregator(int maxDatagram) {
+        this(maxDatagram, 0, null);
+    }
+
+    /**
+     * @param maxDatagram the size of the largest datagram of several packets to send, or 0 to
+     *         send one packet per datagram.
+     * @param maxPacket the size of the largest packet to send, alone if it does not fit in
+     *         {@code maxDatagram}.
+     * @param cipher seals every datagram, or {@code null} to send them in the clear.
+     */
+    DatagramAggregator(int maxDatagram, int maxPacket, TunnelCipher cipher) {
+        final int overhead = cipher != null ? TunnelCipher.OVERHEAD : 0;
+        final int capacity = Math.max(maxDatagram, maxPacket + overhead);
+        mDatagram = cipher != null
+                ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(capacity);
+        mCipher = cipher;
+        mStart = cipher != null ? TunnelCipher.HEADER_LENGTH : 0;
+        mEnd = maxDatagram - (cipher != null ? TunnelCipher.TAG_LENGTH : 0);
+        mDatagram.position(mStart);
+    }
+
+    /** Size of the largest packet sent, alone in its datagram. */
+    int capacity() {
+        return mDatagram.capacity() - (mCipher != null ? TunnelCipher.OVERHEAD : 0);
+    }
+
+    boolean isEmpty() {
+        return mPackets == 0;
+    }
+
+    /** Whether no further packet fits. */
+    boolean isFull() {
+        return mEnd - mDatagram.position() < MIN_PACKET_LENGTH;
+    }
+
+    /**
+     * Appends the packet between the position and limit of {@code packet}, if it fits, and
+     * leaves its position as it was.
+     *
+     * @return {@code false} if it does not fit; the datagram should be flushed then.
+     */
+    boolean add(ByteBuffer packet) {
+        // A packet too large to share a datagram still goes in an empty one.
+        final int end = mPackets == 0 ? mStart + capacity() : mEnd;
+        if (mDatagram.position() + packet.remaining() > end) {
+            return false;
+        }
+        final int position = packet.position();
+        mDatagram.put(packet);
+        packet.position(position);
+        mPackets++;
+        return true;
+    }
+
+    /**
+     * Sends the packets added so far as one datagram over {@code channel}, which must be
+     * connected, and starts a new one. The datagram is dropped, as the network could have, if
+     * the socket has no room for it.
+     *
+     * @return the number of packets sent.
+     */
+    int flush(DatagramChannel channel) throws IOException {
+        final int packets = mPackets;
+        if (packets == 0) {
+            return 0;
+        }
+        mPackets = 0;
+        int length = mDatagram.position();
+        if (mCipher != null) {
+            length = mCipher.seal(mDatagram.array(), 0, length - mStart);
+        }
+        mDatagram.limit(length).position(0);
+        try {
+            channel.write(mDatagram);
+        } finally {
+            mDatagram.clear().position(mStart);
+        }
+        return packets;
+    }
+}
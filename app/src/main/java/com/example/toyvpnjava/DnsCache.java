@@ -0,0 +1,656 @@
+package com.example.toyvpnjava;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Bounded cache of DNS responses in wire format, keyed by the question they answer.
+ * <p>
+ * The key is the question's name in lower case plus its type and class, exactly as they appear
+ * on the wire, so lookups hash and compare straight from the query's buffer. A hit copies the
+ * stored response over the query with the client's transaction ID and with every TTL lowered by
+ * the time spent in the cache; no record is parsed. The EDNS OPT record is left out of what is
+ * stored, since it describes the upstream's exchange with one client, and a hit gets one of its
+ * own if the query has one. Answers to queries asking for DNSSEC records with the DO bit are
+ * neither stored nor answered from here. Entries expire with their smallest TTL, and
+ * negative answers (NXDOMAIN and NODATA) with the SOA minimum as RFC 2308 asks. When the cache
+ * is full, the CLOCK algorithm picks an entry that has not been hit recently to make room.
+ * <p>
+ * Names that keep being asked for are refreshed before they expire: a hit on such an entry
+ * close to its expiry queues a prefetch, which the dispatcher sends upstream with
+ * {@link #nextPrefetch}. Expired entries are also kept around for a while, so that
+ * {@link #answerStale} can still answer when upstream does not (RFC 8767).
+ * <p>
+ * The entries can be saved to a snapshot file and loaded back by a later connection, even in
+ * another process. Expiry times are wall clock times, so the TTLs of loaded entries count
+ * down the time in between too.
+ * <p>
+ * Lookups come from the classifier threads and insertions from the dispatcher, so all methods
+ * touching the entries are synchronized.
+ */
+final class DnsCache {
+    /** Upper bound on how long anything is cached, whatever the TTL says. */
+    private static final long MAX_TTL_S = TimeUnit.DAYS.toSeconds(1);
+    /** Upper bound for negative answers, suggested by RFC 2308. */
+    private static final long MAX_NEGATIVE_TTL_S = TimeUnit.HOURS.toSeconds(3);
+    /** How long expired entries may still be served stale; RFC 8767 suggests 1 to 3 days. */
+    private static final long MAX_STALE_MS = TimeUnit.DAYS.toMillis(1);
+    /** TTL of stale answers, as recommended by RFC 8767. */
+    private static final int STALE_TTL_S = 30;
+    /** Hits an entry needs before it is worth refreshing ahead of time. */
+    private static final int PREFETCH_MIN_HITS = 3;
+    /** Prefetches are queued once less than 1/PREFETCH_FRACTION of the TTL is left. */
+    private static final int PREFETCH_FRACTION = 10;
+    private static final int MAX_PREFETCHES = 64;
+    /**
+     * Time after queuing a prefetch before another may be queued for the same entry, should
+     * the first get no answer worth storing: it may be dropped, time out or fail upstream. A
+     * query is given up on by then, and one still in flight is not sent twice anyway.
+     */
+    private static final long PREFETCH_RETRY_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /** Name of the snapshot in the app's files directory. */
+    static final String SNAPSHOT_FILE_NAME = "dns-cache.bin";
+    // Snapshot layout, big-endian: magic, version, entry count, CRC-32 of the rest, then per
+    // entry its store and expiry times, the message, and the offsets and values of its TTLs.
+    private static final int SNAPSHOT_MAGIC = 0x54564443;
+    // Version 2 stores messages without their OPT record.
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_HEADER_LENGTH = 16;
+
+    private static final class Entry {
+        // Lower-cased question name, type and class.
+        byte[] key;
+        int hash;
+        // The response, from its DNS header on.
+        byte[] message;
+        // Offsets of the TTL fields within message, and their values when stored.
+        int[] ttlOffsets;
+        int[] ttls;
+        long storedAt;
+        long expiresAt;
+        // Set on every hit, cleared as the clock hand passes.
+        boolean referenced;
+        // Hits since stored, and until when a refresh queued since may still be under way.
+        int hits;
+        long prefetchingUntil;
+    }
+
+    // What a query asks for with EDNS, as far as answering it from here goes.
+    private static final int EDNS_NONE = 0;
+    private static final int EDNS_PLAIN = 1;
+    private static final int EDNS_DNSSEC = 2;
+
+    private final Entry[] mEntries;
+    // Hash table over mEntries: bucket heads and chain links, -1 terminated.
+    private final int[] mBuckets;
+    private final int[] mNext;
+    private int mCount;
+    private int mHand;
+    // Entries to refresh; they may have been evicted since, which does not matter.
+    private final ArrayDeque<Entry> mPrefetches = new ArrayDeque<>();
+    // Scratch space for put() and nextPrefetch().
+    private final DnsMessage mMessage = new DnsMessage();
+    private final DnsWriter mWriter = new DnsWriter();
+    private int[] mTtlOffsets = new int[16];
+    private int[] mTtls = new int[16];
+    // Bumped by every change worth a new snapshot, and its value at the last one.
+    private int mChanges;
+    private int mSavedChanges = -1;
+
+    DnsCache(int capacity) {
+        mEntries = new Entry[capacity];
+        mNext = new int[capacity];
+        mBuckets = new int[Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) * 2];
+        Arrays.fill(mBuckets, -1);
+    }
+
+    /**
+     * Answers the DNS query at {@code buf[offset, offset + length)} from the cache, replacing it
+     * with the response in place. The query is left untouched on a miss.
+     *
+     * @param room the number of bytes available for the response at {@code offset}.
+     * @param now the current time in milliseconds.
+     * @return the length of the response, or -1 on a miss.
+     */
+    synchronized int answer(ByteBuffer buf, int offset, int length, int room, long now) {
+        final int edns = edns(buf, offset, length);
+        final int index = edns == EDNS_DNSSEC ? -1 : find(buf, offset, length);
+        if (index < 0) {
+            return -1;
+        }
+        final Entry entry = mEntries[index];
+        if (entry.expiresAt <= now) {
+            if (entry.expiresAt + MAX_STALE_MS <= now) {
+                remove(index);
+            }
+            return -1;
+        }
+        if (entry.message.length + optLength(edns) > room) {
+            return -1;
+        }
+        entry.referenced = true;
+        if (++entry.hits >= PREFETCH_MIN_HITS && entry.prefetchingUntil <= now
+                && (entry.expiresAt - now) * PREFETCH_FRACTION < entry.expiresAt - entry.storedAt
+                && mPrefetches.size() < MAX_PREFETCHES) {
+            entry.prefetchingUntil = now + PREFETCH_RETRY_MS;
+            mPrefetches.add(entry);
+        }
+        return write(entry, buf, offset, (int) ((now - entry.storedAt) / 1000), -1, edns);
+    }
+
+    /**
+     * Like {@link #answer}, but for when upstream failed to answer in time: expired entries are
+     * used too, for a while, with a short TTL.
+     */
+    synchronized int answerStale(ByteBuffer buf, int offset, int length, int room, long now) {
+        final int edns = edns(buf, offset, length);
+        final int index = edns == EDNS_DNSSEC ? -1 : find(buf, offset, length);
+        if (index < 0) {
+            return -1;
+        }
+        final Entry entry = mEntries[index];
+        if (entry.expiresAt + MAX_STALE_MS <= now
+                || entry.message.length + optLength(edns) > room) {
+            return -1;
+        }
+        if (entry.expiresAt > now) {
+            return write(entry, buf, offset, (int) ((now - entry.storedAt) / 1000), -1, edns);
+        }
+        return write(entry, buf, offset, 0, STALE_TTL_S, edns);
+    }
+
+    /**
+     * Turns the UDP packet carrying a DNS query viewed by {@code request} into its reply, using
+     * {@link #answer} or, if {@code stale}, {@link #answerStale}. The reply has to fit in
+     * {@code mtu} bytes.
+     *
+     * @return the length of the reply, which starts at {@code request.offset()}, or -1 on a
+     *         miss, in which case the packet is left untouched.
+     */
+    int reply(IpPacket request, int mtu, boolean stale, long now) {
+        // writeUdpReply() cannot handle IPv6 extension headers.
+        if (request.isIpv6() && request.headerLength() != IpPacket.IPV6_HEADER_LENGTH) {
+            return -1;
+        }
+        final ByteBuffer buf = request.buffer();
+        final int dns = request.payloadOffset();
+        final int room = Math.min(buf.capacity(), request.offset() + mtu) - dns;
+        // The answer runs past the query, where the buffer's limit usually is.
+        final int limit = buf.limit();
+        buf.limit(buf.capacity());
+        final int length = stale
+                ? answerStale(buf, dns, request.payloadLength(), room, now)
+                : answer(buf, dns, request.payloadLength(), room, now);
+        if (length < 0) {
+            buf.limit(limit);
+            return -1;
+        }
+        return PacketWriter.writeUdpReply(request, length);
+    }
+
+    /** Whether {@link #nextPrefetch} has anything to return. */
+    synchronized boolean hasPrefetches() {
+        return !mPrefetches.isEmpty();
+    }
+
+    /**
+     * Writes a query refreshing the next entry due for it to {@code buf} at {@code offset}.
+     *
+     * @return the length of the query, or -1 if there is nothing to prefetch.
+     */
+    synchronized int nextPrefetch(ByteBuffer buf, int offset) {
+        final Entry entry = mPrefetches.poll();
+        if (entry == null) {
+            return -1;
+        }
+        // A plain recursive query for the same question; the ID is set by the caller.
+        return mWriter.start(buf, offset, buf.capacity(), 0, DnsMessage.FLAG_RD)
+                .question(entry.key)
+                .finish();
+    }
+
+    /**
+     * Returns the index of the entry answering the query at {@code buf[offset, offset + length)},
+     * or -1.
+     */
+    private int find(ByteBuffer buf, int offset, int length) {
+        final int end = offset + length;
+        final int question = offset + DnsMessage.HEADER_LENGTH;
+        final int questionEnd = DnsMessage.skipQuestion(buf, offset, end);
+        if (questionEnd < 0 || DnsMessage.questionCount(buf, offset) != 1) {
+            return -1;
+        }
+        final int flags = DnsMessage.flags(buf, offset);
+        if ((flags & DnsMessage.FLAG_QR) != 0 || DnsMessage.opcode(flags) != 0) {
+            return -1;
+        }
+        return findQuestion(buf, question, questionEnd - question);
+    }
+
+    /** Returns one of the {@code EDNS_} constants for the query at {@code buf[offset...]}. */
+    private int edns(ByteBuffer buf, int offset, int length) {
+        if (!mMessage.wrap(buf, offset, length) || !mMessage.findOpt()) {
+            return EDNS_NONE;
+        }
+        // The DO bit leads the flags, in the low half of the OPT record's TTL field.
+        return (buf.getShort(mMessage.recordTtlOffset() + 2) & DnsMessage.EDNS_FLAG_DO) != 0
+                ? EDNS_DNSSEC : EDNS_PLAIN;
+    }
+
+    private static int optLength(int edns) {
+        return edns == EDNS_PLAIN ? DnsMessage.OPT_RECORD_LENGTH : 0;
+    }
+
+    /**
+     * Copies the response of {@code entry} over the query at {@code offset}, with TTLs lowered
+     * by {@code age} seconds or, if {@code ttl} is not negative, all set to it, and an OPT
+     * record of its own if {@code edns} says the query had one.
+     *
+     * @return the length of the response.
+     */
+    private static int write(Entry entry, ByteBuffer buf, int offset, int age, int ttl,
+            int edns) {
+        final byte[] message = entry.message;
+        // The question is the same but for letter case, which the client may check (DNS 0x20),
+        // so keep the client's copy of it.
+        final int id = buf.getShort(offset);
+        for (int i = 0; i < DnsMessage.HEADER_LENGTH; i++) {
+            buf.put(offset + i, message[i]);
+        }
+        buf.putShort(offset, (short) id);
+        final int rest = DnsMessage.HEADER_LENGTH + entry.key.length;
+        for (int i = rest; i < message.length; i++) {
+            buf.put(offset + i, message[i]);
+        }
+        for (int i = 0; i < entry.ttlOffsets.length; i++) {
+            buf.putInt(offset + entry.ttlOffsets[i], ttl >= 0 ? ttl : entry.ttls[i] - age);
+        }
+        if (edns == EDNS_PLAIN) {
+            // Room for it was checked by the caller.
+            return DnsMessage.appendOpt(buf, offset, message.length, buf.capacity(),
+                    DnsForwarder.EDNS_PAYLOAD_SIZE);
+        }
+        return message.length;
+    }
+
+    /**
+     * Stores the DNS response at {@code buf[offset, offset + length)}, without its OPT record,
+     * unless it is truncated, an error other than NXDOMAIN, an answer with DNSSEC records asked
+     * for, or has nothing to tell how long it stays valid. The buffer is left as it was.
+     */
+    synchronized void put(ByteBuffer buf, int offset, int length, long now) {
+        final DnsMessage message = mMessage;
+        if (!message.wrap(buf, offset, length)) {
+            return;
+        }
+        final int flags = message.flags();
+        final int rcode = DnsMessage.rcode(flags);
+        if ((flags & DnsMessage.FLAG_QR) == 0 || (flags & DnsMessage.FLAG_TC) != 0
+                || DnsMessage.opcode(flags) != 0
+                || (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN)) {
+            return;
+        }
+
+        // Find every TTL, the smallest one and, for negative answers, the SOA.
+        int ttlCount = 0;
+        boolean answered = false;
+        long minTtl = MAX_TTL_S;
+        long soaTtl = -1;
+        int optStart = -1;
+        int optLength = 0;
+        while (message.nextRecord()) {
+            final int type = message.recordType();
+            final int ttl = message.recordTtl();
+            if (type == DnsMessage.TYPE_OPT && message.section() == DnsMessage.SECTION_ADDITIONAL) {
+                // Upstreams only set DO in answers to queries that did (RFC 3225).
+                if ((buf.getShort(message.recordTtlOffset() + 2)
+                        & DnsMessage.EDNS_FLAG_DO) != 0) {
+                    return;
+                }
+                optStart = message.recordNameOffset() - offset;
+                optLength = message.recordDataOffset() + message.recordDataLength()
+                        - message.recordNameOffset();
+            } else if (type != DnsMessage.TYPE_OPT) {
+                // The TTL field of an EDNS OPT record holds flags.
+                if (ttlCount == mTtlOffsets.length) {
+                    mTtlOffsets = Arrays.copyOf(mTtlOffsets, 2 * ttlCount);
+                    mTtls = Arrays.copyOf(mTtls, 2 * ttlCount);
+                }
+                // Offsets past the OPT record move up once it is left out.
+                final int ttlOffset = message.recordTtlOffset() - offset;
+                mTtlOffsets[ttlCount] = optStart >= 0 ? ttlOffset - optLength : ttlOffset;
+                mTtls[ttlCount++] = ttl;
+                minTtl = Math.min(minTtl, ttl);
+            }
+            final int section = message.section();
+            answered |= section == DnsMessage.SECTION_ANSWER;
+            if (type == DnsMessage.TYPE_SOA && section == DnsMessage.SECTION_AUTHORITY
+                    && message.recordDataLength() >= 4) {
+                final int minimum = message.recordDataOffset() + message.recordDataLength() - 4;
+                soaTtl = Math.min(ttl, Math.max(0, buf.getInt(minimum)));
+            }
+        }
+        if (message.isMalformed()) {
+            return;
+        }
+        final long ttl;
+        if (rcode == DnsMessage.RCODE_NOERROR && answered) {
+            ttl = minTtl;
+        } else if (soaTtl >= 0) {
+            ttl = Math.min(Math.min(minTtl, soaTtl), MAX_NEGATIVE_TTL_S);
+        } else {
+            // Negative answers without an SOA must not be cached.
+            return;
+        }
+        if (ttl <= 0) {
+            return;
+        }
+
+        store(buf, offset, length, message.questionEnd() - message.questionNameOffset(),
+                optStart, optLength, ttlCount, now, now + TimeUnit.SECONDS.toMillis(ttl));
+    }
+
+    /**
+     * Stores the message at {@code buf[offset, offset + length)}, whose question is
+     * {@code keyLength} bytes long, with the first {@code ttlCount} TTLs in mTtlOffsets and
+     * mTtls, leaving out the OPT record of {@code optLength} bytes at {@code offset + optStart}
+     * if {@code optStart} is not negative.
+     */
+    private void store(ByteBuffer buf, int offset, int length, int keyLength, int optStart,
+            int optLength, int ttlCount, long storedAt, long expiresAt) {
+        final int question = offset + DnsMessage.HEADER_LENGTH;
+        int index = findQuestion(buf, question, keyLength);
+        if (index < 0) {
+            index = allocate(storedAt);
+            final Entry entry = new Entry();
+            entry.key = new byte[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                entry.key[i] = buf.get(question + i);
+            }
+            lowerCaseName(entry.key, keyLength - 4);
+            entry.hash = hash(buf, question, keyLength);
+            mEntries[index] = entry;
+            link(index);
+        }
+        final Entry entry = mEntries[index];
+        if (optStart < 0) {
+            optStart = length;
+            optLength = 0;
+        }
+        entry.message = new byte[length - optLength];
+        for (int i = 0; i < optStart; i++) {
+            entry.message[i] = buf.get(offset + i);
+        }
+        for (int i = optStart + optLength; i < length; i++) {
+            entry.message[i - optLength] = buf.get(offset + i);
+        }
+        if (optLength > 0) {
+            final int additional = DnsMessage.additionalCount(buf, offset) - 1;
+            entry.message[10] = (byte) (additional >>> 8);
+            entry.message[11] = (byte) additional;
+        }
+        entry.ttlOffsets = Arrays.copyOf(mTtlOffsets, ttlCount);
+        entry.ttls = Arrays.copyOf(mTtls, ttlCount);
+        entry.storedAt = storedAt;
+        entry.expiresAt = expiresAt;
+        entry.referenced = false;
+        entry.hits = 0;
+        entry.prefetchingUntil = 0;
+        mChanges++;
+    }
+
+    /**
+     * Writes the entries still good for serving stale to {@code file}, replacing it as a
+     * whole, unless nothing changed since the last snapshot. Only copying the entries holds
+     * up lookups, not the writing.
+     *
+     * @return the number of entries written, or -1 if nothing needed writing.
+     */
+    int save(File file, long now) throws IOException {
+        final ByteBuffer snapshot = snapshot(now);
+        if (snapshot == null) {
+            return -1;
+        }
+        // Written aside and renamed over the old one, so that a crash leaves either intact.
+        final File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            final FileChannel channel = out.getChannel();
+            while (snapshot.hasRemaining()) {
+                channel.write(snapshot);
+            }
+            channel.force(false);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        return snapshot.getInt(8);
+    }
+
+    /** Returns the entries in snapshot form, or null if unchanged since the last call. */
+    private synchronized ByteBuffer snapshot(long now) {
+        if (mChanges == mSavedChanges) {
+            return null;
+        }
+        mSavedChanges = mChanges;
+        int size = SNAPSHOT_HEADER_LENGTH;
+        for (int i = 0; i < mCount; i++) {
+            final Entry entry = mEntries[i];
+            size += 8 + 8 + 2 + entry.message.length + 2 + 6 * entry.ttls.length;
+        }
+        final ByteBuffer snapshot = ByteBuffer.allocate(size);
+        snapshot.position(SNAPSHOT_HEADER_LENGTH);
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            final Entry entry = mEntries[i];
+            if (entry.expiresAt + MAX_STALE_MS <= now) {
+                continue;
+            }
+            snapshot.putLong(entry.storedAt).putLong(entry.expiresAt)
+                    .putShort((short) entry.message.length).put(entry.message)
+                    .putShort((short) entry.ttls.length);
+            for (int j = 0; j < entry.ttls.length; j++) {
+                snapshot.putShort((short) entry.ttlOffsets[j]).putInt(entry.ttls[j]);
+            }
+            count++;
+        }
+        snapshot.flip();
+        snapshot.putInt(0, SNAPSHOT_MAGIC).putInt(4, SNAPSHOT_VERSION).putInt(8, count)
+                .putInt(12, checksum(snapshot));
+        return snapshot;
+    }
+
+    /** CRC-32 of the snapshot after its header. */
+    private static int checksum(ByteBuffer snapshot) {
+        final ByteBuffer body = snapshot.duplicate();
+        body.position(SNAPSHOT_HEADER_LENGTH);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Adds the entries saved to {@code file}, leaving out those no longer good for serving
+     * stale and any stored after {@code now}, which means the clock went back. The file is
+     * memory-mapped and read in place.
+     *
+     * @return the number of entries added.
+     * @throws IOException if the file cannot be read, or is corrupt or of another version.
+     */
+    int load(File file, long now) throws IOException {
+        final ByteBuffer snapshot;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = in.getChannel();
+            if (channel.size() < SNAPSHOT_HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (snapshot.getInt(0) != SNAPSHOT_MAGIC || snapshot.getInt(4) != SNAPSHOT_VERSION
+                || snapshot.getInt(12) != checksum(snapshot)) {
+            throw new IOException("Not a cache snapshot of version " + SNAPSHOT_VERSION
+                    + ": " + file);
+        }
+        try {
+            return load(snapshot, snapshot.getInt(8), now);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt cache snapshot: " + file, e);
+        }
+    }
+
+    private synchronized int load(ByteBuffer snapshot, int count, long now) {
+        snapshot.position(SNAPSHOT_HEADER_LENGTH);
+        int loaded = 0;
+        for (int i = 0; i < count; i++) {
+            final long storedAt = snapshot.getLong();
+            final long expiresAt = snapshot.getLong();
+            final int offset = snapshot.position() + 2;
+            final int length = snapshot.getShort() & 0xFFFF;
+            snapshot.position(offset + length);
+            final int ttlCount = snapshot.getShort() & 0xFFFF;
+            if (ttlCount > mTtlOffsets.length) {
+                mTtlOffsets = new int[ttlCount];
+                mTtls = new int[ttlCount];
+            }
+            boolean valid = true;
+            for (int j = 0; j < ttlCount; j++) {
+                mTtlOffsets[j] = snapshot.getShort() & 0xFFFF;
+                mTtls[j] = snapshot.getInt();
+                valid &= mTtlOffsets[j] + 4 <= length;
+            }
+            final int questionEnd = DnsMessage.skipQuestion(snapshot, offset, offset + length);
+            if (!valid || questionEnd < 0 || storedAt > now
+                    || expiresAt + MAX_STALE_MS <= now) {
+                continue;
+            }
+            store(snapshot, offset, length, questionEnd - offset - DnsMessage.HEADER_LENGTH,
+                    -1, 0, ttlCount, storedAt, expiresAt);
+            loaded++;
+        }
+        // Nothing new to save.
+        mSavedChanges = mChanges;
+        return loaded;
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    /** Returns the index of the entry for the question at {@code buf[question, +length)}. */
+    private int findQuestion(ByteBuffer buf, int question, int length) {
+        final int hash = hash(buf, question, length);
+        for (int index = mBuckets[hash & (mBuckets.length - 1)]; index >= 0;
+                index = mNext[index]) {
+            final Entry entry = mEntries[index];
+            if (entry.hash == hash && matches(entry.key, buf, question, length)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns a free entry index, evicting an entry if the cache is full. */
+    private int allocate(long now) {
+        if (mCount < mEntries.length) {
+            return mCount++;
+        }
+        while (true) {
+            final int index = mHand;
+            mHand = (mHand + 1) % mEntries.length;
+            final Entry entry = mEntries[index];
+            // Expired entries go first; they are only good for serving stale.
+            if (!entry.referenced || entry.expiresAt <= now) {
+                unlink(index);
+                return index;
+            }
+            entry.referenced = false;
+        }
+    }
+
+    /** Drops an entry past serving stale, moving the last one into its place. */
+    private void remove(int index) {
+        unlink(index);
+        final int last = --mCount;
+        if (index != last) {
+            unlink(last);
+            mEntries[index] = mEntries[last];
+            link(index);
+        }
+        mEntries[last] = null;
+        if (mHand >= mCount) {
+            mHand = 0;
+        }
+    }
+
+    private void link(int index) {
+        final int bucket = mEntries[index].hash & (mBuckets.length - 1);
+        mNext[index] = mBuckets[bucket];
+        mBuckets[bucket] = index;
+    }
+
+    private void unlink(int index) {
+        final int bucket = mEntries[index].hash & (mBuckets.length - 1);
+        if (mBuckets[bucket] == index) {
+            mBuckets[bucket] = mNext[index];
+            return;
+        }
+        for (int i = mBuckets[bucket]; i >= 0; i = mNext[i]) {
+            if (mNext[i] == index) {
+                mNext[i] = mNext[index];
+                return;
+            }
+        }
+    }
+
+    /** FNV-1a over the question with its name lower-cased. */
+    private static int hash(ByteBuffer buf, int question, int length) {
+        final int nameLength = length - 4;
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            int b = buf.get(question + i) & 0xFF;
+            if (i < nameLength) {
+                b = toLowerCase(b);
+            }
+            hash = (hash ^ b) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buf, int question, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        final int nameLength = length - 4;
+        for (int i = 0; i < length; i++) {
+            int b = buf.get(question + i) & 0xFF;
+            if (i < nameLength) {
+                b = toLowerCase(b);
+            }
+            if ((key[i] & 0xFF) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Label length bytes never exceed 63, so they are left alone.
+    private static void lowerCaseName(byte[] name, int length) {
+        for (int i = 0; i < length; i++) {
+            name[i] = (byte) toLowerCase(name[i] & 0xFF);
+        }
+    }
+
+    private static int toLowerCase(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,795 @@
+package com.example.toyvpnjava;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards DNS queries read from the tun interface to the upstream resolver without waiting for
+ * the answers, so any number of lookups can be in flight at once.
+ * <p>
+ * This is the dispatcher stage of the {@link PacketPipeline}, and the only thread touching the
+ * upstream sockets and the {@link PendingQueries}. Queries taken from the input rings go out
+ * to the upstream resolver that {@link Upstreams} deems fastest, over the non-blocking sockets
+ * of an {@link UpstreamSocketPool}, each under a fresh random transaction ID, unless an
+ * identical query is already in flight. In between, {@link #run} waits on a {@link Selector}
+ * for answers, matches them back by that ID and passes the rebuilt replies on to the
+ * {@link TunWriter} in batches. A query left unanswered for its upstream's retransmission
+ * timeout is sent again, preferably to another upstream. Each pending query has a timer on a
+ * {@link TimerWheel} for whichever of that, hedging, answering stale or giving up is due next.
+ * <p>
+ * Optionally, queries are also hedged: one still unanswered once it took longer than most
+ * recent answers from its upstream goes to a second upstream too, and whichever answer comes
+ * first is used. A token bucket keeps those extra queries within a set share of the traffic.
+ * <p>
+ * Queries go out with an EDNS OPT record offering a {@link #EDNS_PAYLOAD_SIZE} byte payload,
+ * and answers still too large for that are fetched again over a {@link DnsTcpConnection} to
+ * the same upstream, so that clients get them whole, up to the tun MTU, rather than
+ * truncated: the tunnel carries no TCP for them to retry over.
+ * <p>
+ * Upstreams configured for DNS over TLS get every query over such a connection instead,
+ * encrypted and pipelined, which then counts as their only socket.
+ * <p>
+ * A forwarder lives as long as its {@link ToyVpnConnection}, across tun interface re-creation.
+ */
+class DnsForwarder extends PacketStage implements Closeable {
+    private static final String TAG = DnsForwarder.class.getSimpleName();
+
+    /**
+     * Maximum number of queries waiting for an answer; beyond that new queries are dropped and
+     * left for the client to retry.
+     */
+    private static final int MAX_PENDING_QUERIES = 256;
+    /**
+     * Maximum number of clients waiting for those queries, counting the ones that asked the
+     * same thing while it was in flight.
+     */
+    private static final int MAX_WAITERS = 2 * MAX_PENDING_QUERIES;
+    private static final int DNS_HEADER_LENGTH = DnsMessage.HEADER_LENGTH;
+    /**
+     * UDP payload size offered to upstream resolvers, as agreed for DNS Flag Day 2020 to avoid
+     * IP fragmentation.
+     */
+    static final int EDNS_PAYLOAD_SIZE = 1232;
+    /**
+     * Time after which a query without an answer is forgotten. Stub resolvers have usually
+     * retried long before that.
+     */
+    private static final long QUERY_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * Time after which clients waiting for an answer get a stale one from the cache instead,
+     * if there is one; the "client response timer" of RFC 8767. The query stays in flight, so
+     * that a late answer still refreshes the cache.
+     */
+    private static final long STALE_AFTER_MS = 1800;
+    /** Number of times a query is sent before waiting out QUERY_TIMEOUT_MS for an answer. */
+    private static final int MAX_ATTEMPTS = 3;
+    /** Longest wait for answers, so that sockets get repaired even when nothing happens. */
+    private static final long HOUSEKEEPING_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+    // Timer ids: one per pending query slot, whose expiry it drives, then housekeeping.
+    private static final int HOUSEKEEPING_TIMER = MAX_PENDING_QUERIES;
+    /** Hedges that may go out back to back after a quiet spell, in hedge budget tokens. */
+    private static final int HEDGE_BURST = 10;
+    // Every forwarded query earns the hedge budget its percentage; a hedge costs a whole query.
+    private static final int HEDGE_COST = 100;
+
+    private final UpstreamSocketPool mSockets;
+    private final Upstreams mUpstreams;
+    // Set when the network changed, so that what was learned about the upstreams is dropped.
+    private volatile boolean mNetworkChanged;
+    private final TimerWheel mTimers =
+            new TimerWheel(HOUSEKEEPING_TIMER + 1, 1, System.currentTimeMillis());
+    private final TimerWheel.Listener mTimerListener = this::onTimer;
+    // Percentage of queries that may be hedged, 0 to disable, and the budget left.
+    private final int mHedgePercent;
+    private int mHedgeTokens;
+    private final BufferPool mBuffers;
+    private final DnsCache mCache;
+    private final ReverseIndex mReverseIndex;
+    private final Metrics mMetrics;
+    private final Selector mSelector;
+    private final Link mReplies;
+    private final PendingQueries mPending =
+            new PendingQueries(MAX_PENDING_QUERIES, MAX_WAITERS);
+    private final DnsMessage mQuery = new DnsMessage();
+    private final DnsMessage mResponse = new DnsMessage();
+    // Per upstream, created on first use; numbered after the UDP sockets. Over TLS for the
+    // upstreams that use it, plain TCP for the others.
+    private final DnsTcpConnection[] mTcp;
+    private final DnsTcpConnection.Receiver mTcpReceiver = this::receive;
+
+    // Replies passed on since the last flush of mReplies.
+    private int mReplyCount;
+    private final IpPacket mRequestPacket = new IpPacket();
+    private final IpPacket mReplyPacket = new IpPacket();
+
+    /**
+     * @param cache the cache answers are stored in, or {@code null}.
+     * @param reverseIndex the index the addresses in answers are added to, or {@code null}.
+     * @param hedgePercent the share of queries that may be hedged, in percent; 0 disables it.
+     * @param replies the way to the writer.
+     */
+    DnsForwarder(UpstreamSocketPool sockets, BufferPool buffers, int batchSize, Metrics metrics,
+            DnsCache cache, ReverseIndex reverseIndex, int hedgePercent, Link replies)
+            throws IOException {
+        super(batchSize);
+        mSockets = sockets;
+        mUpstreams = new Upstreams(sockets.upstreamCount());
+        mTcp = new DnsTcpConnection[sockets.upstreamCount()];
+        mBuffers = buffers;
+        mCache = cache;
+        mReverseIndex = reverseIndex;
+        mHedgePercent = hedgePercent;
+        mHedgeTokens = HEDGE_BURST * HEDGE_COST;
+        mMetrics = metrics;
+        mReplies = replies;
+        mSelector = Selector.open();
+    }
+
+    /**
+     * Drops the upstream sockets and opens new ones; called when the network they were bound
+     * to changed.
+     */
+    void invalidate() {
+        mNetworkChanged = true;
+        mSockets.invalidate();
+        mSelector.wakeup();
+    }
+
+    /** Forwards a DNS query passed on by a {@link PacketClassifier} and recycles its buffer. */
+    @Override
+    void process(ByteBuffer packet) {
+        if (!mRequestPacket.wrap(packet, packet.position(), packet.remaining())) {
+            mBuffers.release(packet);
+            return;
+        }
+        if (forward(mRequestPacket)) {
+            mBuffers.release(packet);
+            return;
+        }
+        // Upstream cannot take the query right now; answer stale rather than not at all.
+        if (!serveStale(mRequestPacket)) {
+            mMetrics.queriesDropped.increment();
+            mBuffers.release(packet);
+        }
+    }
+
+    @Override
+    void wake() {
+        mSelector.wakeup();
+    }
+
+    /**
+     * Sends the DNS query carried by {@code request} upstream and returns immediately. A query
+     * identical to one already in flight is not sent again; the client waits for that one's
+     * answer instead, and a client retransmit is dropped outright. The request's buffer is
+     * modified and its position and limit are reset on return.
+     *
+     * @return {@code false} if the query was dropped for lack of resources.
+     */
+    private boolean forward(IpPacket request) {
+        final ByteBuffer buf = request.buffer();
+        final int dns = request.payloadOffset();
+        if (request.payloadLength() < DNS_HEADER_LENGTH) {
+            return false;
+        }
+        final int inFlight = mPending.find(request);
+        if (inFlight >= 0) {
+            if (mPending.isWaiting(inFlight, request)) {
+                mMetrics.queriesAbsorbed.increment();
+                return true;
+            }
+            if (mPending.addWaiter(inFlight, request)) {
+                mMetrics.queriesCoalesced.increment();
+                return true;
+            }
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        final int socket = nextSocket(now, -1);
+        if (socket < 0) {
+            return false;
+        }
+        final int slot = mPending.add(request, socket, now);
+        if (slot < 0) {
+            if (isDebugging) Log.e(TAG, "Too many pending queries, dropping one");
+            return false;
+        }
+        final short clientId = buf.getShort(dns);
+        if (!send(slot, buf, dns, request.payloadLength())) {
+            mPending.release(slot);
+            buf.putShort(dns, clientId);
+            return false;
+        }
+        scheduleExpiry(slot, now);
+        if (mHedgePercent > 0) {
+            mHedgeTokens = Math.min(mHedgeTokens + mHedgePercent, HEDGE_BURST * HEDGE_COST);
+        }
+        mMetrics.queriesForwarded.increment();
+        return true;
+    }
+
+    /**
+     * Returns the socket to send a query on, to the best upstream other than {@code exclude}
+     * if there is one, or -1 if no socket is open.
+     */
+    private int nextSocket(long now, int exclude) {
+        final int upstream = mUpstreams.pick(now, exclude);
+        if (mSockets.isTls(upstream)) {
+            return mSockets.size() + upstream;
+        }
+        final int socket = mSockets.next(upstream);
+        return socket < 0 || mSockets.channel(socket) == null ? -1 : socket;
+    }
+
+    /** Returns the upstream behind {@code socket}, a UDP socket or a TCP connection. */
+    private int upstream(int socket) {
+        return socket < mSockets.size() ? mSockets.upstream(socket) : socket - mSockets.size();
+    }
+
+    /** Returns the TCP or TLS connection to {@code upstream}, creating it if need be. */
+    private DnsTcpConnection connection(int upstream) {
+        if (mTcp[upstream] == null) {
+            mTcp[upstream] = new DnsTcpConnection(mSockets, upstream, mSockets.size() + upstream);
+            mTcp[upstream].isDebugging = isDebugging;
+        }
+        return mTcp[upstream];
+    }
+
+    /**
+     * Sends the query at {@code buf[dns, dns + length)} for {@code slot}, under the slot's
+     * transaction ID and on the slot's socket, adding an OPT record if it goes over UDP and
+     * has none. The buffer's position and limit are reset on return.
+     */
+    private boolean send(int slot, ByteBuffer buf, int dns, int length) {
+        final int socket = mPending.socket(slot);
+        if (socket >= mSockets.size()) {
+            return sendOverTls(slot, buf, dns, length);
+        }
+        final DatagramChannel channel = mSockets.channel(socket);
+        if (channel == null) {
+            return false;
+        }
+        buf.putShort(dns, (short) mPending.id(slot));
+        // Make room past the query for the OPT record.
+        buf.clear();
+        final int additional = DnsMessage.additionalCount(buf, dns);
+        if (mQuery.wrap(buf, dns, length) && !mQuery.findOpt() && !mQuery.isMalformed()) {
+            final int withOpt = DnsMessage.appendOpt(buf, dns, length, buf.capacity(),
+                    EDNS_PAYLOAD_SIZE);
+            if (withOpt > 0) {
+                length = withOpt;
+                mPending.setOptAdded(slot);
+            }
+        }
+        buf.limit(dns + length).position(dns);
+        int sent = 0;
+        try {
+            sent = channel.write(buf);
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Upstream socket failed", e);
+            mSockets.markBroken(socket);
+        } finally {
+            buf.clear();
+        }
+        if (sent == 0) {
+            // Either the socket failed or its buffer is full; the client will retry. Leave the
+            // query as it was, in case it gets answered from the cache instead.
+            buf.putShort(dns + 10, (short) additional);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the query of {@code slot} over the TLS connection it was assigned. A query that
+     * cannot be queued, e.g. because connecting failed, counts against the upstream.
+     */
+    private boolean sendOverTls(int slot, ByteBuffer buf, int dns, int length) {
+        final int socket = mPending.socket(slot);
+        final long now = System.currentTimeMillis();
+        buf.putShort(dns, (short) mPending.id(slot));
+        final boolean sent = connection(upstream(socket)).send(mSelector, buf, dns, length, now);
+        buf.clear();
+        if (!sent) {
+            timedOut(socket, now);
+        }
+        return sent;
+    }
+
+    /**
+     * Sets the timer of {@code slot}, whose query was just sent, to go off in time to hedge,
+     * retransmit or answer it stale.
+     */
+    private void scheduleExpiry(int slot, long now) {
+        final int upstream = upstream(mPending.socket(slot));
+        final long delay = canHedge(slot)
+                ? mUpstreams.hedgeDelay(upstream) : mUpstreams.rto(upstream);
+        mTimers.schedule(slot, now + Math.min(delay, STALE_AFTER_MS));
+    }
+
+    /** Whether the query of {@code slot} is one that would get hedged if slow. */
+    private boolean canHedge(int slot) {
+        return mHedgePercent > 0 && mUpstreams.count() > 1 && mPending.attempts(slot) == 1
+                && mPending.firstWaiter(slot) >= 0;
+    }
+
+    /** Sends the refreshes the cache asked for, as queries without waiters. */
+    private void prefetch() {
+        while (mCache.hasPrefetches()) {
+            final ByteBuffer buf = mBuffers.acquire();
+            if (buf == null) {
+                return;
+            }
+            final int dns = BufferPool.HEADROOM;
+            final int length = mCache.nextPrefetch(buf, dns);
+            final long now = System.currentTimeMillis();
+            final int socket = nextSocket(now, -1);
+            if (length >= 0 && socket >= 0 && mPending.find(buf, dns, length) < 0) {
+                final int slot = mPending.add(buf, dns, length, socket, now);
+                if (slot >= 0 && send(slot, buf, dns, length)) {
+                    scheduleExpiry(slot, now);
+                    mMetrics.cachePrefetches.increment();
+                } else if (slot >= 0) {
+                    mPending.release(slot);
+                }
+            }
+            mBuffers.release(buf);
+        }
+    }
+
+    /**
+     * Answers the query carried by {@code request} from the cache, stale entries included,
+     * turning it into the reply in place and passing it on to the writer.
+     *
+     * @return {@code false} if the cache has nothing for it; the caller keeps the buffer then.
+     */
+    private boolean serveStale(IpPacket request) {
+        if (mCache == null) {
+            return false;
+        }
+        final int replyLength = mCache.reply(request, mBuffers.packetSize(), true,
+                System.currentTimeMillis());
+        if (replyLength < 0) {
+            return false;
+        }
+        mMetrics.staleAnswers.increment();
+        final ByteBuffer buf = request.buffer();
+        buf.limit(request.offset() + replyLength).position(request.offset());
+        passReply(buf);
+        return true;
+    }
+
+    /**
+     * Answers the clients waiting on {@code slot} from stale cache entries, if there are any,
+     * leaving the query itself in flight. Each waiter is detached once served, so that those
+     * left over when buffers run out still get the upstream answer, and only they do.
+     */
+    private void serveStale(int slot, long now) {
+        final int dns = BufferPool.HEADROOM;
+        for (int waiter = mPending.firstWaiter(slot); waiter >= 0;
+                waiter = mPending.firstWaiter(slot)) {
+            final ByteBuffer buf = mBuffers.acquire();
+            if (buf == null) {
+                return;
+            }
+            // Coalesced clients all sent this very query, so it stands in for theirs.
+            final int queryLength = mPending.copyQuery(slot, buf, dns);
+            final int length = queryLength < 0
+                    ? -1 : mCache.answerStale(buf, dns, queryLength, buf.capacity() - dns, now);
+            if (length < 0) {
+                mBuffers.release(buf);
+                return;
+            }
+            mMetrics.staleAnswers.increment();
+            reply(buf, waiter, length, false);
+            mPending.removeFirstWaiter(slot);
+        }
+    }
+
+    @Override
+    public void run() {
+        mTimers.schedule(HOUSEKEEPING_TIMER,
+                System.currentTimeMillis() + HOUSEKEEPING_INTERVAL_MS);
+        try {
+            while (!Thread.interrupted()) {
+                if (mNetworkChanged) {
+                    mNetworkChanged = false;
+                    mUpstreams.reset();
+                    closeTcp();
+                }
+                if (mSockets.needsRepair()) {
+                    mSockets.repair(mSelector);
+                }
+                // Send what the classifiers queued, then wait for answers unless more came in.
+                final int forwarded = drainInputs();
+                if (mCache != null) {
+                    prefetch();
+                }
+                final long timeout = mTimers.nextExpiry() - System.currentTimeMillis();
+                if (forwarded == 0 && timeout > 0 && prepareToWait()) {
+                    mSelector.select(timeout);
+                    doneWaiting();
+                } else {
+                    mSelector.selectNow();
+                }
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    if (key.attachment() instanceof DnsTcpConnection) {
+                        final DnsTcpConnection connection = (DnsTcpConnection) key.attachment();
+                        final long now = System.currentTimeMillis();
+                        if (!connection.onReady(mTcpReceiver, now)) {
+                            timedOut(connection.id(), now);
+                        }
+                        continue;
+                    }
+                    final int socket = (Integer) key.attachment();
+                    final DatagramChannel channel = (DatagramChannel) key.channel();
+                    try {
+                        while (receive(channel, socket)) {
+                            // Drain everything the socket has, in batches.
+                        }
+                    } catch (IOException e) {
+                        // Typically ICMP port unreachable surfacing on the connected socket.
+                        if (isDebugging) Log.e(TAG, "Upstream socket failed", e);
+                        key.cancel();
+                        mSockets.markBroken(socket);
+                    }
+                }
+                mSelector.selectedKeys().clear();
+                flushReplies();
+                if (mTimers.advance(System.currentTimeMillis(), mTimerListener) > 0) {
+                    flushReplies();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (mSelector.isOpen()) {
+                Log.e(TAG, "Upstream forwarding failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reads one answer from upstream and passes the matching reply on to the writer, waking it
+     * up once a full batch is ready.
+     *
+     * @return {@code false} once there is nothing left to read.
+     */
+    private boolean receive(DatagramChannel channel, int socket) throws IOException {
+        final ByteBuffer buf = mBuffers.acquire();
+        if (buf == null) {
+            // The writer returns buffers as it goes; leave the rest in the socket until then.
+            flushReplies();
+            return false;
+        }
+        // Receive behind the headroom, where the reply's IP + UDP header will go.
+        final int dns = BufferPool.HEADROOM;
+        buf.position(dns);
+        final int read;
+        try {
+            read = channel.read(buf);
+        } catch (IOException e) {
+            mBuffers.release(buf);
+            throw e;
+        }
+        // A datagram filling the buffer to the brim may well have been cut short.
+        final boolean cut = !buf.hasRemaining();
+        final int length = buf.position() - dns;
+        if (read <= 0) {
+            mBuffers.release(buf);
+            return false;
+        }
+        answer(buf, length, cut, socket);
+        return true;
+    }
+
+    /** Takes an answer read from a TCP connection, copying it to a packet buffer. */
+    private void receive(DnsTcpConnection connection, ByteBuffer message, int offset,
+            int length) {
+        final ByteBuffer buf = mBuffers.acquire();
+        if (buf == null) {
+            // The query will be answered stale or time out.
+            return;
+        }
+        final int dns = BufferPool.HEADROOM;
+        final int copied = Math.min(length, buf.capacity() - dns);
+        for (int i = 0; i < copied; i++) {
+            buf.put(dns + i, message.get(offset + i));
+        }
+        answer(buf, copied, copied < length, connection.id());
+        flushReplies();
+    }
+
+    /**
+     * Passes the replies for the answer at {@code buf[HEADROOM, HEADROOM + length)}, received
+     * on {@code socket}, on to the writer, or fetches the answer over TCP if it was truncated.
+     * Takes ownership of the buffer.
+     */
+    private void answer(ByteBuffer buf, int length, boolean cut, int socket) {
+        final int dns = BufferPool.HEADROOM;
+        if (length < DNS_HEADER_LENGTH) {
+            mBuffers.release(buf);
+            return;
+        }
+        final int slot = mPending.slotForId(buf.getShort(dns) & 0xFFFF);
+        if (slot < 0 || !mPending.sentOn(slot, socket)) {
+            // Late, duplicate or forged.
+            mBuffers.release(buf);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final boolean tcp = socket >= mSockets.size();
+        // Times over TCP fallback include connecting, and say little about UDP.
+        final long sentAt = tcp && !mSockets.isTls(upstream(socket))
+                ? 0 : mPending.sentAt(slot, socket);
+        mUpstreams.answered(upstream(socket), sentAt == 0 ? -1 : now - sentAt);
+        if (mPending.isHedged(slot) && socket != mPending.firstSocket(slot)) {
+            mMetrics.hedgesWon.increment();
+        }
+        if (!tcp && (DnsMessage.flags(buf, dns) & DnsMessage.FLAG_TC) != 0) {
+            if (mPending.sentOn(slot, mSockets.size() + upstream(socket))
+                    || retryOverTcp(slot, upstream(socket), now)) {
+                mBuffers.release(buf);
+                return;
+            }
+        }
+        // The client did not ask for EDNS, so it must not get an OPT record back.
+        if (mPending.isOptAdded(slot) && mResponse.wrap(buf, dns, length)
+                && mResponse.findOpt()) {
+            length = mResponse.removeRecord();
+        }
+        if (isDebugging) Log.e(TAG, "Response: " + (mResponse.wrap(buf, dns, length)
+                ? mResponse : "malformed, " + length + " bytes"));
+        if (!cut && mCache != null) {
+            mCache.put(buf, dns, length, now);
+        }
+        if (!cut && mReverseIndex != null) {
+            mReverseIndex.put(buf, dns, length, now);
+        }
+
+        // Every waiter but the last gets a copy of the answer; the last one gets the original.
+        int waiter = mPending.firstWaiter(slot);
+        if (waiter < 0) {
+            // A prefetch, or clients that were already served stale.
+            mBuffers.release(buf);
+            release(slot);
+            return;
+        }
+        while (mPending.nextWaiter(waiter) >= 0) {
+            final ByteBuffer copy = mBuffers.acquire();
+            if (copy != null) {
+                for (int i = 0; i < length; i++) {
+                    copy.put(dns + i, buf.get(dns + i));
+                }
+                reply(copy, waiter, length, cut);
+            }
+            waiter = mPending.nextWaiter(waiter);
+        }
+        reply(buf, waiter, length, cut);
+        release(slot);
+    }
+
+    /** Forgets the query of {@code slot}, answered or given up on, and stops its timer. */
+    private void release(int slot) {
+        mTimers.cancel(slot);
+        mPending.release(slot);
+    }
+
+    /**
+     * Sends the query of {@code slot} again over TCP to {@code upstream}, whose answer over UDP
+     * was truncated. The query is not retransmitted over UDP after that.
+     *
+     * @return {@code false} if it could not be sent.
+     */
+    private boolean retryOverTcp(int slot, int upstream, long now) {
+        final ByteBuffer buf = mBuffers.acquire();
+        if (buf == null) {
+            return false;
+        }
+        final int dns = BufferPool.HEADROOM;
+        final int length = mPending.copyQuery(slot, buf, dns);
+        final DnsTcpConnection connection = connection(upstream);
+        boolean sent = false;
+        if (length >= 0) {
+            buf.putShort(dns, (short) mPending.id(slot));
+            sent = connection.send(mSelector, buf, dns, length, now);
+        }
+        mBuffers.release(buf);
+        if (sent) {
+            mPending.resent(slot, connection.id(), now);
+            mPending.stopRetransmits(slot);
+            mMetrics.tcpFallbacks.increment();
+        }
+        return sent;
+    }
+
+    private void closeTcp() {
+        for (DnsTcpConnection connection : mTcp) {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Turns the answer at {@code buf[HEADROOM, HEADROOM + length)} into the reply to
+     * {@code waiter} and passes it on to the writer, which then owns the buffer.
+     */
+    private void reply(ByteBuffer buf, int waiter, int length, boolean cut) {
+        final int dns = BufferPool.HEADROOM;
+        final int headerLength = mPending.headerLength(waiter);
+        final byte[] header = mPending.header(waiter);
+        for (int i = 0; i < headerLength; i++) {
+            buf.put(dns - headerLength + i, header[i]);
+        }
+        buf.putShort(dns, (short) mPending.clientId(waiter));
+
+        // Answers that do not fit in the tun MTU are cut down to a truncated reply, so that the
+        // client retries over TCP instead of waiting for something that never comes.
+        if (cut || headerLength + length > mBuffers.packetSize()) {
+            length = DnsMessage.truncate(buf, dns, length);
+        }
+        // The saved header still describes the request, which is all writeUdpReply() needs.
+        final int offset = dns - headerLength;
+        final int replyLength =
+                length < 0 || !mReplyPacket.wrap(buf, offset, buf.capacity() - offset)
+                        ? -1 : PacketWriter.writeUdpReply(mReplyPacket, length);
+        if (replyLength < 0) {
+            mBuffers.release(buf);
+            return;
+        }
+        buf.limit(offset + replyLength).position(offset);
+        passReply(buf);
+    }
+
+    /** Passes the reply in {@code buf} on to the writer, which then owns the buffer. */
+    private void passReply(ByteBuffer buf) {
+        if (!mReplies.send(buf)) {
+            mBuffers.release(buf);
+            return;
+        }
+        if (++mReplyCount == mBatchSize) {
+            flushReplies();
+        }
+    }
+
+    /** Hands the replies passed on so far to the writer as one batch. */
+    private void flushReplies() {
+        if (mReplyCount > 0) {
+            mReplyCount = 0;
+            mReplies.flush();
+        }
+    }
+
+    private void onTimer(int timer, long timeNow) {
+        if (timer == HOUSEKEEPING_TIMER) {
+            for (DnsTcpConnection connection : mTcp) {
+                if (connection != null) {
+                    connection.closeIfIdle(timeNow);
+                }
+            }
+            mTimers.schedule(HOUSEKEEPING_TIMER, timeNow + HOUSEKEEPING_INTERVAL_MS);
+            return;
+        }
+        final long next = expire(timer, timeNow);
+        if (next != 0) {
+            mTimers.schedule(timer, next);
+        }
+    }
+
+    /**
+     * Retransmits, hedges, answers stale or forgets the query of {@code slot}, whichever is
+     * due.
+     *
+     * @return when to look at it again, or 0 once it is forgotten.
+     */
+    private long expire(int slot, long timeNow) {
+        final long sentAt = mPending.sentAt(slot);
+        if (sentAt == 0) {
+            return 0;
+        }
+        if (sentAt + QUERY_TIMEOUT_MS <= timeNow) {
+            if (isDebugging) Log.e(TAG, "Query timed out: " + mPending.id(slot));
+            mMetrics.queriesTimedOut.increment();
+            if (mPending.isRetransmitting(slot)) {
+                timedOut(mPending.socket(slot), timeNow);
+            }
+            mPending.release(slot);
+            return 0;
+        }
+        long next = sentAt + QUERY_TIMEOUT_MS;
+        if (mCache != null && mPending.firstWaiter(slot) >= 0) {
+            if (sentAt + STALE_AFTER_MS <= timeNow) {
+                serveStale(slot, timeNow);
+            } else {
+                next = Math.min(next, sentAt + STALE_AFTER_MS);
+            }
+        }
+        if (!mPending.isRetransmitting(slot)) {
+            return next;
+        }
+        final int socket = mPending.socket(slot);
+        final int upstream = upstream(socket);
+        final long lastSentAt = mPending.lastSentAt(slot);
+        final long retransmitAt = lastSentAt + mUpstreams.rto(upstream);
+        if (retransmitAt <= timeNow) {
+            timedOut(socket, timeNow);
+            if (mPending.attempts(slot) < MAX_ATTEMPTS && resend(slot, timeNow)) {
+                mMetrics.queriesRetransmitted.increment();
+                next = Math.min(next, nextRetransmit(slot, timeNow));
+            } else {
+                mPending.stopRetransmits(slot);
+            }
+            return next;
+        }
+        next = Math.min(next, retransmitAt);
+        if (!canHedge(slot)) {
+            return next;
+        }
+        final long hedgeAt = lastSentAt + mUpstreams.hedgeDelay(upstream);
+        if (hedgeAt > timeNow) {
+            next = Math.min(next, hedgeAt);
+        } else if (mHedgeTokens >= HEDGE_COST && resend(slot, timeNow)) {
+            // No timeout charged: the first copy may well still be answered.
+            mHedgeTokens -= HEDGE_COST;
+            mPending.setHedged(slot);
+            mMetrics.hedgesSent.increment();
+            next = Math.min(next, nextRetransmit(slot, timeNow));
+        }
+        return next;
+    }
+
+    /** When the query of {@code slot}, just sent again, is due for a retransmit. */
+    private long nextRetransmit(int slot, long timeNow) {
+        return timeNow + mUpstreams.rto(upstream(mPending.socket(slot)));
+    }
+
+    /** Charges the upstream behind {@code socket} with a query it left unanswered. */
+    private void timedOut(int socket, long timeNow) {
+        final int upstream = upstream(socket);
+        if (mUpstreams.timedOut(upstream, timeNow)) {
+            mMetrics.upstreamEjections.increment();
+            Log.w(TAG, "Upstream " + mSockets.upstreamServer(upstream)
+                    + " stopped answering; " + mUpstreams);
+        }
+    }
+
+    /**
+     * Sends the query of {@code slot} again, to another upstream than last time if possible.
+     *
+     * @return {@code false} if it could not be sent.
+     */
+    private boolean resend(int slot, long timeNow) {
+        final int socket = nextSocket(timeNow, upstream(mPending.socket(slot)));
+        // A TLS connection delivers the first copy or fails; sending it twice gains nothing.
+        final boolean sentOnStream = socket >= mSockets.size() && mPending.sentOn(slot, socket);
+        final ByteBuffer buf = socket < 0 || sentOnStream ? null : mBuffers.acquire();
+        if (buf == null) {
+            return false;
+        }
+        final int dns = BufferPool.HEADROOM;
+        final int length = mPending.copyQuery(slot, buf, dns);
+        if (length < 0) {
+            // Too long to have been kept; the first copy has to do.
+            mBuffers.release(buf);
+            return false;
+        }
+        mPending.resent(slot, socket, timeNow);
+        final boolean sent = send(slot, buf, dns, length);
+        mBuffers.release(buf);
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeTcp();
+        mSelector.close();
+        mSockets.close();
+    }
+}
@@ -0,0 +1,520 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable, offset-based view over a DNS message (RFC 1035) stored in a {@link ByteBuffer}, plus
+ * static helpers for the few fields the packet path needs without a view.
+ * <p>
+ * Like {@link IpPacket}, nothing is copied or allocated: {@link #wrap} checks the header and the
+ * question, and the resource records are then walked one at a time with {@link #nextRecord},
+ * only as far as the caller cares to go. Record data stays in the buffer until asked for;
+ * names are decoded on demand, following compression pointers. {@link DnsWriter} is the
+ * matching encoder.
+ */
+final class DnsMessage {
+    static final int HEADER_LENGTH = 12;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_PTR = 12;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_OPT = 41;
+
+    static final int CLASS_IN = 1;
+
+    static final int SECTION_ANSWER = 1;
+    static final int SECTION_AUTHORITY = 2;
+    static final int SECTION_ADDITIONAL = 3;
+
+    /** Longest domain name in wire format, terminating zero included. */
+    static final int MAX_NAME_LENGTH = 255;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_SERVFAIL = 2;
+    static final int RCODE_NXDOMAIN = 3;
+    static final int RCODE_REFUSED = 5;
+
+    /** DNSSEC OK, in the flags of an OPT record (RFC 3225). */
+    static final int EDNS_FLAG_DO = 0x8000;
+    /** Length of an OPT record without options. */
+    static final int OPT_RECORD_LENGTH = 11;
+
+    static final int FLAG_QR = 0x8000;
+    static final int FLAG_TC = 0x0200;
+    static final int FLAG_AA = 0x0400;
+    static final int FLAG_RD = 0x0100;
+    static final int FLAG_RA = 0x0080;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RCODE_MASK = 0x000F;
+
+    // Compression pointers followed per name before giving up on a loop.
+    private static final int MAX_POINTERS = 64;
+
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mEnd;
+    private int mQuestionEnd;
+    // Record cursor: the counts left per section and the current record.
+    private int mRecordsLeft;
+    private int mRecordIndex;
+    private int mAnswers;
+    private int mAuthorities;
+    private int mNext;
+    private int mRecordName;
+    private int mRecordData;
+    private boolean mMalformed;
+
+    /**
+     * Points this view at the message in {@code buffer[offset, offset + length)}, which must
+     * have exactly one question.
+     *
+     * @return {@code false} if the header or question is malformed, in which case the
+     *         accessors must not be used until the next successful call.
+     */
+    boolean wrap(ByteBuffer buffer, int offset, int length) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mEnd = offset + length;
+        mRecordsLeft = 0;
+        if (questionCount(buffer, offset) != 1) {
+            return false;
+        }
+        mQuestionEnd = skipQuestion(buffer, offset, mEnd);
+        if (mQuestionEnd < 0) {
+            return false;
+        }
+        rewind();
+        return true;
+    }
+
+    ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    int offset() {
+        return mOffset;
+    }
+
+    int length() {
+        return mEnd - mOffset;
+    }
+
+    int id() {
+        return mBuffer.getShort(mOffset) & 0xFFFF;
+    }
+
+    int flags() {
+        return flags(mBuffer, mOffset);
+    }
+
+    boolean isResponse() {
+        return (flags() & FLAG_QR) != 0;
+    }
+
+    int rcode() {
+        return rcode(flags());
+    }
+
+    /** Offset of the question's name, which is never compressed. */
+    int questionNameOffset() {
+        return mOffset + HEADER_LENGTH;
+    }
+
+    /** Offset just past the question; the records follow. */
+    int questionEnd() {
+        return mQuestionEnd;
+    }
+
+    int questionType() {
+        return mBuffer.getShort(mQuestionEnd - 4) & 0xFFFF;
+    }
+
+    int questionClass() {
+        return mBuffer.getShort(mQuestionEnd - 2) & 0xFFFF;
+    }
+
+    /** Moves the record cursor back to before the first record. */
+    void rewind() {
+        mAnswers = answerCount(mBuffer, mOffset);
+        mAuthorities = authorityCount(mBuffer, mOffset);
+        mRecordsLeft = mAnswers + mAuthorities + additionalCount(mBuffer, mOffset);
+        mRecordIndex = -1;
+        mNext = mQuestionEnd;
+        mMalformed = false;
+    }
+
+    /**
+     * Moves the cursor to the next resource record, skipping over the current one without
+     * looking at its data.
+     *
+     * @return {@code false} at the end of the message, or if the next record is malformed.
+     */
+    boolean nextRecord() {
+        if (mRecordsLeft == 0) {
+            return false;
+        }
+        final int data = skipName(mBuffer, mNext, mEnd) + 10;
+        if (data < 10 || data > mEnd) {
+            return malformed();
+        }
+        final int next = data + (mBuffer.getShort(data - 2) & 0xFFFF);
+        if (next > mEnd) {
+            return malformed();
+        }
+        mRecordName = mNext;
+        mRecordData = data;
+        mNext = next;
+        mRecordsLeft--;
+        mRecordIndex++;
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the EDNS OPT record (RFC 6891), if there is one.
+     *
+     * @return {@code false} if there is none, or the message is malformed.
+     */
+    boolean findOpt() {
+        rewind();
+        while (nextRecord()) {
+            if (recordType() == TYPE_OPT && section() == SECTION_ADDITIONAL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cuts the current record, which must be in the additional section, out of the message.
+     * The view then covers the shorter message and its cursor is rewound.
+     *
+     * @return the new length of the message.
+     */
+    int removeRecord() {
+        final int removed = mNext - mRecordName;
+        for (int i = mNext; i < mEnd; i++) {
+            mBuffer.put(i - removed, mBuffer.get(i));
+        }
+        mEnd -= removed;
+        mBuffer.putShort(mOffset + 10, (short) (additionalCount(mBuffer, mOffset) - 1));
+        rewind();
+        return length();
+    }
+
+    /** Whether {@link #nextRecord} stopped at a malformed record rather than the end. */
+    boolean isMalformed() {
+        return mMalformed;
+    }
+
+    private boolean malformed() {
+        mRecordsLeft = 0;
+        mMalformed = true;
+        return false;
+    }
+
+    /** Section of the current record, one of the {@code SECTION_} constants. */
+    int section() {
+        if (mRecordIndex < mAnswers) {
+            return SECTION_ANSWER;
+        }
+        return mRecordIndex < mAnswers + mAuthorities ? SECTION_AUTHORITY : SECTION_ADDITIONAL;
+    }
+
+    /** Offset of the current record's owner name, possibly compressed. */
+    int recordNameOffset() {
+        return mRecordName;
+    }
+
+    int recordType() {
+        return mBuffer.getShort(mRecordData - 10) & 0xFFFF;
+    }
+
+    int recordClass() {
+        return mBuffer.getShort(mRecordData - 8) & 0xFFFF;
+    }
+
+    /** Offset of the current record's TTL field. */
+    int recordTtlOffset() {
+        return mRecordData - 6;
+    }
+
+    /** TTL of the current record; values with the top bit set read as zero (RFC 2181). */
+    int recordTtl() {
+        return Math.max(0, mBuffer.getInt(mRecordData - 6));
+    }
+
+    int recordDataOffset() {
+        return mRecordData;
+    }
+
+    int recordDataLength() {
+        return mNext - mRecordData;
+    }
+
+    /**
+     * Appends the name at {@code offset} to {@code out} in dotted form, following compression
+     * pointers. The root name is written as ".".
+     *
+     * @return {@code false} if the name is malformed or loops.
+     */
+    boolean readName(int offset, StringBuilder out) {
+        final int start = out.length();
+        int pointers = 0;
+        int length = 0;
+        while (offset < mEnd) {
+            final int label = mBuffer.get(offset) & 0xFF;
+            if (label == 0) {
+                if (out.length() == start) {
+                    out.append('.');
+                }
+                return true;
+            } else if ((label & 0xC0) == 0xC0) {
+                if (offset + 2 > mEnd || ++pointers > MAX_POINTERS) {
+                    return false;
+                }
+                offset = mOffset + (mBuffer.getShort(offset) & 0x3FFF);
+                continue;
+            } else if ((label & 0xC0) != 0 || offset + 1 + label > mEnd) {
+                return false;
+            }
+            length += 1 + label;
+            if (length >= MAX_NAME_LENGTH) {
+                return false;
+            }
+            if (out.length() != start) {
+                out.append('.');
+            }
+            for (int i = 1; i <= label; i++) {
+                out.append((char) (mBuffer.get(offset + i) & 0xFF));
+            }
+            offset += 1 + label;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the name at {@code offset} to {@code dst} at {@code dstOffset} in uncompressed
+     * wire format, following compression pointers.
+     *
+     * @return the number of bytes written, or -1 if the name is malformed, loops, or does not
+     *         fit before {@code dstEnd}.
+     */
+    int copyName(int offset, ByteBuffer dst, int dstOffset, int dstEnd) {
+        int pointers = 0;
+        int length = 0;
+        while (offset < mEnd) {
+            final int label = mBuffer.get(offset) & 0xFF;
+            if ((label & 0xC0) == 0xC0) {
+                if (offset + 2 > mEnd || ++pointers > MAX_POINTERS) {
+                    return -1;
+                }
+                offset = mOffset + (mBuffer.getShort(offset) & 0x3FFF);
+                continue;
+            } else if ((label & 0xC0) != 0 || offset + 1 + label > mEnd
+                    || length + 1 + label > MAX_NAME_LENGTH
+                    || dstOffset + length + 1 + label > dstEnd) {
+                return -1;
+            }
+            for (int i = 0; i <= label; i++) {
+                dst.put(dstOffset + length + i, mBuffer.get(offset + i));
+            }
+            length += 1 + label;
+            if (label == 0) {
+                return length;
+            }
+            offset += 1 + label;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the name at {@code offset} equals the uncompressed wire-format name at
+     * {@code name[nameOffset]}, ignoring ASCII case.
+     */
+    boolean nameEquals(int offset, ByteBuffer name, int nameOffset) {
+        int pointers = 0;
+        while (offset < mEnd) {
+            final int label = mBuffer.get(offset) & 0xFF;
+            if ((label & 0xC0) == 0xC0) {
+                if (offset + 2 > mEnd || ++pointers > MAX_POINTERS) {
+                    return false;
+                }
+                offset = mOffset + (mBuffer.getShort(offset) & 0x3FFF);
+                continue;
+            } else if ((label & 0xC0) != 0 || offset + 1 + label > mEnd
+                    || label != (name.get(nameOffset) & 0xFF)) {
+                return false;
+            }
+            if (label == 0) {
+                return true;
+            }
+            for (int i = 1; i <= label; i++) {
+                if (toLowerCase(mBuffer.get(offset + i)) != toLowerCase(name.get(nameOffset + i))) {
+                    return false;
+                }
+            }
+            offset += 1 + label;
+            nameOffset += 1 + label;
+        }
+        return false;
+    }
+
+    /** Debug helper; allocates freely, so keep it behind the debugging switches. */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("id=").append(id())
+                .append(" flags=0x").append(Integer.toHexString(flags()))
+                .append(" rcode=").append(rcode())
+                .append(" question=");
+        readName(questionNameOffset(), sb);
+        sb.append(' ').append(questionType()).append('/').append(questionClass());
+        final int next = mNext;
+        final int index = mRecordIndex;
+        final int left = mRecordsLeft;
+        rewind();
+        while (nextRecord()) {
+            sb.append("\n  ").append(section()).append(": ");
+            readName(recordNameOffset(), sb);
+            sb.append(" type=").append(recordType()).append(" ttl=").append(recordTtl())
+                    .append(' ');
+            appendData(sb);
+        }
+        if (mRecordsLeft > 0) {
+            sb.append("\n  (malformed)");
+        }
+        mNext = next;
+        mRecordIndex = index;
+        mRecordsLeft = left;
+        return sb.toString();
+    }
+
+    private void appendData(StringBuilder sb) {
+        final int type = recordType();
+        final int data = recordDataOffset();
+        if (type == TYPE_A && recordDataLength() == 4) {
+            sb.append(Util.ipv4ToString(mBuffer.getInt(data)));
+        } else if (type == TYPE_AAAA && recordDataLength() == 16) {
+            sb.append(Util.ipv6ToString(mBuffer, data));
+        } else if (type == TYPE_CNAME || type == TYPE_NS || type == TYPE_PTR) {
+            readName(data, sb);
+        } else {
+            sb.append(Util.bytesToHex(mBuffer, data, recordDataLength()));
+        }
+    }
+
+    private static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    static int flags(ByteBuffer buf, int offset) {
+        return buf.getShort(offset + 2) & 0xFFFF;
+    }
+
+    static int opcode(int flags) {
+        return (flags & OPCODE_MASK) >>> 11;
+    }
+
+    static int rcode(int flags) {
+        return flags & RCODE_MASK;
+    }
+
+    static int questionCount(ByteBuffer buf, int offset) {
+        return buf.getShort(offset + 4) & 0xFFFF;
+    }
+
+    static int answerCount(ByteBuffer buf, int offset) {
+        return buf.getShort(offset + 6) & 0xFFFF;
+    }
+
+    static int authorityCount(ByteBuffer buf, int offset) {
+        return buf.getShort(offset + 8) & 0xFFFF;
+    }
+
+    static int additionalCount(ByteBuffer buf, int offset) {
+        return buf.getShort(offset + 10) & 0xFFFF;
+    }
+
+    /**
+     * Returns the offset just past the first question of the message at {@code offset}, i.e.
+     * past its name, type and class, or -1 if there is none or it runs past {@code end}.
+     */
+    static int skipQuestion(ByteBuffer buf, int offset, int end) {
+        if (offset + HEADER_LENGTH > end || questionCount(buf, offset) == 0) {
+            return -1;
+        }
+        final int position = skipName(buf, offset + HEADER_LENGTH, end);
+        return position < 0 || position + 4 > end ? -1 : position + 4;
+    }
+
+    /**
+     * Returns the offset just past the domain name starting at {@code offset}, or -1 if it runs
+     * past {@code end}. A compression pointer ends the name, so it is not followed.
+     */
+    static int skipName(ByteBuffer buf, int offset, int end) {
+        while (offset < end) {
+            final int length = buf.get(offset) & 0xFF;
+            if (length == 0) {
+                return offset + 1;
+            } else if ((length & 0xC0) == 0xC0) {
+                return offset + 2 <= end ? offset + 2 : -1;
+            } else if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            offset += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Appends an EDNS OPT record advertising a UDP payload size of {@code payloadSize} to the
+     * message at {@code buf[offset, offset + length)}, if it fits before {@code end}.
+     *
+     * @return the new length, or -1 if there is no room.
+     */
+    static int appendOpt(ByteBuffer buf, int offset, int length, int end, int payloadSize) {
+        final int opt = offset + length;
+        if (opt + OPT_RECORD_LENGTH > end) {
+            return -1;
+        }
+        // Root owner name, type, payload size in place of the class, no extended RCODE or
+        // flags in place of the TTL, and no options.
+        buf.put(opt, (byte) 0);
+        buf.putShort(opt + 1, (short) TYPE_OPT);
+        buf.putShort(opt + 3, (short) payloadSize);
+        buf.putInt(opt + 5, 0);
+        buf.putShort(opt + 9, (short) 0);
+        buf.putShort(offset + 10, (short) (additionalCount(buf, offset) + 1));
+        return length + OPT_RECORD_LENGTH;
+    }
+
+    /**
+     * Cuts the message at {@code buf[offset, offset + length)} down to its header and first
+     * question and sets the TC bit, telling the client to retry over TCP.
+     *
+     * @return the new length, or -1 if the message is malformed.
+     */
+    static int truncate(ByteBuffer buf, int offset, int length) {
+        final int end = offset + length;
+        if (length < HEADER_LENGTH) {
+            return -1;
+        }
+        int position = offset + HEADER_LENGTH;
+        final boolean hasQuestion = questionCount(buf, offset) != 0;
+        if (hasQuestion) {
+            position = skipQuestion(buf, offset, end);
+            if (position < 0) {
+                return -1;
+            }
+        }
+        buf.putShort(offset + 2, (short) (buf.getShort(offset + 2) | FLAG_TC));
+        buf.putShort(offset + 4, (short) (hasQuestion ? 1 : 0));
+        buf.putShort(offset + 6, (short) 0);
+        buf.putShort(offset + 8, (short) 0);
+        buf.putShort(offset + 10, (short) 0);
+        return position - offset;
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.toyvpnjava;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A persistent DNS-over-TCP connection to one upstream resolver (RFC 7766), used for answers
+ * that did not fit in a UDP datagram, or DNS over TLS (RFC 7858) for upstreams configured for
+ * it. Owned by the dispatcher thread and therefore not synchronized.
+ * <p>
+ * Queries are pipelined: each is queued behind the ones before it without waiting for their
+ * answers, and the answers are handed to a {@link Receiver} in whatever order they come back,
+ * to be matched by transaction ID. The connection is opened on demand, non-blocking, driven
+ * by the dispatcher's selector, and closed again once idle for {@link #IDLE_TIMEOUT_MS}.
+ * <p>
+ * Over TLS, the queries and answers go through an {@link SSLEngine}, whose handshake tasks run
+ * on the dispatcher thread. Engines of the same upstream share the pool's session cache, so a
+ * connection reopened after being idle resumes the previous session.
+ */
+final class DnsTcpConnection {
+    private static final String TAG = DnsTcpConnection.class.getSimpleName();
+
+    /** Receives the answers read from a connection. */
+    interface Receiver {
+        /**
+         * Called with the answer at {@code message[offset, offset + length)}, which is only
+         * valid for the duration of the call.
+         */
+        void onAnswer(DnsTcpConnection connection, ByteBuffer message, int offset, int length);
+    }
+
+    /** Time without outstanding queries after which the connection is closed. */
+    static final long IDLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    /** Queries that can be queued before the connection is writable, in bytes. */
+    private static final int SEND_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_MESSAGE_LENGTH = 0xFFFF;
+
+    private final UpstreamSocketPool mSockets;
+    private final int mUpstream;
+    private final int mId;
+    // Length-prefixed queries not written yet, in write mode; and what was read of answers.
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+    private final ByteBuffer mIn;
+    // Over TLS, the records to write and those read but not decrypted yet; otherwise null.
+    private final ByteBuffer mNetOut;
+    private final ByteBuffer mNetIn;
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+    // A new one for every connection over TLS, or null.
+    private SSLEngine mEngine;
+    private int mOutstanding;
+    private long mLastActive;
+    boolean isDebugging;
+
+    /**
+     * @param id the number identifying the connection among the upstream sockets, as recorded
+     *        in {@link PendingQueries}.
+     */
+    DnsTcpConnection(UpstreamSocketPool sockets, int upstream, int id) {
+        mSockets = sockets;
+        mUpstream = upstream;
+        mId = id;
+        if (sockets.isTls(upstream)) {
+            final SSLSession session = sockets.newTlsEngine(upstream).getSession();
+            mNetOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            mNetIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            // Room to decrypt a whole record behind the start of an answer of any length.
+            mIn = ByteBuffer.allocateDirect(
+                    2 + MAX_MESSAGE_LENGTH + session.getApplicationBufferSize());
+        } else {
+            mNetOut = null;
+            mNetIn = null;
+            mIn = ByteBuffer.allocateDirect(2 + MAX_MESSAGE_LENGTH);
+        }
+    }
+
+    int id() {
+        return mId;
+    }
+
+    /**
+     * Queues the query at {@code buf[dns, dns + length)}, connecting first if need be. The
+     * buffer is left as it was.
+     *
+     * @return {@code false} if the query could not be queued.
+     */
+    boolean send(Selector selector, ByteBuffer buf, int dns, int length, long now) {
+        if (mOut.remaining() < 2 + length) {
+            return false;
+        }
+        if (mChannel == null && !open(selector)) {
+            return false;
+        }
+        mOut.putShort((short) length);
+        for (int i = 0; i < length; i++) {
+            mOut.put(buf.get(dns + i));
+        }
+        mOutstanding++;
+        mLastActive = now;
+        if (mChannel.isConnected()) {
+            try {
+                write();
+            } catch (IOException e) {
+                if (isDebugging) Log.e(TAG, "Upstream TCP connection failed", e);
+                close();
+                return false;
+            }
+        }
+        updateInterest();
+        return true;
+    }
+
+    /**
+     * Connects, writes or reads, whichever the selector found the connection ready for.
+     *
+     * @return {@code false} if the connection failed and was closed.
+     */
+    boolean onReady(Receiver receiver, long now) {
+        try {
+            if (mKey.isConnectable() && !mChannel.finishConnect()) {
+                return true;
+            }
+            if (mKey.isWritable()) {
+                write();
+            }
+            if (mKey.isReadable()) {
+                read(receiver, now);
+            }
+            if (mChannel != null) {
+                updateInterest();
+            }
+            return true;
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Upstream TCP connection failed", e);
+            close();
+            return false;
+        }
+    }
+
+    /** Closes the connection if it has been idle for long enough. */
+    void closeIfIdle(long now) {
+        if (mChannel != null && mOutstanding == 0 && mLastActive + IDLE_TIMEOUT_MS <= now) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. Queries still waiting for an answer over it are left to time
+     * out.
+     */
+    void close() {
+        if (mChannel == null) {
+            return;
+        }
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        UpstreamSocketPool.closeQuietly(mChannel);
+        mChannel = null;
+        mKey = null;
+        mEngine = null;
+        mOut.clear();
+        mIn.clear();
+        if (mNetOut != null) {
+            mNetOut.clear();
+            mNetIn.clear();
+        }
+        mOutstanding = 0;
+    }
+
+    private boolean open(Selector selector) {
+        try {
+            if (mNetOut != null) {
+                mEngine = mSockets.newTlsEngine(mUpstream);
+                mEngine.beginHandshake();
+            }
+            mChannel = mSockets.openStream(mUpstream);
+            mKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot connect to upstream over TCP", e);
+            close();
+            return false;
+        }
+    }
+
+    private void write() throws IOException {
+        final ByteBuffer out = mEngine != null ? mNetOut : mOut;
+        if (mEngine != null) {
+            wrap();
+        }
+        out.flip();
+        try {
+            mChannel.write(out);
+        } finally {
+            out.compact();
+        }
+    }
+
+    /** Encrypts what it can of mOut into mNetOut, along with what the handshake has to say. */
+    private void wrap() throws SSLException {
+        mOut.flip();
+        try {
+            while (true) {
+                final SSLEngineResult result = mEngine.wrap(mOut, mNetOut);
+                runDelegatedTasks();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("Upstream closed the TLS session");
+                }
+                // Stop once mNetOut is full, or the handshake waits for the server.
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                        || result.bytesProduced() == 0) {
+                    return;
+                }
+            }
+        } finally {
+            mOut.compact();
+        }
+    }
+
+    private void read(Receiver receiver, long now) throws IOException {
+        int read;
+        do {
+            if (mEngine == null) {
+                read = mChannel.read(mIn);
+            } else {
+                read = mChannel.read(mNetIn);
+                if (!unwrap(receiver, now)) {
+                    return;
+                }
+            }
+            if (!deliver(receiver, now)) {
+                return;
+            }
+        } while (read > 0);
+        if (read < 0) {
+            // The server closes idle connections as it sees fit; reconnect on the next query.
+            close();
+        }
+    }
+
+    /**
+     * Decrypts what it can of mNetIn into mIn, handing answers over whenever mIn fills up.
+     *
+     * @return {@code false} if the receiver closed the connection.
+     */
+    private boolean unwrap(Receiver receiver, long now) throws IOException {
+        mNetIn.flip();
+        try {
+            while (mNetIn.hasRemaining()) {
+                final SSLEngineResult result = mEngine.unwrap(mNetIn, mIn);
+                runDelegatedTasks();
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // The rest of the record is still on its way.
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        if (!deliver(receiver, now)) {
+                            return false;
+                        }
+                        continue;
+                    case CLOSED:
+                        throw new SSLException("Upstream closed the TLS session");
+                    default:
+                        break;
+                }
+                if (mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    write();
+                } else if (result.bytesConsumed() == 0 && result.getHandshakeStatus()
+                        != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    return true;
+                }
+            }
+            return true;
+        } finally {
+            // Closing clears the buffers, leaving nothing to keep.
+            if (mChannel != null) {
+                mNetIn.compact();
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Hands every complete answer in mIn over, then keeps the start of the next one.
+     *
+     * @return {@code false} if the receiver closed the connection.
+     */
+    private boolean deliver(Receiver receiver, long now) {
+        final int end = mIn.position();
+        int position = 0;
+        while (position + 2 <= end) {
+            final int length = mIn.getShort(position) & 0xFFFF;
+            if (position + 2 + length > end) {
+                break;
+            }
+            mOutstanding = Math.max(0, mOutstanding - 1);
+            mLastActive = now;
+            receiver.onAnswer(this, mIn, position + 2, length);
+            if (mChannel == null) {
+                return false;
+            }
+            position += 2 + length;
+        }
+        mIn.limit(end).position(position);
+        mIn.compact();
+        return true;
+    }
+
+    private void updateInterest() {
+        if (!mChannel.isConnected()) {
+            mKey.interestOps(SelectionKey.OP_CONNECT);
+        } else {
+            mKey.interestOps(SelectionKey.OP_READ
+                    | (hasPendingWrite() ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /** Whether there is anything to write that the connection is ready to send. */
+    private boolean hasPendingWrite() {
+        if (mEngine == null) {
+            return mOut.position() > 0;
+        }
+        // Queries wait for the handshake, which cannot go on until the server replied.
+        final SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+        return mNetOut.position() > 0 || status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                || (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && mOut.position() > 0);
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable encoder writing a DNS message straight into a {@link ByteBuffer} at absolute
+ * offsets; the counterpart of {@link DnsMessage} for answers synthesized locally.
+ * <p>
+ * A message is built in order: {@link #start}, one question, then records section by section.
+ * Record owner names point back at the question's name, which is what every synthesized answer
+ * needs. Running out of room is remembered rather than thrown, and reported once by
+ * {@link #finish}.
+ */
+final class DnsWriter {
+    // Compression pointer to the question name, which always sits right after the header.
+    private static final int QUESTION_NAME_POINTER = 0xC000 | DnsMessage.HEADER_LENGTH;
+
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mEnd;
+    private int mPosition;
+    private int mSection;
+    private final int[] mCounts = new int[4];
+    private int mRecordData;
+    private boolean mOverflow;
+
+    /**
+     * Starts a message with the given ID and flags in {@code buffer[offset, end)}.
+     */
+    DnsWriter start(ByteBuffer buffer, int offset, int end, int id, int flags) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mEnd = end;
+        mPosition = offset + DnsMessage.HEADER_LENGTH;
+        mSection = 0;
+        mCounts[0] = mCounts[1] = mCounts[2] = mCounts[3] = 0;
+        mOverflow = mPosition > end;
+        if (!mOverflow) {
+            buffer.putShort(offset, (short) id);
+            buffer.putShort(offset + 2, (short) flags);
+        }
+        return this;
+    }
+
+    /** Writes the question of {@code query}, keeping the letter case of its name. */
+    DnsWriter question(DnsMessage query) {
+        final int length = query.questionEnd() - query.questionNameOffset();
+        final ByteBuffer src = query.buffer();
+        if (beginQuestion(length)) {
+            for (int i = 0; i < length; i++) {
+                mBuffer.put(mPosition + i, src.get(query.questionNameOffset() + i));
+            }
+            mPosition += length;
+        }
+        return this;
+    }
+
+    /** Writes a question already in wire format: name, type and class. */
+    DnsWriter question(byte[] question) {
+        if (beginQuestion(question.length)) {
+            for (int i = 0; i < question.length; i++) {
+                mBuffer.put(mPosition + i, question[i]);
+            }
+            mPosition += question.length;
+        }
+        return this;
+    }
+
+    /** Writes a question for {@code name} in dotted form. */
+    DnsWriter question(CharSequence name, int type, int qclass) {
+        if (beginQuestion(0)) {
+            writeName(name);
+            if (room(4)) {
+                mBuffer.putShort(mPosition, (short) type);
+                mBuffer.putShort(mPosition + 2, (short) qclass);
+                mPosition += 4;
+            }
+        }
+        return this;
+    }
+
+    /** Appends a record for the question's name whose data is {@code data}. */
+    DnsWriter record(int section, int type, int ttl, byte[] data) {
+        if (beginRecord(section, type, ttl) && room(data.length)) {
+            for (int i = 0; i < data.length; i++) {
+                mBuffer.put(mPosition + i, data[i]);
+            }
+            mPosition += data.length;
+            endRecord();
+        }
+        return this;
+    }
+
+    /** Appends an A record for the question's name. */
+    DnsWriter ipv4Record(int section, int ttl, int address) {
+        if (beginRecord(section, DnsMessage.TYPE_A, ttl) && room(4)) {
+            mBuffer.putInt(mPosition, address);
+            mPosition += 4;
+            endRecord();
+        }
+        return this;
+    }
+
+    /**
+     * Appends a record for the question's name whose data is the domain name {@code target},
+     * such as PTR or CNAME.
+     */
+    DnsWriter nameRecord(int section, int type, int ttl, CharSequence target) {
+        if (beginRecord(section, type, ttl)) {
+            writeName(target);
+            endRecord();
+        }
+        return this;
+    }
+
+    /**
+     * Appends an SOA record for the question's name, as needed for negative answers to be
+     * cached (RFC 2308). Both the primary server and the mailbox are the question's name.
+     */
+    DnsWriter soaRecord(int section, int ttl, int minimum) {
+        if (beginRecord(section, DnsMessage.TYPE_SOA, ttl) && room(4 + 20)) {
+            mBuffer.putShort(mPosition, (short) QUESTION_NAME_POINTER);
+            mBuffer.putShort(mPosition + 2, (short) QUESTION_NAME_POINTER);
+            // Serial, refresh, retry and expire mean nothing here.
+            mBuffer.putInt(mPosition + 4, 1);
+            mBuffer.putInt(mPosition + 8, 0);
+            mBuffer.putInt(mPosition + 12, 0);
+            mBuffer.putInt(mPosition + 16, 0);
+            mBuffer.putInt(mPosition + 20, minimum);
+            mPosition += 24;
+            endRecord();
+        }
+        return this;
+    }
+
+    /**
+     * Fills in the section counts.
+     *
+     * @return the length of the message, or -1 if it did not fit.
+     */
+    int finish() {
+        if (mOverflow) {
+            return -1;
+        }
+        for (int i = 0; i < 4; i++) {
+            mBuffer.putShort(mOffset + 4 + 2 * i, (short) mCounts[i]);
+        }
+        return mPosition - mOffset;
+    }
+
+    private boolean beginQuestion(int length) {
+        if (mSection != 0 || mCounts[0] != 0) {
+            throw new IllegalStateException("One question per message");
+        }
+        mCounts[0] = 1;
+        return room(length);
+    }
+
+    private boolean beginRecord(int section, int type, int ttl) {
+        if (section < mSection || mCounts[0] == 0) {
+            throw new IllegalStateException("Records out of order");
+        }
+        mSection = section;
+        if (!room(12)) {
+            return false;
+        }
+        mBuffer.putShort(mPosition, (short) QUESTION_NAME_POINTER);
+        mBuffer.putShort(mPosition + 2, (short) type);
+        mBuffer.putShort(mPosition + 4, (short) DnsMessage.CLASS_IN);
+        mBuffer.putInt(mPosition + 6, ttl);
+        // The data length is filled in by endRecord().
+        mPosition += 12;
+        mRecordData = mPosition;
+        return true;
+    }
+
+    private void endRecord() {
+        if (!mOverflow) {
+            mBuffer.putShort(mRecordData - 2, (short) (mPosition - mRecordData));
+            mCounts[mSection]++;
+        }
+    }
+
+    private void writeName(CharSequence name) {
+        int label = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i == name.length() || name.charAt(i) == '.') {
+                final int length = i - label;
+                if (length == 0) {
+                    // Root or trailing dot.
+                    label = i + 1;
+                    continue;
+                }
+                if (length > 63 || !room(1 + length)) {
+                    mOverflow = true;
+                    return;
+                }
+                mBuffer.put(mPosition++, (byte) length);
+                for (int j = label; j < i; j++) {
+                    mBuffer.put(mPosition++, (byte) name.charAt(j));
+                }
+                label = i + 1;
+            }
+        }
+        if (room(1)) {
+            mBuffer.put(mPosition++, (byte) 0);
+        }
+    }
+
+    private boolean room(int length) {
+        if (mOverflow || mPosition + length > mEnd) {
+            mOverflow = true;
+            return false;
+        }
+        return true;
+    }
+}
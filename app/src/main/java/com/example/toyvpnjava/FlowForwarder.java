@@ -0,0 +1,946 @@
+package com.example.toyvpnjava;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays the TCP and UDP traffic read from the tun interface, DNS aside, over sockets protected
+ * from the VPN, so that the whole device can be routed through it: a user-space NAT.
+ * <p>
+ * TCP connections from apps are terminated here by a minimal TCP state machine and relayed
+ * over one socket each to their destination. The SYN is only answered once that socket
+ * connected, so apps see refused or unreachable destinations as such. Data the server socket
+ * cannot take yet is acknowledged into a per-flow buffer, and the advertised window shrinks
+ * with it; data from the server goes out in segments no larger than the app's MSS and window,
+ * and is kept until acknowledged. Lost segments are sent again, go-back-N, after a timeout or
+ * three duplicate acknowledgments. There are no options besides MSS, no out-of-order queue and
+ * no congestion control: the tun interface is a local link, losses are rare, and the sockets
+ * behind it do their own congestion control.
+ * <p>
+ * UDP flows get a connected socket each, closed after {@link #UDP_IDLE_TIMEOUT_MS} without
+ * traffic. Other protocols, such as ICMP, are dropped, and so are IP fragments: relaying the
+ * first one as the whole datagram would deliver a truncated payload, and there is no
+ * reassembly here. Apps rarely fragment, since the tun MTU bounds what they send.
+ * <p>
+ * Flows live in a {@link FlowTable}, and their state in arrays indexed by flow id, so the
+ * packet path allocates nothing: sockets and flow buffers come with a flow, not a packet.
+ * Like the {@link DnsForwarder}, this stage has a thread of its own, waiting on a
+ * {@link Selector} for the sockets and on its input rings for packets. Each flow has two timers
+ * on a {@link TimerWheel}: one for retransmits, and one for its idle timeout that is only
+ * looked at again when it goes off, so that traffic does not reschedule it packet by packet.
+ */
+class FlowForwarder extends PacketStage implements Closeable {
+    private static final String TAG = FlowForwarder.class.getSimpleName();
+
+    // Per-flow states. TCP half-closes are tracked with the flags below instead.
+    private static final byte STATE_FREE = 0;
+    private static final byte STATE_UDP = 1;
+    // The app's SYN came in and the server socket is connecting.
+    private static final byte STATE_CONNECTING = 2;
+    // The SYN-ACK went out, waiting for the app to acknowledge it.
+    private static final byte STATE_SYN_RECEIVED = 3;
+    private static final byte STATE_ESTABLISHED = 4;
+
+    // The app sent its FIN, and it was received.
+    private static final int FLAG_CLIENT_FIN = 1;
+    // The server closed its side of the connection.
+    private static final int FLAG_SERVER_EOF = 1 << 1;
+    // A FIN went to the app, counted in mSndNxt, and was acknowledged or not yet.
+    private static final int FLAG_FIN_SENT = 1 << 2;
+    private static final int FLAG_FIN_ACKED = 1 << 3;
+    private static final int FLAG_OUTPUT_SHUT = 1 << 4;
+    // Reading was stopped because every packet buffer was in flight.
+    private static final int FLAG_STARVED = 1 << 5;
+
+    /** Time after which a UDP flow without traffic is forgotten (RFC 4787, REQ-5). */
+    static final long UDP_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+    /** Time after which a TCP flow without traffic is dropped (RFC 5382, REQ-5). */
+    private static final long TCP_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(124);
+    /** Time a server gets to accept a connection before the app gets a reset. */
+    private static final long CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    /** Resolution of the flow timers; well below the shortest timeout, RTO_MS. */
+    private static final long TIMER_TICK_MS = 10;
+    /** Time to back off when every packet buffer is in flight. */
+    private static final long STARVED_WAIT_MS = 1;
+    /**
+     * Retransmission timeout, doubled on every further timeout. The tun interface is a local
+     * link, so no round-trip time is measured: this just needs to be above scheduling delays.
+     */
+    private static final long RTO_MS = 200;
+    private static final long MAX_RTO_MS = TimeUnit.SECONDS.toMillis(5);
+    /** Consecutive timeouts after which the app is assumed gone and the flow reset. */
+    private static final int MAX_RETRANSMITS = 8;
+    private static final int DUPLICATE_ACKS = 3;
+    // MSS assumed for apps that send none (RFC 1122, 4.2.2.6).
+    private static final int DEFAULT_MSS = 536;
+    /** Server data buffered per TCP flow, sent or not, until the app acknowledges it. */
+    private static final int SEND_BUFFER_SIZE = 32 * 1024;
+    /** App data buffered per TCP flow while the server socket does not take it. */
+    private static final int RECEIVE_BUFFER_SIZE = 32 * 1024;
+
+    private final VpnService mService;
+    private final BufferPool mBuffers;
+    private final Metrics mMetrics;
+    private final ReverseIndex mReverseIndex;
+    private final Link mReplies;
+    private final Selector mSelector;
+    private final FlowTable mFlows;
+    private final IpPacket mPacket = new IpPacket();
+    // Set when the network changed, so that flows over the old one get reset.
+    private volatile boolean mNetworkChanged;
+    // Two timers per flow, see idleTimer() and retransmitTimer().
+    private final TimerWheel mTimers;
+    private final TimerWheel.Listener mTimerListener = this::onTimer;
+    // Some flow stopped reading for lack of packet buffers.
+    private boolean mStarved;
+    // Packets passed on since the last flush of mReplies.
+    private int mReplyCount;
+    // Xorshift state for initial sequence numbers.
+    private long mRandom = System.nanoTime() | 1;
+
+    // Per-flow state, indexed by flow id.
+    private final byte[] mState;
+    private final int[] mFlags;
+    private final SelectableChannel[] mChannels;
+    private final SelectionKey[] mKeys;
+    private final long[] mLastActive;
+    // Next sequence number expected from the app.
+    private final int[] mRcvNxt;
+    // Oldest sequence number sent to the app and not acknowledged, the next one to send, and
+    // the one after the highest sent, which mSndNxt falls back from when retransmitting.
+    private final int[] mSndUna;
+    private final int[] mSndNxt;
+    private final int[] mSndMax;
+    // The app's receive window from mSndUna on, its MSS, and the window last advertised to it.
+    private final int[] mWindow;
+    private final int[] mMss;
+    private final int[] mAdvertised;
+    // Server data from mSndUna on, the part up to mSndNxt sent; allocated on first read.
+    private final ByteBuffer[] mSendBuffers;
+    // App data the server socket did not take yet; allocated when first needed.
+    private final ByteBuffer[] mReceiveBuffers;
+    // Timeouts since data was last acknowledged.
+    private final int[] mRetransmits;
+    private final int[] mDuplicateAcks;
+
+    /**
+     * @param service the service protecting the flow sockets from the VPN.
+     * @param maxFlows the number of flows relayed at once; beyond that, new ones are refused.
+     * @param reverseIndex the index naming the servers in debug logs, or {@code null}.
+     * @param replies the way to the writer.
+     */
+    FlowForwarder(VpnService service, BufferPool buffers, int batchSize, Metrics metrics,
+            int maxFlows, ReverseIndex reverseIndex, Link replies) throws IOException {
+        super(batchSize);
+        mService = service;
+        mBuffers = buffers;
+        mMetrics = metrics;
+        mReverseIndex = reverseIndex;
+        mReplies = replies;
+        mFlows = new FlowTable(maxFlows);
+        mState = new byte[maxFlows];
+        mFlags = new int[maxFlows];
+        mChannels = new SelectableChannel[maxFlows];
+        mKeys = new SelectionKey[maxFlows];
+        mLastActive = new long[maxFlows];
+        mRcvNxt = new int[maxFlows];
+        mSndUna = new int[maxFlows];
+        mSndNxt = new int[maxFlows];
+        mSndMax = new int[maxFlows];
+        mWindow = new int[maxFlows];
+        mMss = new int[maxFlows];
+        mAdvertised = new int[maxFlows];
+        mSendBuffers = new ByteBuffer[maxFlows];
+        mReceiveBuffers = new ByteBuffer[maxFlows];
+        mRetransmits = new int[maxFlows];
+        mDuplicateAcks = new int[maxFlows];
+        mTimers = new TimerWheel(2 * maxFlows, TIMER_TICK_MS, System.currentTimeMillis());
+        mSelector = Selector.open();
+    }
+
+    /**
+     * Resets every flow, whose sockets were bound to a network that went away, so that apps
+     * reconnect at once instead of waiting for timeouts.
+     */
+    void invalidate() {
+        mNetworkChanged = true;
+        mSelector.wakeup();
+    }
+
+    /** Relays a TCP or UDP packet passed on by a {@link PacketClassifier}. */
+    @Override
+    void process(ByteBuffer packet) {
+        if (!mPacket.wrap(packet, packet.position(), packet.remaining())) {
+            mBuffers.release(packet);
+            return;
+        }
+        if (mPacket.isFragment()) {
+            mMetrics.flowFragmentsDropped.increment();
+            mBuffers.release(packet);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (mPacket.isTcp()) {
+            onTcp(packet, now);
+            return;
+        }
+        if (mPacket.isUdp()) {
+            onUdp(packet, now);
+        }
+        mBuffers.release(packet);
+    }
+
+    @Override
+    void wake() {
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                if (mNetworkChanged) {
+                    mNetworkChanged = false;
+                    closeAll();
+                }
+                final int processed = drainInputs();
+                if (mStarved) {
+                    resumeStarved();
+                }
+                // No timer scheduled means no flow, so nothing to wake up for but packets.
+                final long timeout = mStarved
+                        ? STARVED_WAIT_MS : mTimers.nextExpiry() - System.currentTimeMillis();
+                if (processed == 0 && timeout > 0 && prepareToWait()) {
+                    mSelector.select(timeout);
+                    doneWaiting();
+                } else {
+                    mSelector.selectNow();
+                }
+                for (SelectionKey key : mSelector.selectedKeys()) {
+                    final int flow = (Integer) key.attachment();
+                    // The flow may have been closed, and its id reused, by an earlier key.
+                    if (key.isValid() && mKeys[flow] == key) {
+                        onReady(flow, key.readyOps(), System.currentTimeMillis());
+                    }
+                }
+                mSelector.selectedKeys().clear();
+                flushReplies();
+                if (mTimers.advance(System.currentTimeMillis(), mTimerListener) > 0) {
+                    flushReplies();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (mSelector.isOpen()) {
+                Log.e(TAG, "Flow forwarding failed", e);
+            }
+        }
+    }
+
+    private void onUdp(ByteBuffer packet, long now) {
+        int flow = mFlows.find(mPacket);
+        if (flow < 0) {
+            final DatagramChannel channel;
+            try {
+                channel = DatagramChannel.open();
+            } catch (IOException e) {
+                mMetrics.flowsRefused.increment();
+                return;
+            }
+            flow = open(channel, STATE_UDP, now);
+            if (flow < 0) {
+                return;
+            }
+            updateInterest(flow);
+        }
+        mLastActive[flow] = now;
+        packet.limit(mPacket.payloadOffset() + mPacket.payloadLength())
+                .position(mPacket.payloadOffset());
+        try {
+            ((DatagramChannel) mChannels[flow]).write(packet);
+        } catch (IOException e) {
+            // Typically ICMP port unreachable for an earlier datagram; the next one reopens.
+            if (isDebugging) Log.e(TAG, "Flow socket failed", e);
+            close(flow);
+        }
+    }
+
+    private void onTcp(ByteBuffer packet, long now) {
+        final int flags = mPacket.tcpFlags();
+        final int flow = mFlows.find(mPacket);
+        if (flow < 0) {
+            if ((flags & (IpPacket.TCP_SYN | IpPacket.TCP_ACK | IpPacket.TCP_RST))
+                    == IpPacket.TCP_SYN) {
+                if (!openTcp(now)) {
+                    // Refused at once, rather than left to time out.
+                    replyReset(packet);
+                    return;
+                }
+            } else if ((flags & IpPacket.TCP_RST) == 0) {
+                // Left over from a flow that is gone, e.g. after a network change.
+                replyReset(packet);
+                return;
+            }
+            mBuffers.release(packet);
+            return;
+        }
+        // The connect timeout runs from open(), however often the app resends its SYN.
+        if (mState[flow] != STATE_CONNECTING) {
+            mLastActive[flow] = now;
+        }
+        if ((flags & IpPacket.TCP_RST) != 0) {
+            close(flow);
+        } else if (mState[flow] == STATE_SYN_RECEIVED) {
+            if ((flags & IpPacket.TCP_SYN) != 0) {
+                // The SYN-ACK got lost.
+                sendSynAck(flow, now);
+            } else if ((flags & IpPacket.TCP_ACK) != 0
+                    && mPacket.tcpAcknowledgment() == mSndNxt[flow]) {
+                mSndUna[flow] = mSndNxt[flow];
+                mTimers.cancel(retransmitTimer(flow));
+                mRetransmits[flow] = 0;
+                mState[flow] = STATE_ESTABLISHED;
+                updateInterest(flow);
+                onSegment(flow, now);
+            }
+        } else if (mState[flow] == STATE_ESTABLISHED) {
+            onSegment(flow, now);
+        }
+        mBuffers.release(packet);
+    }
+
+    /** Handles the segment in mPacket for {@code flow}, which is established. */
+    private void onSegment(int flow, long now) {
+        final int flags = mPacket.tcpFlags();
+        final int length = mPacket.payloadLength();
+        final boolean fin = (flags & IpPacket.TCP_FIN) != 0;
+        if ((flags & IpPacket.TCP_ACK) != 0) {
+            onAck(flow, mPacket.tcpAcknowledgment(), mPacket.tcpWindow(), length > 0 || fin,
+                    now);
+        }
+        if (length > 0 || fin) {
+            // Bytes of the segment that were received already, negative past a gap.
+            final int seen = mRcvNxt[flow] - mPacket.tcpSequence();
+            if (seen >= 0 && (mFlags[flow] & FLAG_CLIENT_FIN) == 0) {
+                final int accepted = seen < length
+                        ? receive(flow, mPacket.payloadOffset() + seen, length - seen) : 0;
+                if (mState[flow] == STATE_FREE) {
+                    return;
+                }
+                mRcvNxt[flow] += accepted;
+                if (fin && seen + accepted == length) {
+                    mRcvNxt[flow]++;
+                    mFlags[flow] |= FLAG_CLIENT_FIN;
+                    shutdownOutput(flow);
+                }
+            }
+            // Also a duplicate acknowledgment for segments past a gap, asking for the gap.
+            sendAck(flow);
+        }
+        if (mState[flow] != STATE_FREE) {
+            sendData(flow, now);
+            closeIfDone(flow);
+        }
+    }
+
+    private void onAck(int flow, int ack, int window, boolean carriesData, long now) {
+        final int acked = ack - mSndUna[flow];
+        final int inFlight = mSndMax[flow] - mSndUna[flow];
+        if (acked > 0 && acked <= inFlight) {
+            final ByteBuffer sendBuffer = mSendBuffers[flow];
+            final int dataAcked = Math.min(acked, sendBuffer == null ? 0 : sendBuffer.position());
+            if (dataAcked > 0) {
+                sendBuffer.flip().position(dataAcked);
+                sendBuffer.compact();
+            }
+            if (acked > dataAcked) {
+                // Past the data, so the FIN, even if being sent again.
+                mFlags[flow] |= FLAG_FIN_SENT | FLAG_FIN_ACKED;
+            }
+            mSndUna[flow] = ack;
+            if (mSndNxt[flow] - ack < 0) {
+                // The app had what was being sent again.
+                mSndNxt[flow] = ack;
+            }
+            mRetransmits[flow] = 0;
+            mDuplicateAcks[flow] = 0;
+            mTimers.cancel(retransmitTimer(flow));
+            // Room in the send buffer again.
+            updateInterest(flow);
+        } else if (acked == 0 && inFlight > 0 && !carriesData && window == mWindow[flow]
+                && ++mDuplicateAcks[flow] == DUPLICATE_ACKS) {
+            retransmit(flow, now);
+        }
+        if (window == 0) {
+            // The app answers the probes of its closed window, so it is still there.
+            mRetransmits[flow] = 0;
+        }
+        mWindow[flow] = window;
+    }
+
+    /**
+     * Passes app data at {@code mPacket.buffer()[offset, offset + length)} on to the server
+     * socket, buffering what it does not take yet.
+     *
+     * @return the number of bytes accepted, which the app may consider received.
+     */
+    private int receive(int flow, int offset, int length) {
+        final ByteBuffer buf = mPacket.buffer();
+        ByteBuffer pending = mReceiveBuffers[flow];
+        int written = 0;
+        if (pending == null || pending.position() == 0) {
+            buf.limit(offset + length).position(offset);
+            try {
+                written = ((SocketChannel) mChannels[flow]).write(buf);
+            } catch (IOException e) {
+                if (isDebugging) Log.e(TAG, "Flow socket failed", e);
+                reset(flow);
+                return 0;
+            }
+            if (written == length) {
+                return written;
+            }
+        }
+        if (pending == null) {
+            pending = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+            mReceiveBuffers[flow] = pending;
+        }
+        final int copied = Math.min(length - written, pending.remaining());
+        buf.limit(offset + written + copied).position(offset + written);
+        pending.put(buf);
+        updateInterest(flow);
+        return written + copied;
+    }
+
+    /** Handles the readiness of the socket of {@code flow}. */
+    private void onReady(int flow, int readyOps, long now) {
+        if (mState[flow] == STATE_UDP) {
+            receiveUdp(flow, now);
+            return;
+        }
+        if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+            onConnected(flow, now);
+            return;
+        }
+        if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+            drainReceiveBuffer(flow, now);
+        }
+        if (mState[flow] == STATE_ESTABLISHED && (readyOps & SelectionKey.OP_READ) != 0) {
+            readServer(flow, now);
+            if (mState[flow] == STATE_ESTABLISHED) {
+                sendData(flow, now);
+                closeIfDone(flow);
+            }
+        }
+    }
+
+    private void onConnected(int flow, long now) {
+        try {
+            if (!((SocketChannel) mChannels[flow]).finishConnect()) {
+                return;
+            }
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Cannot connect flow " + describe(flow, now), e);
+            reset(flow);
+            return;
+        }
+        mState[flow] = STATE_SYN_RECEIVED;
+        mLastActive[flow] = now;
+        updateInterest(flow);
+        sendSynAck(flow, now);
+    }
+
+    /** Reads what the server sent into the send buffer of {@code flow}, as far as it fits. */
+    private void readServer(int flow, long now) {
+        ByteBuffer sendBuffer = mSendBuffers[flow];
+        if (sendBuffer == null) {
+            sendBuffer = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+            mSendBuffers[flow] = sendBuffer;
+        }
+        try {
+            if (((SocketChannel) mChannels[flow]).read(sendBuffer) < 0) {
+                mFlags[flow] |= FLAG_SERVER_EOF;
+            }
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Flow socket failed", e);
+            reset(flow);
+            return;
+        }
+        mLastActive[flow] = now;
+        updateInterest(flow);
+    }
+
+    /** Sends the app what the server socket did not take yet, as far as it takes it now. */
+    private void drainReceiveBuffer(int flow, long now) {
+        final ByteBuffer pending = mReceiveBuffers[flow];
+        pending.flip();
+        try {
+            ((SocketChannel) mChannels[flow]).write(pending);
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Flow socket failed", e);
+            reset(flow);
+            return;
+        } finally {
+            pending.compact();
+        }
+        shutdownOutput(flow);
+        // Lets the app know once the window grew enough to be worth it (RFC 1122, 4.2.3.3).
+        if (advertisedWindow(flow) - mAdvertised[flow]
+                >= Math.min(RECEIVE_BUFFER_SIZE / 2, mMss[flow])) {
+            sendAck(flow);
+        }
+        updateInterest(flow);
+        closeIfDone(flow);
+    }
+
+    /** Sends the server data of {@code flow} the app's window has room for. */
+    private void sendData(int flow, long now) {
+        final ByteBuffer sendBuffer = mSendBuffers[flow];
+        final int buffered = sendBuffer == null ? 0 : sendBuffer.position();
+        while ((mFlags[flow] & FLAG_FIN_SENT) == 0) {
+            final int sent = mSndNxt[flow] - mSndUna[flow];
+            final int length = Math.min(Math.min(buffered, mWindow[flow]) - sent, mMss[flow]);
+            if (length > 0) {
+                if (!sendSegment(flow, mSndNxt[flow], length,
+                        IpPacket.TCP_ACK | IpPacket.TCP_PSH)) {
+                    break;
+                }
+                advance(flow, length);
+            } else if ((mFlags[flow] & FLAG_SERVER_EOF) != 0 && sent == buffered) {
+                if (!sendSegment(flow, mSndNxt[flow], 0, IpPacket.TCP_ACK | IpPacket.TCP_FIN)) {
+                    break;
+                }
+                advance(flow, 1);
+                mFlags[flow] |= FLAG_FIN_SENT;
+            } else {
+                break;
+            }
+        }
+        // Data in flight, or waiting for a closed window to open, which a probe finds out.
+        final boolean waiting = mSndNxt[flow] != mSndUna[flow] || buffered > 0;
+        if (!waiting) {
+            mTimers.cancel(retransmitTimer(flow));
+        } else if (!mTimers.isScheduled(retransmitTimer(flow))) {
+            mTimers.schedule(retransmitTimer(flow), now + rto(flow));
+        }
+    }
+
+    private void advance(int flow, int length) {
+        mSndNxt[flow] += length;
+        if (mSndNxt[flow] - mSndMax[flow] > 0) {
+            mSndMax[flow] = mSndNxt[flow];
+        }
+    }
+
+    /**
+     * Sends the unacknowledged data of {@code flow} again, from the oldest on. Further
+     * duplicate acknowledgments do not trigger this again until new data is acknowledged.
+     */
+    private void retransmit(int flow, long now) {
+        mTimers.cancel(retransmitTimer(flow));
+        mSndNxt[flow] = mSndUna[flow];
+        mFlags[flow] &= ~FLAG_FIN_SENT;
+        final ByteBuffer sendBuffer = mSendBuffers[flow];
+        if (mWindow[flow] == 0 && sendBuffer != null && sendBuffer.position() > 0) {
+            // Probes the closed window with a byte beyond it (RFC 1122, 4.2.2.17).
+            if (sendSegment(flow, mSndNxt[flow], 1, IpPacket.TCP_ACK)) {
+                advance(flow, 1);
+            }
+        }
+        sendData(flow, now);
+    }
+
+    private void sendSynAck(int flow, long now) {
+        mSndNxt[flow] = mSndUna[flow];
+        sendSegment(flow, mSndUna[flow], 0, IpPacket.TCP_SYN | IpPacket.TCP_ACK);
+        mSndNxt[flow] = mSndUna[flow] + 1;
+        mSndMax[flow] = mSndNxt[flow];
+        mTimers.schedule(retransmitTimer(flow), now + rto(flow));
+    }
+
+    private void sendAck(int flow) {
+        sendSegment(flow, mSndNxt[flow], 0, IpPacket.TCP_ACK);
+    }
+
+    /**
+     * Sends the app a segment of {@code flow} starting at {@code sequence}, with
+     * {@code length} bytes from the send buffer.
+     *
+     * @return {@code false} if no packet buffer was free.
+     */
+    private boolean sendSegment(int flow, int sequence, int length, int flags) {
+        final ByteBuffer packet = mBuffers.acquire();
+        if (packet == null) {
+            starve(flow);
+            return false;
+        }
+        final int offset = BufferPool.HEADROOM;
+        final boolean syn = (flags & IpPacket.TCP_SYN) != 0;
+        if (length > 0) {
+            packet.position(offset + mFlows.ipHeaderLength(flow) + IpPacket.TCP_MIN_HEADER_LENGTH);
+            packet.put(mSendBuffers[flow].array(), sequence - mSndUna[flow], length);
+        }
+        final int window = advertisedWindow(flow);
+        mAdvertised[flow] = window;
+        final int packetLength = PacketWriter.writeTcp(packet, offset, mFlows, flow, sequence,
+                mRcvNxt[flow], flags, window, syn ? mMss[flow] : 0, length);
+        packet.limit(offset + packetLength).position(offset);
+        passReply(packet);
+        return true;
+    }
+
+    /** Receive window of {@code flow}: what is left of its receive buffer. */
+    private int advertisedWindow(int flow) {
+        final ByteBuffer pending = mReceiveBuffers[flow];
+        return Math.min(0xFFFF, RECEIVE_BUFFER_SIZE - (pending == null ? 0 : pending.position()));
+    }
+
+    private long rto(int flow) {
+        return Math.min(MAX_RTO_MS, RTO_MS << Math.min(mRetransmits[flow], 16));
+    }
+
+    /** Reads the datagrams the server of {@code flow} sent and passes them on to the app. */
+    private void receiveUdp(int flow, long now) {
+        final DatagramChannel channel = (DatagramChannel) mChannels[flow];
+        final int offset = BufferPool.HEADROOM;
+        final int payload = offset + mFlows.ipHeaderLength(flow) + IpPacket.UDP_HEADER_LENGTH;
+        while (true) {
+            final ByteBuffer packet = mBuffers.acquire();
+            if (packet == null) {
+                starve(flow);
+                return;
+            }
+            packet.limit(offset + mBuffers.packetSize()).position(payload);
+            final int read;
+            try {
+                read = channel.read(packet);
+            } catch (IOException e) {
+                mBuffers.release(packet);
+                if (isDebugging) Log.e(TAG, "Flow socket failed", e);
+                close(flow);
+                return;
+            }
+            // A datagram filling the buffer to the brim may well have been cut short.
+            if (read <= 0 || !packet.hasRemaining()) {
+                mBuffers.release(packet);
+                if (read <= 0) {
+                    return;
+                }
+                continue;
+            }
+            mLastActive[flow] = now;
+            final int length = PacketWriter.writeUdp(packet, offset, mFlows, flow, read);
+            packet.limit(offset + length).position(offset);
+            passReply(packet);
+        }
+    }
+
+    /**
+     * Opens a flow for the TCP SYN in mPacket and starts connecting to its server; the SYN is
+     * answered once that succeeds.
+     *
+     * @return {@code false} if the flow was refused.
+     */
+    private boolean openTcp(long now) {
+        final SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException e) {
+            mMetrics.flowsRefused.increment();
+            return false;
+        }
+        final int mss = mPacket.tcpMss();
+        final int flow = open(channel, STATE_CONNECTING, now);
+        if (flow < 0) {
+            return false;
+        }
+        mRcvNxt[flow] = mPacket.tcpSequence() + 1;
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 7;
+        mRandom ^= mRandom << 17;
+        mSndUna[flow] = (int) mRandom;
+        mSndNxt[flow] = mSndUna[flow];
+        // Window scaling is off, since the SYN-ACK does not offer it (RFC 7323, 2.2).
+        mWindow[flow] = mPacket.tcpWindow();
+        mMss[flow] = Math.min(mss > 0 ? mss : DEFAULT_MSS, mBuffers.packetSize()
+                - mFlows.ipHeaderLength(flow) - IpPacket.TCP_MIN_HEADER_LENGTH);
+        if (channel.isConnected()) {
+            // Loopback and the like connect at once.
+            onConnected(flow, now);
+        } else {
+            updateInterest(flow);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a flow for the packet in mPacket, relayed over {@code channel}: protects it,
+     * connects it to the server and registers it with the selector.
+     *
+     * @return the flow, or -1 if there is no room for it or the channel failed, in which case
+     *         it is closed.
+     */
+    private int open(SelectableChannel channel, byte state, long now) {
+        final int flow = mFlows.add(mPacket);
+        if (flow < 0) {
+            if (isDebugging) Log.e(TAG, "Too many flows, refusing one");
+            mMetrics.flowsRefused.increment();
+            UpstreamSocketPool.closeQuietly(channel);
+            return -1;
+        }
+        try {
+            channel.configureBlocking(false);
+            if (channel instanceof SocketChannel) {
+                final SocketChannel socket = (SocketChannel) channel;
+                if (!mService.protect(socket.socket())) {
+                    throw new IOException("Cannot protect flow socket");
+                }
+                socket.connect(mFlows.server(flow));
+            } else {
+                final DatagramChannel datagram = (DatagramChannel) channel;
+                if (!mService.protect(datagram.socket())) {
+                    throw new IOException("Cannot protect flow socket");
+                }
+                datagram.connect(mFlows.server(flow));
+            }
+            mKeys[flow] = channel.register(mSelector, 0, flow);
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Cannot open flow socket", e);
+            mMetrics.flowsRefused.increment();
+            UpstreamSocketPool.closeQuietly(channel);
+            mFlows.remove(flow);
+            return -1;
+        }
+        mChannels[flow] = channel;
+        mState[flow] = state;
+        mLastActive[flow] = now;
+        mTimers.schedule(idleTimer(flow), now + idleTimeout(flow));
+        mMetrics.flowsOpened.increment();
+        if (isDebugging) Log.i(TAG, "Opened flow " + describe(flow, now));
+        return flow;
+    }
+
+    /** Describes the server of {@code flow}, with its name if known; for logs only. */
+    private String describe(int flow, long now) {
+        final StringBuilder sb = new StringBuilder(mFlows.protocol(flow) == IpPacket.PROTOCOL_TCP
+                ? "TCP " : "UDP ");
+        try {
+            sb.append(mFlows.server(flow));
+        } catch (IOException e) {
+            sb.append('?');
+        }
+        if (mReverseIndex != null) {
+            sb.append(" (");
+            if (!mReverseIndex.lookup(mFlows.serverHigh(flow), mFlows.serverLow(flow), now, sb)) {
+                sb.append("unknown");
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    /** Sets which readiness of the socket of {@code flow} is waited for, after its state. */
+    private void updateInterest(int flow) {
+        int ops = 0;
+        final boolean starved = (mFlags[flow] & FLAG_STARVED) != 0;
+        if (mState[flow] == STATE_UDP) {
+            ops = starved ? 0 : SelectionKey.OP_READ;
+        } else if (mState[flow] == STATE_CONNECTING) {
+            ops = SelectionKey.OP_CONNECT;
+        } else if (mState[flow] == STATE_ESTABLISHED) {
+            final ByteBuffer sendBuffer = mSendBuffers[flow];
+            if (!starved && (mFlags[flow] & FLAG_SERVER_EOF) == 0
+                    && (sendBuffer == null || sendBuffer.hasRemaining())) {
+                ops |= SelectionKey.OP_READ;
+            }
+            final ByteBuffer pending = mReceiveBuffers[flow];
+            if (pending != null && pending.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        if (mKeys[flow].interestOps() != ops) {
+            mKeys[flow].interestOps(ops);
+        }
+    }
+
+    /** Half-closes the server socket of {@code flow} once the app's FIN is due to it. */
+    private void shutdownOutput(int flow) {
+        final ByteBuffer pending = mReceiveBuffers[flow];
+        if ((mFlags[flow] & (FLAG_CLIENT_FIN | FLAG_OUTPUT_SHUT)) != FLAG_CLIENT_FIN
+                || (pending != null && pending.position() > 0)) {
+            return;
+        }
+        mFlags[flow] |= FLAG_OUTPUT_SHUT;
+        try {
+            ((SocketChannel) mChannels[flow]).socket().shutdownOutput();
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Flow socket failed", e);
+            reset(flow);
+        }
+    }
+
+    /** Closes {@code flow} once both sides finished and everything was acknowledged. */
+    private void closeIfDone(int flow) {
+        final int done = FLAG_OUTPUT_SHUT | FLAG_FIN_ACKED;
+        if (mState[flow] != STATE_FREE && (mFlags[flow] & done) == done) {
+            close(flow);
+        }
+    }
+
+    /** Stops reading for {@code flow} until packet buffers come back. */
+    private void starve(int flow) {
+        mFlags[flow] |= FLAG_STARVED;
+        mStarved = true;
+        updateInterest(flow);
+        // The writer returns buffers as it goes.
+        flushReplies();
+    }
+
+    /** Lets the flows that ran out of packet buffers go on. */
+    private void resumeStarved() {
+        mStarved = false;
+        final long now = System.currentTimeMillis();
+        for (int flow = 0; flow < mState.length && !mStarved; flow++) {
+            if ((mFlags[flow] & FLAG_STARVED) == 0) {
+                continue;
+            }
+            mFlags[flow] &= ~FLAG_STARVED;
+            updateInterest(flow);
+            if (mState[flow] == STATE_ESTABLISHED) {
+                sendData(flow, now);
+            }
+        }
+    }
+
+    /** Tells the app of {@code flow} that the connection is gone, and closes it. */
+    private void reset(int flow) {
+        final int flags = IpPacket.TCP_RST | IpPacket.TCP_ACK;
+        if (mState[flow] == STATE_CONNECTING) {
+            // No SYN-ACK went out yet, so the app only checks the acknowledgment.
+            sendSegment(flow, 0, 0, flags);
+        } else if (mState[flow] != STATE_FREE) {
+            sendSegment(flow, mSndNxt[flow], 0, flags);
+        }
+        close(flow);
+    }
+
+    /** Answers the segment in {@code packet}, for no flow, with a reset. */
+    private void replyReset(ByteBuffer packet) {
+        final int length = PacketWriter.writeTcpReset(mPacket);
+        if (length < 0) {
+            mBuffers.release(packet);
+            return;
+        }
+        packet.limit(mPacket.offset() + length).position(mPacket.offset());
+        passReply(packet);
+    }
+
+    private void close(int flow) {
+        if (mState[flow] == STATE_FREE) {
+            return;
+        }
+        mKeys[flow].cancel();
+        UpstreamSocketPool.closeQuietly(mChannels[flow]);
+        mKeys[flow] = null;
+        mChannels[flow] = null;
+        mSendBuffers[flow] = null;
+        mReceiveBuffers[flow] = null;
+        mState[flow] = STATE_FREE;
+        mFlags[flow] = 0;
+        mTimers.cancel(idleTimer(flow));
+        mTimers.cancel(retransmitTimer(flow));
+        mRetransmits[flow] = 0;
+        mDuplicateAcks[flow] = 0;
+        mFlows.remove(flow);
+    }
+
+    /** Resets every TCP flow and closes every UDP one. */
+    private void closeAll() {
+        for (int flow = 0; flow < mState.length; flow++) {
+            if (mState[flow] == STATE_UDP) {
+                close(flow);
+            } else {
+                reset(flow);
+            }
+        }
+        flushReplies();
+    }
+
+    private static int idleTimer(int flow) {
+        return 2 * flow;
+    }
+
+    private static int retransmitTimer(int flow) {
+        return 2 * flow + 1;
+    }
+
+    private long idleTimeout(int flow) {
+        final byte state = mState[flow];
+        return state == STATE_UDP ? UDP_IDLE_TIMEOUT_MS
+                : state == STATE_CONNECTING ? CONNECT_TIMEOUT_MS : TCP_IDLE_TIMEOUT_MS;
+    }
+
+    /** Expires the flow, or retransmits for it, whose timer went off. */
+    private void onTimer(int timer, long timeNow) {
+        final int flow = timer / 2;
+        if (timer == idleTimer(flow)) {
+            final long idleUntil = mLastActive[flow] + idleTimeout(flow);
+            if (idleUntil > timeNow) {
+                mTimers.schedule(timer, idleUntil);
+                return;
+            }
+            if (isDebugging) Log.e(TAG, "Flow timed out: " + describe(flow, timeNow));
+            if (mState[flow] == STATE_UDP) {
+                close(flow);
+            } else {
+                reset(flow);
+            }
+            return;
+        }
+        if (++mRetransmits[flow] > MAX_RETRANSMITS) {
+            reset(flow);
+        } else if (mState[flow] == STATE_SYN_RECEIVED) {
+            sendSynAck(flow, timeNow);
+        } else {
+            mDuplicateAcks[flow] = 0;
+            retransmit(flow, timeNow);
+        }
+    }
+
+    /** Passes the packet in {@code buf} on to the writer, which then owns the buffer. */
+    private void passReply(ByteBuffer buf) {
+        if (!mReplies.send(buf)) {
+            mBuffers.release(buf);
+            return;
+        }
+        if (++mReplyCount == mBatchSize) {
+            flushReplies();
+        }
+    }
+
+    /** Hands the packets passed on so far to the writer as one batch. */
+    private void flushReplies() {
+        if (mReplyCount > 0) {
+            mReplyCount = 0;
+            mReplies.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSelector.close();
+        for (SelectableChannel channel : mChannels) {
+            UpstreamSocketPool.closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.toyvpnjava;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Table of the TCP and UDP flows relayed by a {@link FlowForwarder}, keyed on their 5-tuple as
+ * seen from the tun side: client address and port, server address and port, protocol.
+ * <p>
+ * Each flow gets a small integer id, stable for its lifetime, that the forwarder indexes its
+ * per-flow state arrays with. The 5-tuples are packed into {@link #KEY_LONGS} longs per id,
+ * addresses in the IPv4-mapped form {@link ReverseIndex} uses for IPv4, and found through an
+ * open-addressing index of ids with linear probing. Removal shifts later entries back rather
+ * than leaving tombstones, so lookups stay short however many flows came and went, and
+ * neither lookups nor adds allocate.
+ * <p>
+ * Not thread-safe; the forwarder is its only user.
+ */
+final class FlowTable {
+    // Client address high and low, server address high and low, then protocol and ports.
+    static final int KEY_LONGS = 5;
+    private static final long IPV6_BIT = 1L << 40;
+
+    private final long[] mKeys;
+    // Flow id + 1 per slot, 0 for empty slots; at least twice the capacity, so that probe runs
+    // stay short.
+    private final int[] mIndex;
+    private final int mMask;
+    private final int[] mFree;
+    private int mFreeCount;
+    // Scratch key of the packet being looked up.
+    private final long[] mKey = new long[KEY_LONGS];
+
+    FlowTable(int capacity) {
+        mKeys = new long[capacity * KEY_LONGS];
+        mIndex = new int[Integer.highestOneBit(Math.max(1, capacity) * 4 - 1)];
+        mMask = mIndex.length - 1;
+        mFree = new int[capacity];
+        // Lowest ids first, to keep the state arrays touched compact.
+        for (int i = 0; i < capacity; i++) {
+            mFree[i] = capacity - 1 - i;
+        }
+        mFreeCount = capacity;
+    }
+
+    int capacity() {
+        return mFree.length;
+    }
+
+    /** Number of flows in the table. */
+    int size() {
+        return mFree.length - mFreeCount;
+    }
+
+    /** Returns the id of the flow {@code packet}, a TCP or UDP packet, belongs to, or -1. */
+    int find(IpPacket packet) {
+        packKey(packet, mKey);
+        for (int slot = hash(mKey) & mMask; ; slot = (slot + 1) & mMask) {
+            final int flow = mIndex[slot] - 1;
+            if (flow < 0) {
+                return -1;
+            }
+            if (keyEquals(flow)) {
+                return flow;
+            }
+        }
+    }
+
+    /**
+     * Adds the flow of {@code packet}, which must not be in the table yet.
+     *
+     * @return its id, or -1 if the table is full.
+     */
+    int add(IpPacket packet) {
+        if (mFreeCount == 0) {
+            return -1;
+        }
+        packKey(packet, mKey);
+        final int flow = mFree[--mFreeCount];
+        System.arraycopy(mKey, 0, mKeys, flow * KEY_LONGS, KEY_LONGS);
+        int slot = hash(mKey) & mMask;
+        while (mIndex[slot] != 0) {
+            slot = (slot + 1) & mMask;
+        }
+        mIndex[slot] = flow + 1;
+        return flow;
+    }
+
+    /** Removes {@code flow}; its id may be handed out again by the next {@link #add}. */
+    void remove(int flow) {
+        int slot = slotOf(flow);
+        mIndex[slot] = 0;
+        // Moves back every later entry of the probe run that the hole would hide.
+        for (int next = (slot + 1) & mMask; mIndex[next] != 0; next = (next + 1) & mMask) {
+            final int home = hash(mKeys, (mIndex[next] - 1) * KEY_LONGS) & mMask;
+            if (((next - home) & mMask) >= ((next - slot) & mMask)) {
+                mIndex[slot] = mIndex[next];
+                mIndex[next] = 0;
+                slot = next;
+            }
+        }
+        mFree[mFreeCount++] = flow;
+    }
+
+    private int slotOf(int flow) {
+        int slot = hash(mKeys, flow * KEY_LONGS) & mMask;
+        while (mIndex[slot] != flow + 1) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    int protocol(int flow) {
+        return (int) (mKeys[flow * KEY_LONGS + 4] >>> 32) & 0xFF;
+    }
+
+    boolean isIpv6(int flow) {
+        return (mKeys[flow * KEY_LONGS + 4] & IPV6_BIT) != 0;
+    }
+
+    /** Length of the IP header of packets of {@code flow}, which never carry options. */
+    int ipHeaderLength(int flow) {
+        return isIpv6(flow) ? IpPacket.IPV6_HEADER_LENGTH : IpPacket.IPV4_MIN_HEADER_LENGTH;
+    }
+
+    int clientPort(int flow) {
+        return (int) (mKeys[flow * KEY_LONGS + 4] >>> 16) & 0xFFFF;
+    }
+
+    int serverPort(int flow) {
+        return (int) mKeys[flow * KEY_LONGS + 4] & 0xFFFF;
+    }
+
+    /** High half of the server address, as {@link ReverseIndex} keys it. */
+    long serverHigh(int flow) {
+        return mKeys[flow * KEY_LONGS + 2];
+    }
+
+    /** Low half of the server address, as {@link ReverseIndex} keys it. */
+    long serverLow(int flow) {
+        return mKeys[flow * KEY_LONGS + 3];
+    }
+
+    /** Returns the address the flow's packets are sent to, for the socket relaying them. */
+    InetSocketAddress server(int flow) throws UnknownHostException {
+        final int key = flow * KEY_LONGS;
+        final byte[] address;
+        if (isIpv6(flow)) {
+            address = ByteBuffer.allocate(16).putLong(mKeys[key + 2]).putLong(mKeys[key + 3])
+                    .array();
+        } else {
+            address = ByteBuffer.allocate(4).putInt((int) mKeys[key + 3]).array();
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(address), serverPort(flow));
+    }
+
+    /**
+     * Writes the addresses of a packet from the server of {@code flow} to its client:
+     * the server's at {@code buf[source...]}, the client's at {@code buf[destination...]}.
+     */
+    void putReplyAddresses(int flow, ByteBuffer buf, int source, int destination) {
+        final int key = flow * KEY_LONGS;
+        if (isIpv6(flow)) {
+            buf.putLong(source, mKeys[key + 2]).putLong(source + 8, mKeys[key + 3]);
+            buf.putLong(destination, mKeys[key]).putLong(destination + 8, mKeys[key + 1]);
+        } else {
+            buf.putInt(source, (int) mKeys[key + 3]);
+            buf.putInt(destination, (int) mKeys[key + 1]);
+        }
+    }
+
+    /**
+     * Returns the hash of the 5-tuple of {@code packet}, the one the table places flows by, so
+     * that every packet of a flow goes to the same of several consumers it is spread over.
+     * Packets without a transport header hash on their addresses and protocol alone: all the
+     * fragments of a datagram, the first included (see {@link IpPacket#isFragment}), then go
+     * the same way, and in order.
+     *
+     * @param key scratch of {@link #KEY_LONGS}, which each thread hashing has its own of.
+     */
+    static int hash(IpPacket packet, long[] key) {
+        packKey(packet, key);
+        return hash(key, 0);
+    }
+
+    private static void packKey(IpPacket packet, long[] key) {
+        final ByteBuffer buf = packet.buffer();
+        final int source = packet.sourceAddressOffset();
+        final int destination = packet.destinationAddressOffset();
+        long ports = (long) packet.protocol() << 32;
+        if (packet.hasTransportHeader()) {
+            ports |= (long) packet.sourcePort() << 16 | packet.destinationPort();
+        }
+        if (packet.isIpv6()) {
+            key[0] = buf.getLong(source);
+            key[1] = buf.getLong(source + 8);
+            key[2] = buf.getLong(destination);
+            key[3] = buf.getLong(destination + 8);
+            ports |= IPV6_BIT;
+        } else {
+            key[0] = ReverseIndex.IPV4_HIGH;
+            key[1] = ReverseIndex.ipv4Low(buf.getInt(source));
+            key[2] = ReverseIndex.IPV4_HIGH;
+            key[3] = ReverseIndex.ipv4Low(buf.getInt(destination));
+        }
+        key[4] = ports;
+    }
+
+    private boolean keyEquals(int flow) {
+        final int key = flow * KEY_LONGS;
+        for (int i = 0; i < KEY_LONGS; i++) {
+            if (mKeys[key + i] != mKey[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(long[] key) {
+        return hash(key, 0);
+    }
+
+    private static int hash(long[] keys, int offset) {
+        long hash = 0;
+        for (int i = 0; i < KEY_LONGS; i++) {
+            hash = (hash ^ keys[offset + i]) * 0x9E3779B97F4A7C15L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.toyvpnjava;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable, offset-based view over a single IPv4 or IPv6 packet held in a {@link ByteBuffer}.
+ * <p>
+ * Nothing is copied: {@link #wrap} re-points the view at the next packet read from the tun
+ * interface and every accessor reads straight from the underlying buffer with absolute indices,
+ * so the buffer's position and limit are never touched. One instance is meant to live for the
+ * whole lifetime of a reader loop.
+ */
+public class IpPacket {
+
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    // IPv6 extension headers that we know how to walk past.
+    private static final int IPV6_HOP_BY_HOP = 0;
+    private static final int IPV6_ROUTING = 43;
+    private static final int IPV6_FRAGMENT = 44;
+    private static final int IPV6_AUTH = 51;
+    private static final int IPV6_DEST_OPTIONS = 60;
+
+    static final int IPV4_MIN_HEADER_LENGTH = 20;
+    static final int IPV6_HEADER_LENGTH = 40;
+    static final int UDP_HEADER_LENGTH = 8;
+    static final int TCP_MIN_HEADER_LENGTH = 20;
+
+    // TCP header flags.
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_RST = 0x04;
+    static final int TCP_PSH = 0x08;
+    static final int TCP_ACK = 0x10;
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mLength;
+    private int mVersion;
+    // Bytes up to the transport header, i.e. IPv4 options or IPv6 extension headers included.
+    private int mHeaderLength;
+    // Upper-layer protocol: the IPv4 protocol field or the last IPv6 next-header value.
+    private int mProtocol;
+    // Whether the packet is a fragment, the first one included.
+    private boolean mFragment;
+    // Offset of the TCP/UDP header, or -1 when there is none (other protocols, fragments).
+    private int mTransportOffset;
+    private int mPayloadOffset;
+    private int mPayloadLength;
+
+    /**
+     * Points this view at the packet stored in {@code buffer[offset, offset + length)},
+     * dispatching on the version nibble.
+     *
+     * @return {@code false} if the bytes do not hold a well-formed IPv4 or IPv6 packet, in which
+     *         case the accessors must not be used until the next successful call.
+     */
+    public boolean wrap(ByteBuffer buffer, int offset, int length) {
+        mBuffer = buffer;
+        mOffset = offset;
+        mFragment = false;
+        mTransportOffset = -1;
+        mPayloadOffset = -1;
+        mPayloadLength = 0;
+        if (length < 1) {
+            return false;
+        }
+        mVersion = (buffer.get(offset) & 0xFF) >>> 4;
+        if (mVersion == 4) {
+            return wrapIpv4(length);
+        } else if (mVersion == 6) {
+            return wrapIpv6(length);
+        }
+        return false;
+    }
+
+    private boolean wrapIpv4(int length) {
+        if (length < IPV4_MIN_HEADER_LENGTH) {
+            return false;
+        }
+        mHeaderLength = (mBuffer.get(mOffset) & 0x0F) * 4;
+        final int totalLength = mBuffer.getShort(mOffset + 2) & 0xFFFF;
+        if (mHeaderLength < IPV4_MIN_HEADER_LENGTH || totalLength < mHeaderLength
+                || totalLength > length) {
+            return false;
+        }
+        // Trust the header over the read size; the tun device never pads, but be strict.
+        mLength = totalLength;
+        mProtocol = mBuffer.get(mOffset + 9) & 0xFF;
+        // Fragment offset and More Fragments: a first fragment only has part of the payload.
+        mFragment = (mBuffer.getShort(mOffset + 6) & 0x3FFF) != 0;
+        if (!mFragment) {
+            parseTransport(mOffset + mHeaderLength);
+        }
+        return true;
+    }
+
+    private boolean wrapIpv6(int length) {
+        if (length < IPV6_HEADER_LENGTH) {
+            return false;
+        }
+        final int totalLength = IPV6_HEADER_LENGTH + (mBuffer.getShort(mOffset + 4) & 0xFFFF);
+        if (totalLength > length) {
+            return false;
+        }
+        mLength = totalLength;
+        final int end = mOffset + totalLength;
+        int nextHeader = mBuffer.get(mOffset + 6) & 0xFF;
+        int position = mOffset + IPV6_HEADER_LENGTH;
+        mFragment = false;
+        // Walk the extension header chain in a single pass.
+        while (true) {
+            final int extensionLength;
+            if (nextHeader == IPV6_HOP_BY_HOP || nextHeader == IPV6_ROUTING
+                    || nextHeader == IPV6_DEST_OPTIONS) {
+                if (position + 2 > end) return false;
+                extensionLength = ((mBuffer.get(position + 1) & 0xFF) + 1) * 8;
+            } else if (nextHeader == IPV6_FRAGMENT) {
+                if (position + 8 > end) return false;
+                extensionLength = 8;
+                // Fragment offset and M flag; an atomic fragment is the whole packet.
+                mFragment = (mBuffer.getShort(position + 2) & 0xFFF9) != 0;
+            } else if (nextHeader == IPV6_AUTH) {
+                if (position + 2 > end) return false;
+                extensionLength = ((mBuffer.get(position + 1) & 0xFF) + 2) * 4;
+            } else {
+                break;
+            }
+            if (position + extensionLength > end) {
+                return false;
+            }
+            nextHeader = mBuffer.get(position) & 0xFF;
+            position += extensionLength;
+        }
+        mProtocol = nextHeader;
+        mHeaderLength = position - mOffset;
+        if (!mFragment) {
+            parseTransport(position);
+        }
+        return true;
+    }
+
+    private void parseTransport(int transportOffset) {
+        final int end = mOffset + mLength;
+        final int headerLength;
+        if (mProtocol == PROTOCOL_UDP) {
+            headerLength = UDP_HEADER_LENGTH;
+        } else if (mProtocol == PROTOCOL_TCP) {
+            if (transportOffset + TCP_MIN_HEADER_LENGTH > end) {
+                return;
+            }
+            headerLength = ((mBuffer.get(transportOffset + 12) & 0xF0) >>> 4) * 4;
+            if (headerLength < TCP_MIN_HEADER_LENGTH) {
+                return;
+            }
+        } else {
+            return;
+        }
+        if (transportOffset + headerLength > end) {
+            return;
+        }
+        mTransportOffset = transportOffset;
+        mPayloadOffset = transportOffset + headerLength;
+        mPayloadLength = end - mPayloadOffset;
+    }
+
+    public ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    /** Offset of the first IP header byte within {@link #buffer()}. */
+    public int offset() {
+        return mOffset;
+    }
+
+    /** Total length of the packet as declared by the IP header. */
+    public int length() {
+        return mLength;
+    }
+
+    public int version() {
+        return mVersion;
+    }
+
+    /** Length of the IP header including IPv4 options or IPv6 extension headers. */
+    public int headerLength() {
+        return mHeaderLength;
+    }
+
+    // 6 for TCP, 17 for UDP
+    public int protocol() {
+        return mProtocol;
+    }
+
+    public boolean isIpv6() {
+        return mVersion == 6;
+    }
+
+    /** IPv4 source address; only meaningful when {@link #version()} is 4. */
+    public int sourceAddress() {
+        return mBuffer.getInt(mOffset + 12);
+    }
+
+    /** IPv4 destination address; only meaningful when {@link #version()} is 4. */
+    public int destinationAddress() {
+        return mBuffer.getInt(mOffset + 16);
+    }
+
+    /** Length in bytes of each address: 4 for IPv4, 16 for IPv6. */
+    public int addressLength() {
+        return mVersion == 6 ? 16 : 4;
+    }
+
+    /** Offset of the source address within {@link #buffer()}, valid for both families. */
+    public int sourceAddressOffset() {
+        return mOffset + (mVersion == 6 ? 8 : 12);
+    }
+
+    /** Offset of the destination address within {@link #buffer()}, valid for both families. */
+    public int destinationAddressOffset() {
+        return mOffset + (mVersion == 6 ? 24 : 16);
+    }
+
+    /**
+     * Whether the packet is a fragment of a larger one. Fragments have no transport header,
+     * not even the first, since the payload after it is incomplete.
+     */
+    public boolean isFragment() {
+        return mFragment;
+    }
+
+    /** Whether a complete TCP or UDP header is present. */
+    public boolean hasTransportHeader() {
+        return mTransportOffset >= 0;
+    }
+
+    public boolean isUdp() {
+        return mProtocol == PROTOCOL_UDP && mTransportOffset >= 0;
+    }
+
+    public boolean isTcp() {
+        return mProtocol == PROTOCOL_TCP && mTransportOffset >= 0;
+    }
+
+    public int transportOffset() {
+        return mTransportOffset;
+    }
+
+    public int sourcePort() {
+        return mTransportOffset < 0 ? 0 : mBuffer.getShort(mTransportOffset) & 0xFFFF;
+    }
+
+    public int destinationPort() {
+        return mTransportOffset < 0 ? 0 : mBuffer.getShort(mTransportOffset + 2) & 0xFFFF;
+    }
+
+    /** TCP sequence number; only meaningful when {@link #isTcp()}. */
+    public int tcpSequence() {
+        return mBuffer.getInt(mTransportOffset + 4);
+    }
+
+    /** TCP acknowledgment number; only meaningful when {@link #isTcp()}. */
+    public int tcpAcknowledgment() {
+        return mBuffer.getInt(mTransportOffset + 8);
+    }
+
+    /** TCP flags, such as {@link #TCP_SYN}; only meaningful when {@link #isTcp()}. */
+    public int tcpFlags() {
+        return mBuffer.get(mTransportOffset + 13) & 0x3F;
+    }
+
+    /** Unscaled TCP receive window; only meaningful when {@link #isTcp()}. */
+    public int tcpWindow() {
+        return mBuffer.getShort(mTransportOffset + 14) & 0xFFFF;
+    }
+
+    /** The maximum segment size option of a TCP header, or 0 if it has none. */
+    public int tcpMss() {
+        int position = mTransportOffset + TCP_MIN_HEADER_LENGTH;
+        while (position < mPayloadOffset) {
+            final int kind = mBuffer.get(position) & 0xFF;
+            if (kind == TCP_OPTION_END) {
+                break;
+            } else if (kind == TCP_OPTION_NOP) {
+                position++;
+                continue;
+            }
+            final int length = position + 1 < mPayloadOffset
+                    ? mBuffer.get(position + 1) & 0xFF : 0;
+            if (length < 2 || position + length > mPayloadOffset) {
+                break;
+            }
+            if (kind == TCP_OPTION_MSS && length == 4) {
+                return mBuffer.getShort(position + 2) & 0xFFFF;
+            }
+            position += length;
+        }
+        return 0;
+    }
+
+    /** Offset of the transport payload within {@link #buffer()}, or -1 if there is none. */
+    public int payloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int payloadLength() {
+        return mPayloadLength;
+    }
+
+    public String getProtocolStr() {
+        if (mProtocol == PROTOCOL_TCP) return "TCP";
+        else if (mProtocol == PROTOCOL_UDP) return "UDP";
+        else return String.valueOf(mProtocol);
+    }
+
+    /** Debug helper; allocates freely, so keep it behind the debugging switches. */
+    public void print(String tag) {
+        Log.e(tag, "Length: " + mHeaderLength + "(IP) + "
+                + (mPayloadOffset < 0 ? 0 : mPayloadOffset - mTransportOffset) + "(L4) + "
+                + mPayloadLength + "(DATA)"
+                + "\t[Protocol]: " + getProtocolStr()
+                + "\t [src]: <" + addressToString(sourceAddressOffset()) + ":" + sourcePort() + ">"
+                + "\t [dest]: <" + addressToString(destinationAddressOffset()) + ":"
+                + destinationPort() + ">");
+        if (mPayloadOffset >= 0) {
+            Log.e(tag, Util.bytesToHex(mBuffer, mPayloadOffset, mPayloadLength));
+        }
+    }
+
+    private String addressToString(int addressOffset) {
+        return mVersion == 6 ? Util.ipv6ToString(mBuffer, addressOffset)
+                : Util.ipv4ToString(mBuffer.getInt(addressOffset));
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.toyvpnjava;
+
+/**
+ * Log-linear histogram of recent latencies in milliseconds, for percentiles that follow
+ * changing conditions. Not thread-safe.
+ * <p>
+ * Each power of two is split into four buckets, so a percentile is off by at most a quarter
+ * of its value. Counts are halved every {@link #DECAY_SAMPLES} samples, so old samples fade
+ * out instead of outweighing new ones forever.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    // Latencies are capped at 2^15 ms, which is well past any timeout.
+    private static final int MAX_MAGNITUDE = 15;
+    private static final int BUCKETS = (MAX_MAGNITUDE - 1) * SUB_BUCKETS;
+    static final int DECAY_SAMPLES = 512;
+
+    private final int[] mCounts = new int[BUCKETS];
+    private int mTotal;
+    private int mSinceDecay;
+
+    void record(long ms) {
+        mCounts[bucket(Math.max(0, Math.min(ms, (1L << MAX_MAGNITUDE) - 1)))]++;
+        mTotal++;
+        if (++mSinceDecay == DECAY_SAMPLES) {
+            mSinceDecay = 0;
+            mTotal = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                mCounts[i] >>= 1;
+                mTotal += mCounts[i];
+            }
+        }
+    }
+
+    /** Number of samples currently weighing in. */
+    int count() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the latency that {@code percent} percent of the samples did not exceed, rounded
+     * up to the end of its bucket, or -1 without samples.
+     */
+    long percentile(int percent) {
+        if (mTotal == 0) {
+            return -1;
+        }
+        // The rank of the sample sought, counting from 1.
+        final long rank = Math.max(1, ((long) mTotal * percent + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mTotal = 0;
+        mSinceDecay = 0;
+    }
+
+    private static int bucket(long ms) {
+        if (ms < SUB_BUCKETS) {
+            return (int) ms;
+        }
+        // Keep the top two bits below the leading one.
+        final int shift = 63 - Long.numberOfLeadingZeros(ms) - 2;
+        return (shift + 1) * SUB_BUCKETS + (int) ((ms >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.toyvpnjava;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link ToyVpnConnection}, cheap enough to bump from the packet path.
+ * <p>
+ * Batch sizes are kept as power-of-two histograms: bucket {@code i} counts batches of
+ * {@code [2^i, 2^(i+1))} packets.
+ */
+public class Metrics {
+    private static final int BUCKETS = 9;
+
+    public final LongAdder tunPacketsRead = new LongAdder();
+    public final LongAdder queriesForwarded = new LongAdder();
+    public final LongAdder queriesDropped = new LongAdder();
+    // Queries for names on the blocklist, answered locally.
+    public final LongAdder queriesBlocked = new LongAdder();
+    // Queries that joined an identical one in flight, and client retransmits of those.
+    public final LongAdder queriesCoalesced = new LongAdder();
+    public final LongAdder queriesAbsorbed = new LongAdder();
+    public final LongAdder queriesTimedOut = new LongAdder();
+    public final LongAdder queriesRetransmitted = new LongAdder();
+    public final LongAdder upstreamEjections = new LongAdder();
+    // Queries also sent to a second upstream, and those answered first by a later copy.
+    public final LongAdder hedgesSent = new LongAdder();
+    public final LongAdder hedgesWon = new LongAdder();
+    // Truncated answers fetched again over TCP.
+    public final LongAdder tcpFallbacks = new LongAdder();
+    public final LongAdder repliesWritten = new LongAdder();
+    public final LongAdder cacheHits = new LongAdder();
+    public final LongAdder cacheMisses = new LongAdder();
+    public final LongAdder cachePrefetches = new LongAdder();
+    public final LongAdder staleAnswers = new LongAdder();
+    // PTR queries answered from the reverse index.
+    public final LongAdder reverseAnswers = new LongAdder();
+    // TCP and UDP flows relayed in full-tunnel mode, and those refused for lack of room or
+    // sockets.
+    public final LongAdder flowsOpened = new LongAdder();
+    public final LongAdder flowsRefused = new LongAdder();
+    // IP fragments dropped in full-tunnel mode, which flows cannot relay.
+    public final LongAdder flowFragmentsDropped = new LongAdder();
+    // Packets carried over the tunnel to the ToyVpn server and back, and the datagrams they
+    // took, fewer with aggregation.
+    public final LongAdder tunnelPacketsSent = new LongAdder();
+    public final LongAdder tunnelDatagramsSent = new LongAdder();
+    public final LongAdder tunnelPacketsReceived = new LongAdder();
+    public final LongAdder tunnelDatagramsReceived = new LongAdder();
+    // Datagrams from the tunnel dropped as forged, damaged or replayed.
+    public final LongAdder tunnelDatagramsRejected = new LongAdder();
+
+    // Configured batch size, which the histograms below are bounded by.
+    public volatile int batchSize = ConnectionOptions.DEFAULT_BATCH_SIZE;
+
+    private final AtomicLongArray mReadBatches = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray mReplyBursts = new AtomicLongArray(BUCKETS);
+
+    /** Records {@code size} packets drained from the tun interface in one wakeup. */
+    void recordReadBatch(int size) {
+        tunPacketsRead.add(size);
+        mReadBatches.incrementAndGet(bucket(size));
+    }
+
+    /** Records {@code size} replies written to the tun interface back to back. */
+    void recordReplyBurst(int size) {
+        repliesWritten.add(size);
+        mReplyBursts.incrementAndGet(bucket(size));
+    }
+
+    private static int bucket(int size) {
+        return Math.min(BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, size)));
+    }
+
+    @Override
+    public String toString() {
+        return "read=" + tunPacketsRead.sum()
+                + " forwarded=" + queriesForwarded.sum()
+                + " dropped=" + queriesDropped.sum()
+                + " blocked=" + queriesBlocked.sum()
+                + " coalesced=" + queriesCoalesced.sum()
+                + " absorbed=" + queriesAbsorbed.sum()
+                + " timedOut=" + queriesTimedOut.sum()
+                + " retransmitted=" + queriesRetransmitted.sum()
+                + " ejections=" + upstreamEjections.sum()
+                + " hedges=" + hedgesSent.sum()
+                + " hedgesWon=" + hedgesWon.sum()
+                + " tcpFallbacks=" + tcpFallbacks.sum()
+                + " replies=" + repliesWritten.sum()
+                + " cacheHits=" + cacheHits.sum()
+                + " cacheMisses=" + cacheMisses.sum()
+                + " prefetches=" + cachePrefetches.sum()
+                + " stale=" + staleAnswers.sum()
+                + " reverse=" + reverseAnswers.sum()
+                + " flows=" + flowsOpened.sum()
+                + " flowsRefused=" + flowsRefused.sum()
+                + " fragmentsDropped=" + flowFragmentsDropped.sum()
+                + " tunnelSent=" + tunnelPacketsSent.sum()
+                + " tunnelDatagramsSent=" + tunnelDatagramsSent.sum()
+                + " tunnelReceived=" + tunnelPacketsReceived.sum()
+                + " tunnelDatagramsReceived=" + tunnelDatagramsReceived.sum()
+                + " tunnelRejected=" + tunnelDatagramsRejected.sum()
+                + " batchSize=" + batchSize
+                + " readBatches=" + histogram(mReadBatches)
+                + " replyBursts=" + histogram(mReplyBursts);
+    }
+
+    private static String histogram(AtomicLongArray buckets) {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < buckets.length(); i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(1 << i).append(i == buckets.length() - 1 ? "+:" : ":")
+                    .append(buckets.get(i));
+        }
+        return sb.append(']').toString();
+    }
+}
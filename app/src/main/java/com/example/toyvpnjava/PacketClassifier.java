@@ -0,0 +1,247 @@
+package com.example.toyvpnjava;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pipeline stage that parses packets read from the tun interface and answers DNS queries for
+ * names on the {@link Blocklist}, PTR queries for addresses in the {@link ReverseIndex}, then
+ * what it can from the {@link DnsCache}, passing the rest on to the {@link DnsForwarder}.
+ * Everything else goes to the {@link FlowForwarder} in full-tunnel mode, or is spread over the
+ * {@link TunnelForwarder}s in tunnel mode by a hash of its flow, which keeps each flow in order
+ * on one of them; it is dropped here otherwise.
+ */
+class PacketClassifier extends PacketStage {
+    private static final String TAG = PacketClassifier.class.getSimpleName();
+    /** TTL of the answers to blocked names, short enough for list updates to show soon. */
+    private static final int BLOCKED_TTL_S = 60;
+    private static final byte[] UNSPECIFIED_IPV6 = new byte[16];
+    /** TTL of PTR answers, short since addresses get reused by other names. */
+    private static final int REVERSE_TTL_S = 60;
+
+    private final BufferPool mBuffers;
+    private final Metrics mMetrics;
+    private final DnsCache mCache;
+    private final ReverseIndex mReverseIndex;
+    private final Blocklist mBlocklist;
+    private final boolean mBlockNxdomain;
+    private final Link mQueries;
+    private final Link mReplies;
+    private final Link[] mFlows;
+    // Links of mFlows sent to since the last flush.
+    private final boolean[] mFlowsUsed;
+    // Scratch space for flow hashes.
+    private final long[] mFlowKey = new long[FlowTable.KEY_LONGS];
+    // Flyweight view, re-pointed at every packet instead of parsing into new objects.
+    private final IpPacket mPacket = new IpPacket();
+    private final DnsMessage mQuery = new DnsMessage();
+    private final DnsWriter mWriter = new DnsWriter();
+    // Scratch space for PTR answers.
+    private final long[] mKey = new long[2];
+    private final StringBuilder mName = new StringBuilder(DnsMessage.MAX_NAME_LENGTH);
+    private int mSent;
+    private int mAnswered;
+
+    /**
+     * @param cache the cache to answer from, or {@code null} to forward every query.
+     * @param reverseIndex the index to answer PTR queries from, or {@code null}.
+     * @param blocklist the names to answer for locally, or {@code null}.
+     * @param blockNxdomain whether those get NXDOMAIN, rather than an unspecified address.
+     * @param queries the way to the dispatcher.
+     * @param replies the way to the writer, for the queries answered here.
+     * @param flows the ways to the flow forwarder or tunnel forwarders, for other traffic, or
+     *         {@code null} to drop it.
+     */
+    PacketClassifier(BufferPool buffers, int batchSize, Metrics metrics, DnsCache cache,
+            ReverseIndex reverseIndex, Blocklist blocklist, boolean blockNxdomain,
+            Link queries, Link replies, Link[] flows) {
+        super(batchSize);
+        mBuffers = buffers;
+        mMetrics = metrics;
+        mCache = cache;
+        mReverseIndex = reverseIndex;
+        mBlocklist = blocklist;
+        mBlockNxdomain = blockNxdomain;
+        mQueries = queries;
+        mReplies = replies;
+        mFlows = flows;
+        mFlowsUsed = flows != null ? new boolean[flows.length] : null;
+    }
+
+    @Override
+    void process(ByteBuffer packet) {
+        if (!mPacket.wrap(packet, packet.position(), packet.remaining())) {
+            mBuffers.release(packet);
+            return;
+        }
+        // Only UDP with port 53 is DNS
+        if (!(mPacket.isUdp() && mPacket.destinationPort() == 53)) {
+            if (mFlows == null) {
+                mBuffers.release(packet);
+                return;
+            }
+            // Fragments hash without ports, so all of a datagram's leave on one tunnel socket.
+            final int flows = mFlows.length == 1 ? 0
+                    : Math.floorMod(FlowTable.hash(mPacket, mFlowKey), mFlows.length);
+            if (mFlows[flows].send(packet)) {
+                mFlowsUsed[flows] = true;
+            } else {
+                mBuffers.release(packet);
+            }
+            return;
+        }
+        if (isDebugging) Log.e(TAG, "REQUEST========================================================================================================================");
+        if (isDebugging) mPacket.print(TAG);
+        if (mBlocklist != null && answerBlocked(packet)) {
+            return;
+        }
+        if (mReverseIndex != null && answerReverse(packet)) {
+            return;
+        }
+        if (mCache != null && answerFromCache(packet)) {
+            return;
+        }
+        if (mQueries.send(packet)) {
+            mSent++;
+        } else {
+            mMetrics.queriesDropped.increment();
+            mBuffers.release(packet);
+        }
+    }
+
+    /**
+     * Turns the query in {@code packet} into its reply if the cache has the answer, and passes
+     * it on to the writer.
+     *
+     * @return {@code false} on a miss, leaving the query untouched.
+     */
+    private boolean answerFromCache(ByteBuffer packet) {
+        final int replyLength = mCache.reply(mPacket, mBuffers.packetSize(), false,
+                System.currentTimeMillis());
+        if (replyLength < 0) {
+            mMetrics.cacheMisses.increment();
+            return false;
+        }
+        mMetrics.cacheHits.increment();
+        passReply(packet, replyLength);
+        return true;
+    }
+
+    /**
+     * Turns the query in {@code packet} into its reply if it asks for a blocked name, and
+     * passes it on to the writer. Blocked names do not exist, or, unless
+     * {@link #mBlockNxdomain}, have the unspecified address and no records of other types.
+     *
+     * @return {@code false} if the name is not blocked, leaving the query untouched.
+     */
+    private boolean answerBlocked(ByteBuffer packet) {
+        if (!wrapQuery(packet) || !mBlocklist.matches(packet, mQuery.questionNameOffset())) {
+            return false;
+        }
+        final int type =
+                mQuery.questionClass() == DnsMessage.CLASS_IN ? mQuery.questionType() : 0;
+        startReply(packet,
+                mBlockNxdomain ? DnsMessage.RCODE_NXDOMAIN : DnsMessage.RCODE_NOERROR);
+        if (!mBlockNxdomain && type == DnsMessage.TYPE_A) {
+            mWriter.ipv4Record(DnsMessage.SECTION_ANSWER, BLOCKED_TTL_S, 0);
+        } else if (!mBlockNxdomain && type == DnsMessage.TYPE_AAAA) {
+            mWriter.record(DnsMessage.SECTION_ANSWER, DnsMessage.TYPE_AAAA, BLOCKED_TTL_S,
+                    UNSPECIFIED_IPV6);
+        } else {
+            // Lets clients cache the negative answer (RFC 2308).
+            mWriter.soaRecord(DnsMessage.SECTION_AUTHORITY, BLOCKED_TTL_S, BLOCKED_TTL_S);
+        }
+        mMetrics.queriesBlocked.increment();
+        finishReply(packet);
+        return true;
+    }
+
+    /**
+     * Turns the query in {@code packet} into its reply if it is a PTR query for an address the
+     * reverse index knows, and passes it on to the writer.
+     *
+     * @return {@code false} if not, leaving the query untouched.
+     */
+    private boolean answerReverse(ByteBuffer packet) {
+        if (!wrapQuery(packet) || mQuery.questionType() != DnsMessage.TYPE_PTR
+                || mQuery.questionClass() != DnsMessage.CLASS_IN
+                || !ReverseIndex.parseReverseName(packet, mQuery.questionNameOffset(), mKey)) {
+            return false;
+        }
+        mName.setLength(0);
+        if (!mReverseIndex.lookup(mKey[0], mKey[1], System.currentTimeMillis(), mName)) {
+            return false;
+        }
+        startReply(packet, DnsMessage.RCODE_NOERROR);
+        mWriter.nameRecord(DnsMessage.SECTION_ANSWER, DnsMessage.TYPE_PTR, REVERSE_TTL_S,
+                mName);
+        mMetrics.reverseAnswers.increment();
+        finishReply(packet);
+        return true;
+    }
+
+    /** Points mQuery at the DNS query in {@code packet}, if it is one that can be answered. */
+    private boolean wrapQuery(ByteBuffer packet) {
+        // writeUdpReply() cannot handle IPv6 extension headers.
+        if (mPacket.isIpv6() && mPacket.headerLength() != IpPacket.IPV6_HEADER_LENGTH) {
+            return false;
+        }
+        return mQuery.wrap(packet, mPacket.payloadOffset(), mPacket.payloadLength())
+                && !mQuery.isResponse() && DnsMessage.opcode(mQuery.flags()) == 0;
+    }
+
+    /** Starts the reply to mQuery with {@code rcode} in mWriter, over the query. */
+    private void startReply(ByteBuffer packet, int rcode) {
+        final int dns = mPacket.payloadOffset();
+        final int flags = DnsMessage.FLAG_QR | DnsMessage.FLAG_RA
+                | (mQuery.flags() & DnsMessage.FLAG_RD) | rcode;
+        final int end = Math.min(packet.capacity(), mPacket.offset() + mBuffers.packetSize());
+        // The question stays where it is, and the reply runs past the query.
+        packet.limit(packet.capacity());
+        mWriter.start(packet, dns, end, mQuery.id(), flags).question(mQuery);
+    }
+
+    /** Finishes the reply in mWriter and passes it on to the writer. */
+    private void finishReply(ByteBuffer packet) {
+        final int length = mWriter.finish();
+        final int replyLength = length < 0 ? -1 : PacketWriter.writeUdpReply(mPacket, length);
+        if (replyLength < 0) {
+            // Not forwarded either, since the query is gone.
+            mBuffers.release(packet);
+            return;
+        }
+        passReply(packet, replyLength);
+    }
+
+    /** Passes the reply of {@code length} bytes in {@code packet} on to the writer. */
+    private void passReply(ByteBuffer packet, int length) {
+        packet.limit(mPacket.offset() + length).position(mPacket.offset());
+        if (mReplies.send(packet)) {
+            mAnswered++;
+        } else {
+            mBuffers.release(packet);
+        }
+    }
+
+    @Override
+    void endBatch() {
+        // Prefetches queued by cache hits are sent by the dispatcher, so wake it up for those.
+        if (mSent > 0 || (mAnswered > 0 && mCache != null && mCache.hasPrefetches())) {
+            mSent = 0;
+            mQueries.flush();
+        }
+        if (mAnswered > 0) {
+            mAnswered = 0;
+            mReplies.flush();
+        }
+        if (mFlows != null) {
+            for (int i = 0; i < mFlows.length; i++) {
+                if (mFlowsUsed[i]) {
+                    mFlowsUsed[i] = false;
+                    mFlows[i].flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.toyvpnjava;
+
+import android.net.VpnService;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The stages packets go through between the tun reader and the tun writer:
+ * <pre>
+ *   tun reader --> classifier(s) --> dispatcher ({@link DnsForwarder}) --> {@link TunWriter}
+ *                              \--> {@link FlowForwarder} ------------------/
+ *                                   or {@link TunnelForwarder}s
+ * </pre>
+ * connected by {@link SpscRing}s, one per producer and consumer pair. Classifiers answer what
+ * they can from the {@link Blocklist}, the {@link ReverseIndex} and the {@link DnsCache} and
+ * send those replies straight to the writer. Classifiers
+ * and the writer get their own threads unless {@link ConnectionOptions} folds them into the
+ * stages feeding them; the dispatcher always has its own since it waits on the upstream
+ * sockets. So does the flow forwarder, which only exists in full-tunnel mode and relays
+ * everything but DNS, and in its place in tunnel mode the tunnel forwarders, which carry it to
+ * the ToyVpn server instead, one per tunnel socket, with each flow on one of them.
+ * <p>
+ * The reader is the {@link ToyVpnConnection} thread itself. It spreads packets over
+ * {@link #inputs()} and must flush each link it used after a batch.
+ */
+class PacketPipeline implements Closeable {
+    private final PacketClassifier[] mClassifiers;
+    private final PacketStage.Link[] mInputs;
+    private final DnsForwarder mForwarder;
+    // Null unless in full-tunnel mode.
+    private final FlowForwarder mFlowForwarder;
+    // Empty unless in tunnel mode.
+    private final TunnelForwarder[] mTunnelForwarders;
+    // A single writer with a thread of its own, or one per producer run inline.
+    private final List<TunWriter> mWriters = new ArrayList<>();
+    private final DnsCache mCache;
+    private final ReverseIndex mReverseIndex;
+    private final Thread[] mThreads;
+
+    /**
+     * @param service the service protecting the flow sockets of full-tunnel mode.
+     * @param blocklist the names to block, or {@code null}.
+     */
+    PacketPipeline(VpnService service, ConnectionOptions options, BufferPool buffers,
+            UpstreamSocketPool sockets, Blocklist blocklist, Metrics metrics)
+            throws IOException {
+        final int batchSize = options.batchSize;
+        // Rings never hold more packets than there are buffers, so they never overflow.
+        final int ringSize = buffers.size();
+        mCache = options.cacheSize > 0 ? new DnsCache(options.cacheSize) : null;
+        mReverseIndex = options.reverseIndexSize > 0
+                ? new ReverseIndex(options.reverseIndexSize) : null;
+        final boolean writerThread = options.writerThread;
+        if (writerThread) {
+            mWriters.add(new TunWriter(buffers, batchSize, metrics));
+        }
+        mForwarder = new DnsForwarder(sockets, buffers, batchSize, metrics, mCache,
+                mReverseIndex, options.hedgePercent,
+                writerInput(writerThread, ringSize, buffers, batchSize, metrics));
+        mTunnelForwarders = new TunnelForwarder[options.tunnel ? options.tunnelSockets : 0];
+        for (int i = 0; i < mTunnelForwarders.length; i++) {
+            mTunnelForwarders[i] = new TunnelForwarder(buffers, batchSize, metrics,
+                    options.aggregationDelayMs,
+                    writerInput(writerThread, ringSize, buffers, batchSize, metrics));
+        }
+        mFlowForwarder = options.fullTunnel && !options.tunnel ? new FlowForwarder(service,
+                buffers, batchSize, metrics, options.maxFlows, mReverseIndex,
+                writerInput(writerThread, ringSize, buffers, batchSize, metrics)) : null;
+
+        final int classifierThreads = options.classifierThreads;
+        final int classifiers = Math.max(1, classifierThreads);
+        mClassifiers = new PacketClassifier[classifiers];
+        mInputs = new PacketStage.Link[classifiers];
+        for (int i = 0; i < classifiers; i++) {
+            mClassifiers[i] = new PacketClassifier(buffers, batchSize, metrics, mCache,
+                    mReverseIndex, blocklist, options.blockNxdomain, mForwarder.newInput(ringSize),
+                    writerInput(writerThread, ringSize, buffers, batchSize, metrics),
+                    flowsInput(ringSize));
+            mInputs[i] = classifierThreads > 0
+                    ? mClassifiers[i].newInput(ringSize) : mClassifiers[i].inlineInput();
+        }
+
+        mThreads = new Thread[classifierThreads + 1 + (mFlowForwarder != null ? 1 : 0)
+                + mTunnelForwarders.length + (writerThread ? 1 : 0)];
+        int thread = 0;
+        for (int i = 0; i < classifierThreads; i++) {
+            mThreads[thread++] = new Thread(mClassifiers[i], "ToyVpnClassifier-" + i);
+        }
+        mThreads[thread++] = new Thread(mForwarder, "ToyVpnResolver");
+        if (mFlowForwarder != null) {
+            mThreads[thread++] = new Thread(mFlowForwarder, "ToyVpnFlows");
+        }
+        for (int i = 0; i < mTunnelForwarders.length; i++) {
+            mThreads[thread++] = new Thread(mTunnelForwarders[i], "ToyVpnTunnel-" + i);
+        }
+        if (writerThread) {
+            mThreads[thread] = new Thread(mWriters.get(0), "ToyVpnWriter");
+        }
+    }
+
+    /**
+     * Returns new ways into the stages taking traffic other than DNS, one per tunnel forwarder
+     * in tunnel mode, or {@code null}.
+     */
+    private PacketStage.Link[] flowsInput(int ringSize) {
+        if (mTunnelForwarders.length > 0) {
+            final PacketStage.Link[] inputs = new PacketStage.Link[mTunnelForwarders.length];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = mTunnelForwarders[i].newInput(ringSize);
+            }
+            return inputs;
+        }
+        return mFlowForwarder != null
+                ? new PacketStage.Link[] {mFlowForwarder.newInput(ringSize)} : null;
+    }
+
+    /** Returns a new way into the writer, for a stage running on a thread of its own. */
+    private PacketStage.Link writerInput(boolean writerThread, int ringSize, BufferPool buffers,
+            int batchSize, Metrics metrics) {
+        if (writerThread) {
+            return mWriters.get(0).newInput(ringSize);
+        }
+        // Writers keep per-batch state, so producers cannot share one inline.
+        final TunWriter writer = new TunWriter(buffers, batchSize, metrics);
+        mWriters.add(writer);
+        return writer.inlineInput();
+    }
+
+    void setDebugging(boolean debugging) {
+        for (PacketClassifier classifier : mClassifiers) {
+            classifier.isDebugging = debugging;
+        }
+        mForwarder.isDebugging = debugging;
+        if (mFlowForwarder != null) {
+            mFlowForwarder.isDebugging = debugging;
+        }
+        for (TunnelForwarder tunnelForwarder : mTunnelForwarders) {
+            tunnelForwarder.isDebugging = debugging;
+        }
+        for (TunWriter writer : mWriters) {
+            writer.isDebugging = debugging;
+        }
+    }
+
+    /** Links into the first stage, for the tun reader. */
+    PacketStage.Link[] inputs() {
+        return mInputs;
+    }
+
+    /** Sets the tun interface channel replies are written to, or {@code null} to drop them. */
+    void setOutput(FileChannel out) {
+        for (TunWriter writer : mWriters) {
+            writer.setOutput(out);
+        }
+    }
+
+    /**
+     * See {@link TunnelForwarder#setTunnel}, for the forwarder of the {@code index}th of
+     * {@link ConnectionOptions#tunnelSockets}; only in tunnel mode.
+     */
+    void setTunnel(int index, DatagramChannel tunnel, int maxDatagram, TunnelCipher cipher) {
+        mTunnelForwarders[index].setTunnel(tunnel, maxDatagram, cipher);
+    }
+
+    /**
+     * See {@link TunnelForwarder#lastReceived()}: the earliest of all tunnel sockets, since
+     * each must stay alive; only in tunnel mode.
+     */
+    long tunnelLastReceived() {
+        long lastReceived = Long.MAX_VALUE;
+        for (TunnelForwarder tunnelForwarder : mTunnelForwarders) {
+            lastReceived = Math.min(lastReceived, tunnelForwarder.lastReceived());
+        }
+        return lastReceived;
+    }
+
+    /**
+     * Adds the answers saved to {@code file} to the cache.
+     *
+     * @return the number added, or -1 without a cache.
+     */
+    int loadCache(File file) throws IOException {
+        return mCache != null ? mCache.load(file, System.currentTimeMillis()) : -1;
+    }
+
+    /**
+     * Saves the cached answers to {@code file}.
+     *
+     * @return the number saved, or -1 without a cache or changes since the last time.
+     */
+    int saveCache(File file) throws IOException {
+        return mCache != null ? mCache.save(file, System.currentTimeMillis()) : -1;
+    }
+
+    /** The names addresses were resolved from, or {@code null} if not kept. */
+    ReverseIndex reverseIndex() {
+        return mReverseIndex;
+    }
+
+    /** See {@link DnsForwarder#invalidate()} and {@link FlowForwarder#invalidate()}. */
+    void invalidate() {
+        mForwarder.invalidate();
+        if (mFlowForwarder != null) {
+            mFlowForwarder.invalidate();
+        }
+    }
+
+    void start() {
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    /** Stops every stage thread and closes the upstream and flow sockets. */
+    @Override
+    public void close() throws IOException {
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+        // Wakes the dispatcher up from select(), and makes sure it does not go back in.
+        mForwarder.close();
+        if (mFlowForwarder != null) {
+            mFlowForwarder.close();
+        }
+        for (TunnelForwarder tunnelForwarder : mTunnelForwarders) {
+            tunnelForwarder.close();
+        }
+    }
+}
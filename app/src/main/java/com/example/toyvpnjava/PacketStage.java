@@ -0,0 +1,154 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One stage of the {@link PacketPipeline}: consumes pooled packet buffers, each holding one
+ * packet between its position and limit, and hands them on or returns them to the pool.
+ * <p>
+ * A stage either runs on its own thread, draining a {@link SpscRing} per producer in batches
+ * and parking when they are all empty, or is called inline by its producer. Producers only see
+ * a {@link Link}, so they do not care which.
+ */
+abstract class PacketStage implements Runnable {
+    boolean isDebugging;
+
+    final int mBatchSize;
+    // Fixed before the stage's thread starts.
+    private final List<SpscRing<ByteBuffer>> mInputs = new ArrayList<>();
+    private volatile Thread mThread;
+    // Set while the stage is about to sleep or sleeping; producers only wake it up then.
+    private volatile boolean mWaiting;
+
+    PacketStage(int batchSize) {
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Producer side of the way into a stage. Each link has a single producer thread, which
+     * calls {@link #flush} after every batch it sends.
+     */
+    static final class Link {
+        private final PacketStage mStage;
+        // Null when the stage is called inline.
+        private final SpscRing<ByteBuffer> mRing;
+
+        private Link(PacketStage stage, SpscRing<ByteBuffer> ring) {
+            mStage = stage;
+            mRing = ring;
+        }
+
+        /**
+         * Hands {@code packet} over to the stage.
+         *
+         * @return {@code false} if the stage is backed up, in which case the caller still owns
+         *         the buffer.
+         */
+        boolean send(ByteBuffer packet) {
+            if (mRing == null) {
+                mStage.process(packet);
+                return true;
+            }
+            return mRing.offer(packet);
+        }
+
+        /** Ends a batch: wakes the stage up, or lets an inline stage finish the batch. */
+        void flush() {
+            if (mRing == null) {
+                mStage.endBatch();
+            } else {
+                mStage.signal();
+            }
+        }
+    }
+
+    /** Adds an input ring to be drained by this stage's thread. Call before it starts. */
+    Link newInput(int capacity) {
+        final SpscRing<ByteBuffer> ring = new SpscRing<>(capacity);
+        mInputs.add(ring);
+        return new Link(this, ring);
+    }
+
+    /** Returns a link that runs this stage on the producer's thread. */
+    Link inlineInput() {
+        return new Link(this, null);
+    }
+
+    /** Handles one packet; the stage owns the buffer from now on. */
+    abstract void process(ByteBuffer packet);
+
+    /** Called after each batch of {@link #process} calls. */
+    void endBatch() {
+    }
+
+    /** Called by producers after adding packets to an input ring. */
+    final void signal() {
+        if (mWaiting) {
+            wake();
+        }
+    }
+
+    /** Interrupts the stage's wait; stages that wait on something else than parking override. */
+    void wake() {
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        mThread = Thread.currentThread();
+        while (!Thread.interrupted()) {
+            if (drainInputs() == 0 && prepareToWait()) {
+                LockSupport.park(this);
+                doneWaiting();
+            }
+        }
+    }
+
+    /**
+     * Processes up to one batch from every input ring.
+     *
+     * @return the number of packets processed.
+     */
+    final int drainInputs() {
+        int count = 0;
+        for (int i = 0; i < mInputs.size(); i++) {
+            final SpscRing<ByteBuffer> ring = mInputs.get(i);
+            for (int j = 0; j < mBatchSize; j++) {
+                final ByteBuffer packet = ring.poll();
+                if (packet == null) {
+                    break;
+                }
+                process(packet);
+                count++;
+            }
+        }
+        if (count > 0) {
+            endBatch();
+        }
+        return count;
+    }
+
+    /**
+     * Announces that the stage is going to sleep.
+     *
+     * @return {@code false} if input arrived in the meantime and the stage must not sleep.
+     */
+    final boolean prepareToWait() {
+        mThread = Thread.currentThread();
+        mWaiting = true;
+        for (int i = 0; i < mInputs.size(); i++) {
+            if (!mInputs.get(i).isEmpty()) {
+                mWaiting = false;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    final void doneWaiting() {
+        mWaiting = false;
+    }
+}
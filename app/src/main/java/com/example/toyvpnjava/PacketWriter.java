@@ -0,0 +1,251 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Synthesizes the IP/UDP and IP/TCP packets written back to the tun interface.
+ * <p>
+ * Replies are built in place, on top of the request they answer: the IP and UDP headers are
+ * already there and only need their endpoints swapped and their lengths and checksums fixed up,
+ * which is far cheaper than assembling a fresh packet. The payload is expected to be in place
+ * too, so it is only read once, to checksum it.
+ * <p>
+ * Packets of the flows a {@link FlowForwarder} relays answer no single request, so their
+ * headers are written from scratch, in front of a payload that is again already in place.
+ */
+final class PacketWriter {
+    /** TTL, or hop limit, of the packets written from scratch. */
+    private static final int DEFAULT_TTL = 64;
+    private static final int IPV4_DONT_FRAGMENT = 0x4000;
+
+    private PacketWriter() {
+    }
+
+    /**
+     * Turns the UDP packet viewed by {@code request} into its reply, whose
+     * {@code payloadLength} bytes of payload have already been stored at
+     * {@code request.payloadOffset()}: addresses and ports are swapped and the lengths, IPv4
+     * header checksum and UDP checksum are updated. The request must not carry IPv6 extension
+     * headers, which would end up in the reply.
+     *
+     * @return the length of the reply, which starts at {@code request.offset()}, or -1 if it
+     *         does not fit in the request's buffer.
+     */
+    static int writeUdpReply(IpPacket request, int payloadLength) {
+        final ByteBuffer buf = request.buffer();
+        final int offset = request.offset();
+        final int transport = request.transportOffset();
+        final int headerLength = transport - offset;
+        final int udpLength = IpPacket.UDP_HEADER_LENGTH + payloadLength;
+        if (offset + headerLength + udpLength > buf.capacity()) {
+            return -1;
+        }
+
+        // Swapping the endpoints leaves every one's complement sum untouched: the IPv4 header
+        // checksum needs no update for it and the addresses can be summed once, below.
+        final int addressLength = request.addressLength();
+        final int sourceOffset = request.sourceAddressOffset();
+        final int destinationOffset = request.destinationAddressOffset();
+        int sum = 0;
+        for (int i = 0; i < addressLength; i += 4) {
+            final int source = buf.getInt(sourceOffset + i);
+            final int destination = buf.getInt(destinationOffset + i);
+            buf.putInt(sourceOffset + i, destination);
+            buf.putInt(destinationOffset + i, source);
+            sum += (source >>> 16) + (source & 0xFFFF) + (destination >>> 16)
+                    + (destination & 0xFFFF);
+        }
+        final int ports = buf.getInt(transport);
+        buf.putInt(transport, (ports << 16) | (ports >>> 16));
+        sum += (ports >>> 16) + (ports & 0xFFFF);
+
+        if (request.isIpv6()) {
+            buf.putShort(offset + 4, (short) udpLength);
+        } else {
+            // Only the total length changes in the IPv4 header.
+            final int oldLength = buf.getShort(offset + 2) & 0xFFFF;
+            final int newLength = headerLength + udpLength;
+            buf.putShort(offset + 2, (short) newLength);
+            buf.putShort(offset + 10,
+                    Checksum.update(buf.getShort(offset + 10), oldLength, newLength));
+        }
+
+        buf.putShort(transport + 4, (short) udpLength);
+        buf.putShort(transport + 6, (short) 0);
+        sum = Checksum.add(buf, transport + IpPacket.UDP_HEADER_LENGTH, payloadLength, sum);
+        // Pseudo-header protocol and length, plus the UDP length field itself.
+        sum += IpPacket.PROTOCOL_UDP + udpLength + udpLength;
+        final short checksum = Checksum.finish(sum);
+        // Zero means "no checksum" for UDP, and is not even allowed over IPv6.
+        buf.putShort(transport + 6, checksum == 0 ? (short) 0xFFFF : checksum);
+        return headerLength + udpLength;
+    }
+
+    /**
+     * Turns the TCP segment viewed by {@code request} into the RST answering it (RFC 793,
+     * "Reset Generation"), dropping its payload and options.
+     *
+     * @return the length of the reset, which starts at {@code request.offset()}, or -1 if the
+     *         request carries IPv6 extension headers.
+     */
+    static int writeTcpReset(IpPacket request) {
+        final ByteBuffer buf = request.buffer();
+        final int offset = request.offset();
+        final int transport = request.transportOffset();
+        if (request.isIpv6() && transport - offset != IpPacket.IPV6_HEADER_LENGTH) {
+            return -1;
+        }
+        final int flags = request.tcpFlags();
+        int segmentLength = request.payloadLength();
+        if ((flags & IpPacket.TCP_SYN) != 0) {
+            segmentLength++;
+        }
+        if ((flags & IpPacket.TCP_FIN) != 0) {
+            segmentLength++;
+        }
+        final boolean acked = (flags & IpPacket.TCP_ACK) != 0;
+        final int sequence = acked ? request.tcpAcknowledgment() : 0;
+        final int acknowledgment = request.tcpSequence() + segmentLength;
+
+        final int addressLength = request.addressLength();
+        final int sourceOffset = request.sourceAddressOffset();
+        final int destinationOffset = request.destinationAddressOffset();
+        for (int i = 0; i < addressLength; i += 4) {
+            final int source = buf.getInt(sourceOffset + i);
+            buf.putInt(sourceOffset + i, buf.getInt(destinationOffset + i));
+            buf.putInt(destinationOffset + i, source);
+        }
+        final int ports = buf.getInt(transport);
+        buf.putInt(transport, (ports << 16) | (ports >>> 16));
+        final int ipHeaderLength = transport - offset;
+        writeIpLength(request, ipHeaderLength + IpPacket.TCP_MIN_HEADER_LENGTH);
+        buf.putInt(transport + 4, sequence);
+        buf.putInt(transport + 8, acknowledgment);
+        buf.putShort(transport + 12, (short) ((IpPacket.TCP_MIN_HEADER_LENGTH / 4) << 12
+                | IpPacket.TCP_RST | (acked ? 0 : IpPacket.TCP_ACK)));
+        buf.putInt(transport + 14, 0);
+        buf.putShort(transport + 18, (short) 0);
+        finishTransportChecksum(buf, transport + 16, sourceOffset, destinationOffset,
+                addressLength, IpPacket.PROTOCOL_TCP, transport,
+                IpPacket.TCP_MIN_HEADER_LENGTH);
+        return ipHeaderLength + IpPacket.TCP_MIN_HEADER_LENGTH;
+    }
+
+    /** Sets the total length of the packet viewed by {@code request} to {@code length}. */
+    private static void writeIpLength(IpPacket request, int length) {
+        final ByteBuffer buf = request.buffer();
+        final int offset = request.offset();
+        if (request.isIpv6()) {
+            buf.putShort(offset + 4, (short) (length - IpPacket.IPV6_HEADER_LENGTH));
+        } else {
+            final int oldLength = buf.getShort(offset + 2) & 0xFFFF;
+            buf.putShort(offset + 2, (short) length);
+            buf.putShort(offset + 10,
+                    Checksum.update(buf.getShort(offset + 10), oldLength, length));
+        }
+    }
+
+    /**
+     * Writes the IP and TCP headers of a segment from the server of {@code flow} to its client
+     * at {@code buf[offset...]}, in front of {@code payloadLength} bytes of payload already
+     * stored after them. A positive {@code mss} adds that option, for SYN segments.
+     *
+     * @return the length of the segment.
+     */
+    static int writeTcp(ByteBuffer buf, int offset, FlowTable flows, int flow, int sequence,
+            int acknowledgment, int flags, int window, int mss, int payloadLength) {
+        final int tcpHeaderLength = IpPacket.TCP_MIN_HEADER_LENGTH + (mss > 0 ? 4 : 0);
+        final int tcpLength = tcpHeaderLength + payloadLength;
+        final int transport = offset + writeIpHeader(buf, offset, flows, flow,
+                IpPacket.PROTOCOL_TCP, tcpLength);
+        buf.putShort(transport, (short) flows.serverPort(flow));
+        buf.putShort(transport + 2, (short) flows.clientPort(flow));
+        buf.putInt(transport + 4, sequence);
+        buf.putInt(transport + 8, acknowledgment);
+        buf.putShort(transport + 12, (short) ((tcpHeaderLength / 4) << 12 | flags));
+        buf.putShort(transport + 14, (short) window);
+        buf.putInt(transport + 16, 0);
+        if (mss > 0) {
+            buf.putShort(transport + 20, (short) 0x0204);
+            buf.putShort(transport + 22, (short) mss);
+        }
+        writeTransportChecksum(buf, offset, flows, flow, IpPacket.PROTOCOL_TCP, transport + 16,
+                transport, tcpLength);
+        return transport - offset + tcpLength;
+    }
+
+    /**
+     * Writes the IP and UDP headers of a datagram from the server of {@code flow} to its
+     * client at {@code buf[offset...]}, in front of {@code payloadLength} bytes of payload
+     * already stored after them.
+     *
+     * @return the length of the packet.
+     */
+    static int writeUdp(ByteBuffer buf, int offset, FlowTable flows, int flow,
+            int payloadLength) {
+        final int udpLength = IpPacket.UDP_HEADER_LENGTH + payloadLength;
+        final int transport = offset + writeIpHeader(buf, offset, flows, flow,
+                IpPacket.PROTOCOL_UDP, udpLength);
+        buf.putShort(transport, (short) flows.serverPort(flow));
+        buf.putShort(transport + 2, (short) flows.clientPort(flow));
+        buf.putShort(transport + 4, (short) udpLength);
+        buf.putShort(transport + 6, (short) 0);
+        writeTransportChecksum(buf, offset, flows, flow, IpPacket.PROTOCOL_UDP, transport + 6,
+                transport, udpLength);
+        return transport - offset + udpLength;
+    }
+
+    /**
+     * Writes the header of an IP packet from the server of {@code flow} to its client,
+     * carrying {@code transportLength} bytes of {@code protocol}.
+     *
+     * @return its length.
+     */
+    private static int writeIpHeader(ByteBuffer buf, int offset, FlowTable flows, int flow,
+            int protocol, int transportLength) {
+        if (flows.isIpv6(flow)) {
+            buf.putInt(offset, 6 << 28);
+            buf.putShort(offset + 4, (short) transportLength);
+            buf.put(offset + 6, (byte) protocol);
+            buf.put(offset + 7, (byte) DEFAULT_TTL);
+            flows.putReplyAddresses(flow, buf, offset + 8, offset + 24);
+            return IpPacket.IPV6_HEADER_LENGTH;
+        }
+        final int headerLength = IpPacket.IPV4_MIN_HEADER_LENGTH;
+        buf.putShort(offset, (short) 0x4500);
+        buf.putShort(offset + 2, (short) (headerLength + transportLength));
+        // No fragmentation here, so no identification needed (RFC 6864).
+        buf.putShort(offset + 4, (short) 0);
+        buf.putShort(offset + 6, (short) IPV4_DONT_FRAGMENT);
+        buf.put(offset + 8, (byte) DEFAULT_TTL);
+        buf.put(offset + 9, (byte) protocol);
+        buf.putShort(offset + 10, (short) 0);
+        flows.putReplyAddresses(flow, buf, offset + 12, offset + 16);
+        buf.putShort(offset + 10, Checksum.finish(Checksum.add(buf, offset, headerLength, 0)));
+        return headerLength;
+    }
+
+    private static void writeTransportChecksum(ByteBuffer buf, int offset, FlowTable flows,
+            int flow, int protocol, int checksumOffset, int transport, int transportLength) {
+        final boolean ipv6 = flows.isIpv6(flow);
+        finishTransportChecksum(buf, checksumOffset, offset + (ipv6 ? 8 : 12),
+                offset + (ipv6 ? 24 : 16), ipv6 ? 16 : 4, protocol, transport,
+                transportLength);
+    }
+
+    /**
+     * Sums the pseudo-header and the transport header and payload at
+     * {@code buf[transport, transport + transportLength)}, whose checksum field at
+     * {@code checksumOffset} must be zero, and stores the checksum there.
+     */
+    private static void finishTransportChecksum(ByteBuffer buf, int checksumOffset,
+            int sourceOffset, int destinationOffset, int addressLength, int protocol,
+            int transport, int transportLength) {
+        int sum = Checksum.pseudoHeader(buf, sourceOffset, destinationOffset, addressLength,
+                protocol, transportLength);
+        sum = Checksum.add(buf, transport, transportLength, sum);
+        final short checksum = Checksum.finish(sum);
+        // Zero means "no checksum" for UDP; TCP accepts either form of it.
+        buf.putShort(checksumOffset, checksum == 0 ? (short) 0xFFFF : checksum);
+    }
+}
@@ -0,0 +1,480 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Table of the DNS queries sent upstream and still waiting for an answer, owned by the
+ * dispatcher thread and therefore not synchronized.
+ * <p>
+ * Each slot is one upstream query under a random transaction ID. Clients that ask the exact
+ * same thing while it is in flight do not get a query of their own: they are added to the
+ * slot's list of waiters, and every waiter gets its copy of the one answer. A waiter holds what
+ * it takes to address the reply: the client's transaction ID and the IP + UDP header of its
+ * request. Slots without waiters are refreshes started by the dispatcher itself.
+ */
+final class PendingQueries {
+    /**
+     * Largest IP + UDP header we keep per waiter. IPv4 tops out at 68 bytes and IPv6 extension
+     * headers are dropped before saving, leaving 48.
+     */
+    static final int MAX_HEADER_LENGTH = BufferPool.HEADROOM;
+    /**
+     * Longest query, past its transaction ID, that others can be coalesced with. A question is
+     * at most 259 bytes, which leaves room for the header and an EDNS OPT record.
+     */
+    private static final int MAX_KEY_LENGTH = 320;
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    // mIdToSlot maps an upstream transaction ID to its slot + 1, so that 0 means free; the
+    // per-slot arrays hold the rest.
+    private final char[] mIdToSlot = new char[1 << 16];
+    private final int[] mSlotId;
+    // Pool index of the socket the query first and last went out on, and a bit per socket it
+    // went out on at all; the answer must come back on one of those. Hence at most 64 sockets.
+    private final int[] mFirstSocket;
+    private final int[] mSocket;
+    private final long[] mSentOn;
+    // Whether some socket carried the query twice, making its answer ambiguous.
+    private final boolean[] mSocketReused;
+    private final long[] mSentAt;
+    // When the query was last (re)transmitted, and how many times it was sent.
+    private final long[] mLastSentAt;
+    private final int[] mAttempts;
+    private final boolean[] mRetransmitting;
+    private final boolean[] mHedged;
+    // Whether the OPT record the query went out with was added on the client's behalf.
+    private final boolean[] mOptAdded;
+    private final int[] mFirstWaiter;
+    private final int[] mFreeSlots;
+    private int mFreeCount;
+
+    // The query past its transaction ID, so that identical ones can be found; a key length of
+    // -1 means the query is too long to share. Chained in a hash table of their own.
+    private final byte[][] mKeys;
+    private final int[] mKeyLength;
+    private final int[] mKeyHash;
+    private final int[] mKeyBuckets;
+    private final int[] mKeyNext;
+
+    // Waiters, linked per slot through mWaiterNext.
+    private final byte[][] mHeaders;
+    private final int[] mHeaderLength;
+    private final int[] mClientId;
+    private final int[] mWaiterNext;
+    private final int[] mFreeWaiters;
+    private int mFreeWaiterCount;
+
+    PendingQueries(int capacity, int maxWaiters) {
+        mSlotId = new int[capacity];
+        mFirstSocket = new int[capacity];
+        mSocket = new int[capacity];
+        mSentOn = new long[capacity];
+        mSocketReused = new boolean[capacity];
+        mSentAt = new long[capacity];
+        mLastSentAt = new long[capacity];
+        mAttempts = new int[capacity];
+        mRetransmitting = new boolean[capacity];
+        mHedged = new boolean[capacity];
+        mOptAdded = new boolean[capacity];
+        mFirstWaiter = new int[capacity];
+        mFreeSlots = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            mFreeSlots[slot] = capacity - 1 - slot;
+        }
+        mFreeCount = capacity;
+
+        mKeys = new byte[capacity][MAX_KEY_LENGTH];
+        mKeyLength = new int[capacity];
+        mKeyHash = new int[capacity];
+        mKeyNext = new int[capacity];
+        mKeyBuckets = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+        Arrays.fill(mKeyBuckets, -1);
+
+        mHeaders = new byte[maxWaiters][MAX_HEADER_LENGTH];
+        mHeaderLength = new int[maxWaiters];
+        mClientId = new int[maxWaiters];
+        mWaiterNext = new int[maxWaiters];
+        mFreeWaiters = new int[maxWaiters];
+        for (int waiter = 0; waiter < maxWaiters; waiter++) {
+            mFreeWaiters[waiter] = maxWaiters - 1 - waiter;
+        }
+        mFreeWaiterCount = maxWaiters;
+    }
+
+    int capacity() {
+        return mSlotId.length;
+    }
+
+    /** Number of slots in use. */
+    int size() {
+        return mSlotId.length - mFreeCount;
+    }
+
+    /** Returns the slot of the query in flight under transaction ID {@code id}, or -1. */
+    int slotForId(int id) {
+        return mIdToSlot[id] - 1;
+    }
+
+    int id(int slot) {
+        return mSlotId[slot];
+    }
+
+    int socket(int slot) {
+        return mSocket[slot];
+    }
+
+    /** Whether the query of {@code slot} went out on socket {@code socket}. */
+    boolean sentOn(int slot, int socket) {
+        return (mSentOn[slot] & (1L << socket)) != 0;
+    }
+
+    /** When the query was first sent, or 0 if the slot is free. */
+    long sentAt(int slot) {
+        return mSentAt[slot];
+    }
+
+    /** When the query was last sent. */
+    long lastSentAt(int slot) {
+        return mLastSentAt[slot];
+    }
+
+    /**
+     * When the copy of the query that went out on {@code socket} was sent, or 0 if that
+     * cannot be told, because the socket carried several copies or one sent in between.
+     */
+    long sentAt(int slot, int socket) {
+        if (mSocketReused[slot]) {
+            return 0;
+        }
+        if (socket == mSocket[slot]) {
+            return mLastSentAt[slot];
+        }
+        return socket == mFirstSocket[slot] ? mSentAt[slot] : 0;
+    }
+
+    /** The socket the query first went out on. */
+    int firstSocket(int slot) {
+        return mFirstSocket[slot];
+    }
+
+    /** Number of times the query was sent. */
+    int attempts(int slot) {
+        return mAttempts[slot];
+    }
+
+    /** Records that the query of {@code slot} was sent again, on socket {@code socket}. */
+    void resent(int slot, int socket, long now) {
+        mSocketReused[slot] |= sentOn(slot, socket);
+        mSocket[slot] = socket;
+        mSentOn[slot] |= 1L << socket;
+        mLastSentAt[slot] = now;
+        mAttempts[slot]++;
+    }
+
+    /** Whether the query of {@code slot} may still be sent again when its RTO runs out. */
+    boolean isRetransmitting(int slot) {
+        return mRetransmitting[slot];
+    }
+
+    /** Records that the query of {@code slot} will not be sent again. */
+    void stopRetransmits(int slot) {
+        mRetransmitting[slot] = false;
+    }
+
+    /** Whether a copy of the query went to a second upstream before its RTO ran out. */
+    boolean isHedged(int slot) {
+        return mHedged[slot];
+    }
+
+    void setHedged(int slot) {
+        mHedged[slot] = true;
+    }
+
+    /** Whether the query went upstream with an OPT record the client had not put in. */
+    boolean isOptAdded(int slot) {
+        return mOptAdded[slot];
+    }
+
+    void setOptAdded(int slot) {
+        mOptAdded[slot] = true;
+    }
+
+    /**
+     * Returns the slot of the query in flight that is identical to the DNS query carried by
+     * {@code request} but for its transaction ID, or -1.
+     */
+    int find(IpPacket request) {
+        return find(request.buffer(), request.payloadOffset(), request.payloadLength());
+    }
+
+    /**
+     * Returns the slot of the query in flight that is identical to the DNS query at
+     * {@code buf[dns, dns + length)} but for its transaction ID, or -1.
+     */
+    int find(ByteBuffer buf, int dns, int length) {
+        final int key = dns + 2;
+        length -= 2;
+        if (length > MAX_KEY_LENGTH) {
+            return -1;
+        }
+        final int hash = hash(buf, key, length);
+        for (int slot = mKeyBuckets[hash & (mKeyBuckets.length - 1)]; slot >= 0;
+                slot = mKeyNext[slot]) {
+            if (mKeyHash[slot] == hash && mKeyLength[slot] == length
+                    && matches(mKeys[slot], buf, key, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a free slot for the query carried by {@code request}, under a fresh random
+     * transaction ID, with the client as its first waiter.
+     *
+     * @return the slot, or -1 if the table is full.
+     */
+    int add(IpPacket request, int socket, long now) {
+        if (mFreeWaiterCount == 0) {
+            return -1;
+        }
+        final int slot = add(request.buffer(), request.payloadOffset(), request.payloadLength(),
+                socket, now);
+        if (slot >= 0) {
+            addWaiter(slot, request);
+        }
+        return slot;
+    }
+
+    /**
+     * Takes a free slot without waiters for the DNS query at {@code buf[dns, dns + length)},
+     * under a fresh random transaction ID.
+     *
+     * @return the slot, or -1 if the table is full.
+     */
+    int add(ByteBuffer buf, int dns, int length, int socket, long now) {
+        if (mFreeCount == 0) {
+            return -1;
+        }
+        final int slot = mFreeSlots[--mFreeCount];
+        final int id = nextId();
+        mIdToSlot[id] = (char) (slot + 1);
+        mSlotId[slot] = id;
+        mFirstSocket[slot] = socket;
+        mSocket[slot] = socket;
+        mSentOn[slot] = 1L << socket;
+        mSocketReused[slot] = false;
+        mSentAt[slot] = now;
+        mLastSentAt[slot] = now;
+        mAttempts[slot] = 1;
+        mRetransmitting[slot] = true;
+        mHedged[slot] = false;
+        mOptAdded[slot] = false;
+        mFirstWaiter[slot] = -1;
+
+        final int key = dns + 2;
+        length -= 2;
+        if (length <= MAX_KEY_LENGTH) {
+            final byte[] bytes = mKeys[slot];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buf.get(key + i);
+            }
+            mKeyLength[slot] = length;
+            mKeyHash[slot] = hash(buf, key, length);
+            final int bucket = mKeyHash[slot] & (mKeyBuckets.length - 1);
+            mKeyNext[slot] = mKeyBuckets[bucket];
+            mKeyBuckets[bucket] = slot;
+        } else {
+            mKeyLength[slot] = -1;
+        }
+        return slot;
+    }
+
+    /**
+     * Whether the client that sent {@code request} is already waiting on {@code slot} under the
+     * same transaction ID, i.e. the request is a retransmit.
+     */
+    boolean isWaiting(int slot, IpPacket request) {
+        final int clientId = request.buffer().getShort(request.payloadOffset()) & 0xFFFF;
+        for (int waiter = mFirstWaiter[slot]; waiter >= 0; waiter = mWaiterNext[waiter]) {
+            if (mClientId[waiter] == clientId && sameEndpoints(mHeaders[waiter], request)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the client that sent {@code request} to the waiters of {@code slot}.
+     *
+     * @return {@code false} if there is no room for another waiter.
+     */
+    boolean addWaiter(int slot, IpPacket request) {
+        if (mFreeWaiterCount == 0) {
+            return false;
+        }
+        final int waiter = mFreeWaiters[--mFreeWaiterCount];
+        mClientId[waiter] = request.buffer().getShort(request.payloadOffset()) & 0xFFFF;
+        mHeaderLength[waiter] = saveHeader(request, mHeaders[waiter]);
+        mWaiterNext[waiter] = mFirstWaiter[slot];
+        mFirstWaiter[slot] = waiter;
+        return true;
+    }
+
+    /** Returns the first waiter of {@code slot}, or -1. */
+    int firstWaiter(int slot) {
+        return mFirstWaiter[slot];
+    }
+
+    /** Returns the waiter after {@code waiter} on the same slot, or -1. */
+    int nextWaiter(int waiter) {
+        return mWaiterNext[waiter];
+    }
+
+    int clientId(int waiter) {
+        return mClientId[waiter];
+    }
+
+    /** The saved IP + UDP header of the waiter's request. */
+    byte[] header(int waiter) {
+        return mHeaders[waiter];
+    }
+
+    int headerLength(int waiter) {
+        return mHeaderLength[waiter];
+    }
+
+    /**
+     * Writes the query of {@code slot} to {@code buf} at {@code offset}, with a zero transaction
+     * ID.
+     *
+     * @return its length, or -1 if it was too long to keep.
+     */
+    int copyQuery(int slot, ByteBuffer buf, int offset) {
+        final int length = mKeyLength[slot];
+        if (length < 0) {
+            return -1;
+        }
+        buf.putShort(offset, (short) 0);
+        final byte[] key = mKeys[slot];
+        for (int i = 0; i < length; i++) {
+            buf.put(offset + 2 + i, key[i]);
+        }
+        return 2 + length;
+    }
+
+    /** Forgets the first waiter of {@code slot}, once it is served; the slot stays in flight. */
+    void removeFirstWaiter(int slot) {
+        final int waiter = mFirstWaiter[slot];
+        mFirstWaiter[slot] = mWaiterNext[waiter];
+        mFreeWaiters[mFreeWaiterCount++] = waiter;
+    }
+
+    /** Forgets the waiters of {@code slot}, which stays in flight. */
+    void clearWaiters(int slot) {
+        for (int waiter = mFirstWaiter[slot]; waiter >= 0; waiter = mWaiterNext[waiter]) {
+            mFreeWaiters[mFreeWaiterCount++] = waiter;
+        }
+        mFirstWaiter[slot] = -1;
+    }
+
+    /** Frees {@code slot} along with its waiters. */
+    void release(int slot) {
+        mIdToSlot[mSlotId[slot]] = 0;
+        mSentAt[slot] = 0;
+        clearWaiters(slot);
+        if (mKeyLength[slot] >= 0) {
+            final int bucket = mKeyHash[slot] & (mKeyBuckets.length - 1);
+            if (mKeyBuckets[bucket] == slot) {
+                mKeyBuckets[bucket] = mKeyNext[slot];
+            } else {
+                for (int i = mKeyBuckets[bucket]; i >= 0; i = mKeyNext[i]) {
+                    if (mKeyNext[i] == slot) {
+                        mKeyNext[i] = mKeyNext[slot];
+                        break;
+                    }
+                }
+            }
+        }
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    /** Picks an unused random transaction ID, so that answers cannot be easily spoofed. */
+    private int nextId() {
+        int id;
+        do {
+            id = mRandom.nextInt(1 << 16);
+        } while (mIdToSlot[id] != 0);
+        return id;
+    }
+
+    /**
+     * Copies the IP + UDP header of {@code request} to {@code header}, leaving out any IPv6
+     * extension headers so the UDP header directly follows the IP header.
+     *
+     * @return the number of bytes saved.
+     */
+    private static int saveHeader(IpPacket request, byte[] header) {
+        final ByteBuffer buf = request.buffer();
+        final int offset = request.offset();
+        final int ipLength =
+                request.isIpv6() ? IpPacket.IPV6_HEADER_LENGTH : request.headerLength();
+        for (int i = 0; i < ipLength; i++) {
+            header[i] = buf.get(offset + i);
+        }
+        if (request.isIpv6()) {
+            header[6] = (byte) IpPacket.PROTOCOL_UDP;
+        }
+        final int transport = request.transportOffset();
+        for (int i = 0; i < IpPacket.UDP_HEADER_LENGTH; i++) {
+            header[ipLength + i] = buf.get(transport + i);
+        }
+        return ipLength + IpPacket.UDP_HEADER_LENGTH;
+    }
+
+    /** Whether {@code header} was saved from a request with the same addresses and ports. */
+    private static boolean sameEndpoints(byte[] header, IpPacket request) {
+        if (((header[0] & 0xFF) >>> 4) != request.version()) {
+            return false;
+        }
+        final ByteBuffer buf = request.buffer();
+        // Source and destination addresses are adjacent in both IP versions.
+        final int addresses = request.sourceAddressOffset();
+        final int headerAddresses = addresses - request.offset();
+        for (int i = 0; i < 2 * request.addressLength(); i++) {
+            if (header[headerAddresses + i] != buf.get(addresses + i)) {
+                return false;
+            }
+        }
+        final int ipLength = request.isIpv6()
+                ? IpPacket.IPV6_HEADER_LENGTH : (header[0] & 0x0F) * 4;
+        final int ports = request.transportOffset();
+        for (int i = 0; i < 4; i++) {
+            if (header[ipLength + i] != buf.get(ports + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a.
+    private static int hash(ByteBuffer buf, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (buf.get(offset + i) & 0xFF)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buf, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buf.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.toyvpnjava;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded index from the addresses in DNS answers back to the names that were asked for, so
+ * that traffic to an address can be attributed to a domain, and PTR queries for it answered.
+ * <p>
+ * Addresses are keyed as two longs, IPv4 ones in their IPv4-mapped IPv6 form, in an
+ * open-addressing table with no objects per key. An entry lives as long as the record that
+ * gave it, plus {@link #LINGER_MS} for connections opened just before it expired. Each key
+ * has a window of {@link #MAX_PROBES} slots: a new entry takes an empty or expired slot of its
+ * window, or else evicts the one expiring first, so lookups never probe further than that.
+ * When several names resolve to the same address, the latest one wins.
+ * <p>
+ * Answers are added by the dispatcher and lookups come from any thread, so the methods
+ * touching the table are synchronized.
+ */
+final class ReverseIndex {
+    /** Time an address keeps its name after the record's TTL ran out. */
+    static final long LINGER_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long MAX_TTL_S = TimeUnit.DAYS.toSeconds(1);
+    private static final int MAX_PROBES = 8;
+    /** High half of the key of every IPv4 address. */
+    static final long IPV4_HIGH = 0;
+    private static final long IPV4_MAPPED = 0xFFFF00000000L;
+
+    private final long[] mHigh;
+    private final long[] mLow;
+    // 0 for slots never used; lookups stop there.
+    private final long[] mExpiresAt;
+    // The question name in wire format, lower case; shared by the records of one answer.
+    private final byte[][] mNames;
+    private final int mMask;
+    private final DnsMessage mMessage = new DnsMessage();
+
+    /** @param capacity the number of addresses kept, rounded up to a power of two. */
+    ReverseIndex(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity) * 2 - 1);
+        mHigh = new long[size];
+        mLow = new long[size];
+        mExpiresAt = new long[size];
+        mNames = new byte[size][];
+        mMask = size - 1;
+    }
+
+    /** Low half of the key of the IPv4 address {@code address}. */
+    static long ipv4Low(int address) {
+        return IPV4_MAPPED | (address & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Adds the addresses in the A and AAAA records answering the DNS response at
+     * {@code buf[offset, offset + length)}, under the name of its question.
+     */
+    synchronized void put(ByteBuffer buf, int offset, int length, long now) {
+        final DnsMessage message = mMessage;
+        if (!message.wrap(buf, offset, length) || !message.isResponse()
+                || message.rcode() != DnsMessage.RCODE_NOERROR) {
+            return;
+        }
+        byte[] name = null;
+        while (message.nextRecord()) {
+            if (message.section() != DnsMessage.SECTION_ANSWER
+                    || message.recordClass() != DnsMessage.CLASS_IN) {
+                continue;
+            }
+            final int type = message.recordType();
+            final int data = message.recordDataOffset();
+            final long high;
+            final long low;
+            if (type == DnsMessage.TYPE_A && message.recordDataLength() == 4) {
+                high = IPV4_HIGH;
+                low = ipv4Low(buf.getInt(data));
+            } else if (type == DnsMessage.TYPE_AAAA && message.recordDataLength() == 16) {
+                high = buf.getLong(data);
+                low = buf.getLong(data + 8);
+            } else {
+                continue;
+            }
+            if (name == null) {
+                name = questionName(message);
+            }
+            final long ttl = Math.min(MAX_TTL_S, message.recordTtl() & 0xFFFFFFFFL);
+            insert(high, low, name, now + TimeUnit.SECONDS.toMillis(ttl) + LINGER_MS);
+        }
+    }
+
+    /**
+     * Appends the name {@code high:low} was last resolved from to {@code out}, in dotted form
+     * without the final dot.
+     *
+     * @return {@code false} if the address is unknown, or its entry expired.
+     */
+    synchronized boolean lookup(long high, long low, long now, StringBuilder out) {
+        final int slot = find(high, low, now);
+        if (slot < 0) {
+            return false;
+        }
+        final byte[] name = mNames[slot];
+        for (int position = 0; name[position] != 0; position += 1 + name[position]) {
+            if (position > 0) {
+                out.append('.');
+            }
+            for (int i = 1; i <= name[position]; i++) {
+                out.append((char) (name[position + i] & 0xFF));
+            }
+        }
+        return true;
+    }
+
+    /** Returns the name {@code address} was last resolved from, or {@code null}. */
+    String lookup(InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        final StringBuilder sb = new StringBuilder();
+        final long now = System.currentTimeMillis();
+        final boolean found = bytes.length == 4
+                ? lookup(IPV4_HIGH, ipv4Low(buf.getInt(0)), now, sb)
+                : lookup(buf.getLong(0), buf.getLong(8), now, sb);
+        return found ? sb.toString() : null;
+    }
+
+    /**
+     * Reads the address a reverse lookup name such as "4.3.2.1.in-addr.arpa" or the nibble
+     * form under "ip6.arpa" stands for, from the uncompressed name at {@code buf[name...]},
+     * into {@code key} as its high and low halves.
+     *
+     * @return {@code false} if the name is not the full reverse name of an address.
+     */
+    static boolean parseReverseName(ByteBuffer buf, int name, long[] key) {
+        long ipv4 = 0;
+        long high = 0;
+        long low = 0;
+        // Labels are least significant first: IPv4 has 4 decimal ones, IPv6 32 hex digits.
+        boolean decimal = true;
+        boolean nibbles = true;
+        int position = name;
+        for (int labels = 0; ; labels++) {
+            final int length = buf.get(position) & 0xFF;
+            if (length == 0 || (length & 0xC0) != 0) {
+                return false;
+            }
+            if (labelEquals(buf, position, "in-addr") || labelEquals(buf, position, "ip6")) {
+                final boolean v4 = (buf.get(position) & 0xFF) == 7;
+                final int arpa = position + 1 + length;
+                if (!(v4 ? decimal && labels == 4 : nibbles && labels == 32)
+                        || !labelEquals(buf, arpa, "arpa") || buf.get(arpa + 5) != 0) {
+                    return false;
+                }
+                key[0] = v4 ? IPV4_HIGH : high;
+                key[1] = v4 ? ipv4Low((int) ipv4) : low;
+                return true;
+            }
+            if (labels == 32) {
+                return false;
+            }
+            final int digit = length == 1 ? Character.digit(buf.get(position + 1), 16) : -1;
+            if (digit < 0) {
+                nibbles = false;
+            } else if (labels < 16) {
+                low |= (long) digit << (4 * labels);
+            } else {
+                high |= (long) digit << (4 * (labels - 16));
+            }
+            final int octet = labels < 4 ? parseOctet(buf, position + 1, length) : -1;
+            if (octet < 0) {
+                decimal = false;
+            } else {
+                ipv4 |= (long) octet << (8 * labels);
+            }
+            position += 1 + length;
+        }
+    }
+
+    /** Returns the value of the decimal label at {@code buf[offset, offset + length)}, or -1. */
+    private static int parseOctet(ByteBuffer buf, int offset, int length) {
+        if (length > 3) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            final int c = buf.get(offset + i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = 10 * value + c - '0';
+        }
+        return value <= 255 ? value : -1;
+    }
+
+    /** Whether the label at {@code buf[position]} is {@code label}, ignoring case. */
+    private static boolean labelEquals(ByteBuffer buf, int position, String label) {
+        if ((buf.get(position) & 0xFF) != label.length()) {
+            return false;
+        }
+        for (int i = 0; i < label.length(); i++) {
+            if ((buf.get(position + 1 + i) | 0x20) != label.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(long high, long low, long now) {
+        final int start = index(high, low);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int slot = (start + i) & mMask;
+            if (mExpiresAt[slot] == 0) {
+                return -1;
+            }
+            if (mHigh[slot] == high && mLow[slot] == low) {
+                return mExpiresAt[slot] > now ? slot : -1;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long high, long low, byte[] name, long expiresAt) {
+        final int start = index(high, low);
+        int victim = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int slot = (start + i) & mMask;
+            // Slots are never emptied, so the key cannot sit past an empty one.
+            if (mExpiresAt[slot] == 0 || (mHigh[slot] == high && mLow[slot] == low)) {
+                victim = slot;
+                break;
+            }
+            if (victim < 0 || mExpiresAt[slot] < mExpiresAt[victim]) {
+                victim = slot;
+            }
+        }
+        mHigh[victim] = high;
+        mLow[victim] = low;
+        mExpiresAt[victim] = expiresAt;
+        mNames[victim] = name;
+    }
+
+    private int index(long high, long low) {
+        long hash = (high * 0x9E3779B97F4A7C15L) ^ low;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash & mMask;
+    }
+
+    /** Copies the question name of {@code message} in wire format, lower case. */
+    private static byte[] questionName(DnsMessage message) {
+        final ByteBuffer buf = message.buffer();
+        final int start = message.questionNameOffset();
+        final byte[] name = new byte[message.questionEnd() - 4 - start];
+        for (int i = 0; i < name.length; i++) {
+            final byte b = buf.get(start + i);
+            // Label length bytes never exceed 63, so they are left alone.
+            name[i] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+        return name;
+    }
+}
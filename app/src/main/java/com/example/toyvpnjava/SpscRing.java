@@ -0,0 +1,71 @@
+package com.example.toyvpnjava;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue between exactly one producer thread and one consumer thread.
+ * <p>
+ * Only the producer moves the tail and only the consumer moves the head, so neither side takes
+ * a lock or retries a CAS. Each side caches the other's index and only re-reads it when the ring
+ * looks full or empty. Sleeping on an empty ring is up to the consumer; see
+ * {@link PacketStage}.
+ */
+final class SpscRing<E> {
+    private final Object[] mSlots;
+    private final int mMask;
+    // Index of the next element to poll; written by the consumer only.
+    private final AtomicLong mHead = new AtomicLong();
+    // Index of the next free slot; written by the producer only. The volatile store publishes
+    // the element and pairs with the consumer's check before it sleeps.
+    private final AtomicLong mTail = new AtomicLong();
+    // Producer's view of mHead.
+    private long mCachedHead;
+    // Consumer's view of mTail.
+    private long mCachedTail;
+
+    /** Creates a ring holding at least {@code capacity} elements. */
+    SpscRing(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        mSlots = new Object[size];
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    /** Producer only: appends {@code element}, or returns {@code false} if the ring is full. */
+    boolean offer(E element) {
+        final long tail = mTail.get();
+        if (tail - mCachedHead >= mSlots.length) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= mSlots.length) {
+                return false;
+            }
+        }
+        mSlots[(int) tail & mMask] = element;
+        mTail.set(tail + 1);
+        return true;
+    }
+
+    /** Consumer only: removes the oldest element, or returns {@code null} if there is none. */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long head = mHead.get();
+        if (head >= mCachedTail) {
+            mCachedTail = mTail.get();
+            if (head >= mCachedTail) {
+                return null;
+            }
+        }
+        final int index = (int) head & mMask;
+        final E element = (E) mSlots[index];
+        mSlots[index] = null;
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+}
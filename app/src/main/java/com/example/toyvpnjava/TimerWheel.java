@@ -0,0 +1,246 @@
+package com.example.toyvpnjava;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical hashed timer wheel (Varghese and Lauck): timers identified by small integer ids
+ * that are scheduled, rescheduled and cancelled in constant time, however many there are.
+ * <p>
+ * Time is cut into ticks of a fixed number of milliseconds. The wheel has {@link #LEVELS}
+ * levels of {@link #SLOTS} slots each, level {@code l} spanning {@code SLOTS^(l + 1)} ticks: a
+ * timer goes to the lowest level whose span still covers its deadline, in the slot of that
+ * deadline's digit there, and moves down a level each time the wheel turns past the slot it is
+ * in, until it fires from the lowest one. Timers further out than the top level covers, about
+ * 4.6 hours at a millisecond per tick, wait in an overflow list that is looked at again every
+ * time the top level wraps. A bitmap per level lets the wheel skip over empty slots, so that
+ * time may jump forward by hours at a cost of a few dozen steps.
+ * <p>
+ * Slots are intrusive doubly linked lists threaded through arrays indexed by timer id, so
+ * neither scheduling nor firing allocates. The wheel never reads the clock: callers pass the
+ * time in, as they do to {@link DnsCache} and {@link ReverseIndex}, so it can be driven by any
+ * clock. Timers never fire early, and at most a tick late.
+ * <p>
+ * Not thread-safe; each wheel belongs to the thread of the event loop it times.
+ */
+final class TimerWheel {
+    /** Called for each timer that fires. */
+    interface Listener {
+        /**
+         * @param timer the timer, which is no longer scheduled and may be scheduled again.
+         * @param now the time passed to {@link #advance}.
+         */
+        void onExpired(int timer, long now);
+    }
+
+    private static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+    // Ticks the levels span together; timers further out overflow.
+    private static final long SPAN_MASK = (1L << (SLOT_BITS * LEVELS)) - 1;
+    private static final int OVERFLOW = LEVELS * SLOTS;
+    private static final int NONE = -1;
+
+    private final long mTickMs;
+    // Current tick: everything due up to it has fired.
+    private long mTick;
+    private int mSize;
+    // First timer per slot, level by level, then of the overflow list.
+    private final int[] mHeads = new int[OVERFLOW + 1];
+    // Which slots of each level have timers.
+    private final long[] mOccupied = new long[LEVELS];
+    // Per timer: the slot it is in or NONE, its neighbours there, and the tick it is due.
+    private final int[] mSlots;
+    private final int[] mNext;
+    private final int[] mPrev;
+    private final long[] mDue;
+
+    /**
+     * @param capacity the number of timers; ids go from 0 to {@code capacity - 1}.
+     * @param tickMs the resolution of the wheel, in milliseconds.
+     * @param now the current time in milliseconds.
+     */
+    TimerWheel(int capacity, long tickMs, long now) {
+        mTickMs = tickMs;
+        mTick = now / tickMs;
+        Arrays.fill(mHeads, NONE);
+        mSlots = new int[capacity];
+        Arrays.fill(mSlots, NONE);
+        mNext = new int[capacity];
+        mPrev = new int[capacity];
+        mDue = new long[capacity];
+    }
+
+    /** Number of scheduled timers. */
+    int size() {
+        return mSize;
+    }
+
+    boolean isScheduled(int timer) {
+        return mSlots[timer] != NONE;
+    }
+
+    /**
+     * Schedules {@code timer} to fire once the time passed to {@link #advance} reaches
+     * {@code deadline}, replacing when it was due to fire if it was scheduled already.
+     * Deadlines already past fire on the next tick.
+     */
+    void schedule(int timer, long deadline) {
+        if (mSlots[timer] != NONE) {
+            unlink(timer);
+        } else {
+            mSize++;
+        }
+        // Rounded up, so that the timer never fires early.
+        final long due = Math.max(mTick + 1, deadline / mTickMs
+                + (deadline % mTickMs > 0 ? 1 : 0));
+        mDue[timer] = due;
+        insert(timer);
+    }
+
+    /** Unschedules {@code timer}, if it is scheduled. */
+    void cancel(int timer) {
+        if (mSlots[timer] != NONE) {
+            unlink(timer);
+            mSize--;
+        }
+    }
+
+    /**
+     * Returns when {@link #advance} next has something to do, at the latest when the next
+     * timer is due, or {@link Long#MAX_VALUE} if none is scheduled. This is what an event
+     * loop should wait until; it may be earlier than the next deadline, when timers have to
+     * move down a level first.
+     */
+    long nextExpiry() {
+        final long tick = nextEvent();
+        return tick == Long.MAX_VALUE ? tick : tick * mTickMs;
+    }
+
+    /**
+     * Fires, in order of their deadlines to the tick, every timer due by {@code now}. Timers
+     * may be scheduled and cancelled from {@code listener}; those scheduled for {@code now} or
+     * earlier fire the next time round.
+     *
+     * @return the number of timers that fired.
+     */
+    int advance(long now, Listener listener) {
+        final long target = now / mTickMs;
+        int fired = 0;
+        while (mTick < target) {
+            final long next = nextEvent();
+            if (next > target) {
+                // Nothing in between: no timer to fire nor to move down a level.
+                mTick = target;
+                break;
+            }
+            mTick = next;
+            cascade();
+            final int slot = (int) (mTick & (SLOTS - 1));
+            for (int timer = mHeads[slot]; timer != NONE; timer = mHeads[slot]) {
+                unlink(timer);
+                mSize--;
+                fired++;
+                listener.onExpired(timer, now);
+            }
+        }
+        return fired;
+    }
+
+    /** Returns the next tick past the current one where a timer fires or moves down. */
+    private long nextEvent() {
+        if (mSize == 0) {
+            return Long.MAX_VALUE;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = level * SLOT_BITS;
+            final int digit = (int) (mTick >>> shift) & (SLOTS - 1);
+            // Timers only sit in slots past the current one of their level.
+            final long later = mOccupied[level] & (-2L << digit);
+            if (later != 0) {
+                final long period = (1L << (shift + SLOT_BITS)) - 1;
+                return (mTick & ~period) | ((long) Long.numberOfTrailingZeros(later) << shift);
+            }
+        }
+        // Only overflowed timers are left, looked at again once the top level wraps.
+        return (mTick | SPAN_MASK) + 1;
+    }
+
+    /**
+     * Moves the timers of the slots the wheel just turned to down to lower levels, from the
+     * top level on, so that the ones due now end up in the current slot of the lowest level.
+     */
+    private void cascade() {
+        if ((mTick & SPAN_MASK) == 0) {
+            reinsert(OVERFLOW);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            final int shift = level * SLOT_BITS;
+            if ((mTick & ((1L << shift) - 1)) == 0) {
+                reinsert(level * SLOTS + ((int) (mTick >>> shift) & (SLOTS - 1)));
+            }
+        }
+    }
+
+    /** Places the timers of {@code slot} again, for the current tick. */
+    private void reinsert(int slot) {
+        int timer = mHeads[slot];
+        if (timer == NONE) {
+            return;
+        }
+        mHeads[slot] = NONE;
+        if (slot < OVERFLOW) {
+            mOccupied[slot / SLOTS] &= ~(1L << (slot % SLOTS));
+        }
+        while (timer != NONE) {
+            final int next = mNext[timer];
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Links {@code timer} into the slot for its due tick: on the level of the highest digit in
+     * which that tick differs from the current one, or the current slot of the lowest level if
+     * it is due now.
+     */
+    private void insert(int timer) {
+        final long due = mDue[timer];
+        final long differing = due ^ mTick;
+        final int slot;
+        if ((differing & ~SPAN_MASK) != 0) {
+            slot = OVERFLOW;
+        } else {
+            final int level = differing == 0
+                    ? 0 : (63 - Long.numberOfLeadingZeros(differing)) / SLOT_BITS;
+            final int digit = (int) (due >>> (level * SLOT_BITS)) & (SLOTS - 1);
+            slot = level * SLOTS + digit;
+            mOccupied[level] |= 1L << digit;
+        }
+        final int head = mHeads[slot];
+        mNext[timer] = head;
+        mPrev[timer] = NONE;
+        if (head != NONE) {
+            mPrev[head] = timer;
+        }
+        mHeads[slot] = timer;
+        mSlots[timer] = slot;
+    }
+
+    private void unlink(int timer) {
+        final int slot = mSlots[timer];
+        final int next = mNext[timer];
+        final int prev = mPrev[timer];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHeads[slot] = next;
+            if (next == NONE && slot < OVERFLOW) {
+                mOccupied[slot / SLOTS] &= ~(1L << (slot % SLOTS));
+            }
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        }
+        mSlots[timer] = NONE;
+    }
+}
@@ -40,6 +40,23 @@ public class ToyVpnClient extends Activity {
         String PROXY_PORT = "proxyport";
         String ALLOW = "allow";
         String PACKAGES = "packages";
+        // Tunables without a field in the form; see ConnectionOptions.
+        String BATCH_SIZE = "batch.size";
+        String MTU = "mtu";
+        String CLASSIFIER_THREADS = "pipeline.classifiers";
+        String WRITER_THREAD = "pipeline.writer";
+        String CACHE_SIZE = "cache.size";
+        String REVERSE_INDEX_SIZE = "reverse.size";
+        String UPSTREAMS = "upstreams";
+        String HEDGE_PERCENT = "hedge.percent";
+        String BLOCK_NXDOMAIN = "block.nxdomain";
+        String FULL_TUNNEL = "tunnel.full";
+        String MAX_FLOWS = "flows.max";
+        String TUNNEL = "tunnel.enabled";
+        String ENCRYPT_TUNNEL = "tunnel.encrypt";
+        String TUNNEL_SOCKETS = "tunnel.sockets";
+        String AGGREGATION_DELAY = "tunnel.aggregation.delay";
+        String PATH_MTU = "tunnel.path.mtu";
     }
     @RequiresApi(api = Build.VERSION_CODES.N)
     @Override
@@ -15,30 +15,38 @@
  */
 package com.example.toyvpnjava;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import android.app.PendingIntent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.nio.channels.DatagramChannel;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -48,9 +56,6 @@ public class ToyVpnConnection implements Runnable {
     private String TAG = "ToyVpnConnection";
     String L4_SOCKET_ADDR = "10.0.0.2";
 
-    //String GOOGLE_DNS_SERVER = "8.8.8.8";
-    String CF_DNS_SERVER = "1.1.1.1";
-
     /**
      * Callback interface to let the {@link ToyVpnService} know about new connections
      * and update the foreground notification with connection status.
@@ -59,14 +64,14 @@ public class ToyVpnConnection implements Runnable {
         void onEstablish(ParcelFileDescriptor tunInterface);
     }
 
-    /**
-     * Maximum packet size is constrained by the MTU, which is given as a signed short.
-     */
-    private static final int MAX_PACKET_SIZE = Short.MAX_VALUE;
     /**
      * Time to wait in between losing the connection and retrying.
      */
     private static final long RECONNECT_WAIT_MS = TimeUnit.SECONDS.toMillis(3);
+    /**
+     * Time to back off when every packet buffer is in flight.
+     */
+    private static final long STARVED_WAIT_MS = 1;
     /**
      * Time between keepalives if there is no traffic at the moment.
      * <p>
@@ -79,25 +84,53 @@ public class ToyVpnConnection implements Runnable {
      */
     private static final long RECEIVE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
     /**
-     * Time between polling the VPN interface for new traffic, since it's non-blocking.
-     * <p>
-     * TODO: really don't do this; a blocking read on another thread is much cleaner.
+     * Time between snapshots of the DNS cache, which are also taken on shutdown. They let the
+     * next connection start with the answers learned so far, even after the process died.
      */
-    private static final long IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(100);
+    private static final long CACHE_SNAPSHOT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+    /** Resolution of the timers above, which need no better. */
+    private static final long TIMER_TICK_MS = 100;
+    // Timer ids.
+    private static final int KEEPALIVE_TIMER = 0;
+    private static final int RECEIVE_TIMER = 1;
+    private static final int SNAPSHOT_TIMER = 2;
     /**
-     * Number of periods of length {@IDLE_INTERVAL_MS} to wait before declaring the handshake a
-     * complete and abject failure.
+     * Number of periods of {@link #HANDSHAKE_POLL_MS} to wait for the server's parameters before
+     * declaring the handshake a complete and abject failure.
      * <p>
      * TODO: use a higher-level protocol; hand-rolling is a fun but pointless exercise.
      */
     private static final int MAX_HANDSHAKE_ATTEMPTS = 50;
+    private static final long HANDSHAKE_POLL_MS = 100;
+    /**
+     * Number of long-lived sockets queries to each upstream resolver rotate over.
+     */
+    private static final int UPSTREAM_SOCKETS = 4;
+    /**
+     * Packet buffers allocated per batch the pipeline can hold at once. Once they are all in
+     * flight the reader stops draining the tun interface until the writer returns some.
+     */
+    private static final int BUFFERS_PER_BATCH = 4;
     private final VpnService mService;
     private final int mConnectionId;
     private final String mServerName;
     private final int mServerPort;
     private final byte[] mSharedSecret;
+    // Write end of a pipe polled next to the tun interface, so wakeup() can rouse the reader.
+    private volatile FileDescriptor mWakeupFd;
     private PendingIntent mConfigureIntent;
     private OnEstablishListener mOnEstablishListener;
+    private ConnectionOptions mOptions = new ConnectionOptions();
+    private final Metrics mMetrics = new Metrics();
+    // Timers of the connection thread, and whether the cache snapshot timer went off.
+    private final TimerWheel mTimers =
+            new TimerWheel(SNAPSHOT_TIMER + 1, TIMER_TICK_MS, System.currentTimeMillis());
+    private final TimerWheel.Listener mTimerListener = this::onTimer;
+    private boolean mSnapshotDue;
+    // Whether the receive timer went off in tunnel mode, where the tunnel has the last word.
+    private boolean mReceiveDue;
+    // Keys of the session the last handshake set up; null if the tunnel is in the clear.
+    private TunnelCipher mTunnelCipher;
     // Proxy settings
     private String mProxyHostName;
     private int mProxyHostPort;
@@ -136,163 +169,524 @@ public class ToyVpnConnection implements Runnable {
         mOnEstablishListener = listener;
     }
 
+    /**
+     * Optionally, override the default tunables. This must be called before the connection is
+     * started.
+     */
+    public void setOptions(ConnectionOptions options) {
+        mOptions = options;
+        mMetrics.batchSize = options.batchSize;
+    }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Wakes the connection thread if it is waiting for tun traffic. Call it after interrupting
+     * that thread: poll() does not return on interrupts, nor when another thread closes the
+     * interface.
+     */
+    public void wakeup() {
+        final FileDescriptor fd = mWakeupFd;
+        if (fd != null) {
+            try {
+                Os.write(fd, new byte[]{1}, 0, 1);
+            } catch (ErrnoException | InterruptedIOException e) {
+                Log.w(getTag(), "Cannot wake up connection", e);
+            }
+        }
+    }
+
     @Override
     public void run() {
+        FileDescriptor[] wakeupPipe = null;
+        PacketPipeline pipeline = null;
+        ConnectivityManager.NetworkCallback networkCallback = null;
         try {
+            wakeupPipe = Os.pipe();
+            mWakeupFd = wakeupPipe[1];
+            // One set of MTU-sized buffers serves both directions: the reader fills them with
+            // requests, and the forwarder receives answers into them behind room for headers.
+            final BufferPool buffers = new BufferPool(
+                    BUFFERS_PER_BATCH * mOptions.batchSize, mOptions.mtu);
+            // Upstream sockets and pending queries outlive tun interface re-creation; they
+            // are only rebuilt when the underlying network changes.
+            pipeline = new PacketPipeline(mService, mOptions, buffers, new UpstreamSocketPool(
+                    mService, mOptions.upstreamServers(), UPSTREAM_SOCKETS), openBlocklist(),
+                    mMetrics);
+            pipeline.setDebugging(isDebugging);
+            loadCacheSnapshot(pipeline);
+            pipeline.start();
+            networkCallback = registerNetworkCallback(pipeline);
             Log.i(getTag(), "Starting");
             // If anything needs to be obtained using the network, get it now.
             // This greatly reduces the complexity of seamless handover, which
             // tries to recreate the tunnel without shutting down everything.
             // In this demo, all we need to know is the server address.
-            final SocketAddress serverAddress = new InetSocketAddress(mServerName, mServerPort);
+            final InetSocketAddress serverAddress = new InetSocketAddress(mServerName, mServerPort);
+            if (mOptions.tunnel && serverAddress.isUnresolved()) {
+                throw new UnknownHostException(mServerName);
+            }
             // We try to create the tunnel several times.
             // TODO: The better way is to work with ConnectivityManager, trying only when the
             // network is available.
             // Here we just use a counter to keep things simple.
             for (int attempt = 0; attempt < 10; ++attempt) {
                 // Reset the counter if we were connected.
-                if (run(serverAddress)) {
+                if (run(serverAddress, wakeupPipe[0], pipeline, buffers)) {
                     attempt = 0;
                 }
                 // Sleep for a while. This also checks if we got interrupted.
                 Thread.sleep(3000);
             }
             Log.i(getTag(), "Giving up");
-        } catch (IOException | InterruptedException | IllegalArgumentException e) {
+        } catch (IOException | InterruptedException | IllegalArgumentException
+                 | ErrnoException | NoSuchAlgorithmException e) {
             if (isDebugging) Log.e(getTag(), "Connection failed, exiting", e);
+        } finally {
+            if (networkCallback != null) {
+                mService.getSystemService(ConnectivityManager.class)
+                        .unregisterNetworkCallback(networkCallback);
+            }
+            if (pipeline != null) {
+                saveCacheSnapshot(pipeline);
+                try {
+                    pipeline.close();
+                } catch (IOException e) {
+                    Log.w(getTag(), "Closing upstream sockets", e);
+                }
+            }
+            mWakeupFd = null;
+            if (wakeupPipe != null) {
+                closeQuietly(wakeupPipe[0]);
+                closeQuietly(wakeupPipe[1]);
+            }
         }
     }
 
-    private boolean run(SocketAddress server)
-            throws IOException, InterruptedException, IllegalArgumentException {
+    /**
+     * Sets the tun interface up and forwards packets until the tunnel times out, in tunnel mode,
+     * or until something goes wrong.
+     *
+     * @return whether the connection was up at all, in which case it is worth retrying at once.
+     */
+    private boolean run(SocketAddress server, FileDescriptor wakeupFd, PacketPipeline pipeline,
+            BufferPool buffers) throws IOException, InterruptedException, IllegalArgumentException {
         ParcelFileDescriptor iface = null;
+        // One per tunnel forwarder, each a session of its own; none unless in tunnel mode.
+        final DatagramChannel[] tunnels =
+                new DatagramChannel[mOptions.tunnel ? mOptions.tunnelSockets : 0];
         boolean connected = false;
-        // Create a DatagramChannel as the VPN tunnel.
-
-        iface = configure();
-        // Now we are connected. Set the flag.
-        connected = true;
-        // Packets to be sent are queued in this input stream.
-        FileInputStream in = new FileInputStream(iface.getFileDescriptor());
-        // Packets received need to be written to this output stream.
-        FileOutputStream out = new FileOutputStream(iface.getFileDescriptor());
-        // Allocate the buffer for a single packet.
-        ByteBuffer reqBuf = ByteBuffer.allocate(MAX_PACKET_SIZE);
-        // Timeouts:
+        try {
+            if (mOptions.tunnel) {
+                final TunnelProtocol.Parameters[] parameters =
+                        new TunnelProtocol.Parameters[tunnels.length];
+                final TunnelCipher[] ciphers = new TunnelCipher[tunnels.length];
+                for (int i = 0; i < tunnels.length; i++) {
+                    // Create a DatagramChannel as the VPN tunnel.
+                    tunnels[i] = DatagramChannel.open();
+                    // Protect the tunnel before connecting to avoid loopback.
+                    if (!mService.protect(tunnels[i].socket())) {
+                        throw new IllegalStateException("Cannot protect the tunnel");
+                    }
+                    tunnels[i].connect(server);
+                    // Non-blocking, as the tunnel stage waits on it with a selector.
+                    tunnels[i].configureBlocking(false);
+                    parameters[i] = handshake(tunnels[i]);
+                    ciphers[i] = mTunnelCipher;
+                    mTunnelCipher = null;
+                }
+                // Every session gets the same parameters; the first one's set the interface up.
+                iface = configure(parameters[0]);
+                for (int i = 0; i < tunnels.length; i++) {
+                    // The cipher is the tunnel stage's from now on.
+                    pipeline.setTunnel(i, tunnels[i],
+                            maxDatagram(parameters[i], (InetSocketAddress) server), ciphers[i]);
+                }
+            } else {
+                iface = configure(null);
+            }
+            // Now we are connected. Set the flag.
+            connected = true;
+            forward(iface, wakeupFd, pipeline, buffers, mOptions.tunnel);
+        } catch (SocketException e) {
+            Log.e(getTag(), "Cannot use socket", e);
+        } finally {
+            for (int i = 0; i < tunnels.length; i++) {
+                if (tunnels[i] != null) {
+                    pipeline.setTunnel(i, null, 0, null);
+                    UpstreamSocketPool.closeQuietly(tunnels[i]);
+                }
+            }
+            if (iface != null) {
+                pipeline.setOutput(null);
+                try {
+                    iface.close();
+                } catch (IOException e) {
+                    Log.e(getTag(), "Unable to close interface", e);
+                }
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Sends the handshake to the server and waits for the parameters it answers with. With
+     * {@link ConnectionOptions#encryptTunnel}, the secret stays out of the handshake, which sets
+     * up {@link #mTunnelCipher} instead; without, it goes in plaintext as the original server
+     * expects.
+     */
+    private TunnelProtocol.Parameters handshake(DatagramChannel tunnel)
+            throws IOException, InterruptedException {
+        final ByteBuffer packet = ByteBuffer.allocate(Math.max(TunnelProtocol.PARAMETERS_LENGTH
+                + TunnelCipher.ANSWER_HEADER_LENGTH + TunnelCipher.OVERHEAD,
+                1 + mSharedSecret.length));
+        final byte[] clientRandom = mOptions.encryptTunnel ? TunnelCipher.newRandom() : null;
+        try {
+            if (clientRandom != null) {
+                TunnelCipher.putHandshake(packet, mSharedSecret, clientRandom);
+            } else {
+                TunnelProtocol.putHandshake(packet, mSharedSecret);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        // Send the handshake several times in case some of them are lost.
+        for (int i = 0; i < TunnelProtocol.CONTROL_COPIES; ++i) {
+            packet.position(0);
+            tunnel.write(packet);
+        }
+        // Wait for the parameters within a limited time, returning as soon as they arrive.
+        try (Selector selector = Selector.open()) {
+            tunnel.register(selector, SelectionKey.OP_READ);
+            for (int i = 0; i < MAX_HANDSHAKE_ATTEMPTS; ++i) {
+                selector.select(HANDSHAKE_POLL_MS);
+                selector.selectedKeys().clear();
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                packet.clear();
+                final int length = tunnel.read(packet);
+                if (clientRandom != null) {
+                    final TunnelProtocol.Parameters parameters =
+                            openAnswer(packet, length, clientRandom);
+                    if (parameters != null) {
+                        return parameters;
+                    }
+                } else if (length > 1 && TunnelProtocol.isControl(packet, 0, length)) {
+                    // Keepalives left over from an earlier session are a lone control byte.
+                    return TunnelProtocol.Parameters.parse(packet, 0, length);
+                }
+            }
+        }
+        throw new IOException("Timed out");
+    }
+
+    /**
+     * Opens the server's answer to an encrypted handshake, setting {@link #mTunnelCipher} up
+     * for the session it keys.
+     *
+     * @return the parameters, or {@code null} if {@code packet} is not an authentic answer to
+     *         the handshake of {@code clientRandom}.
+     */
+    private TunnelProtocol.Parameters openAnswer(ByteBuffer packet, int length,
+            byte[] clientRandom) {
+        final int sealed = length - TunnelCipher.ANSWER_HEADER_LENGTH;
+        if (sealed <= TunnelCipher.OVERHEAD
+                || !TunnelProtocol.isControl(packet, 0, length)) {
+            return null;
+        }
+        final byte[] serverRandom = new byte[TunnelCipher.RANDOM_LENGTH];
+        packet.position(1);
+        packet.get(serverRandom);
+        final TunnelCipher cipher;
+        try {
+            cipher = TunnelCipher.forClient(mSharedSecret, clientRandom, serverRandom);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        final int plaintext =
+                cipher.open(packet.array(), TunnelCipher.ANSWER_HEADER_LENGTH, sealed);
+        final int start = TunnelCipher.ANSWER_HEADER_LENGTH + TunnelCipher.HEADER_LENGTH;
+        if (plaintext <= 1 || !TunnelProtocol.isControl(packet, start, plaintext)) {
+            // Forged, or an answer to an earlier handshake.
+            return null;
+        }
+        mTunnelCipher = cipher;
+        return TunnelProtocol.Parameters.parse(packet, start, plaintext);
+    }
+
+    /**
+     * Returns the size of the largest datagram of several packets to send to {@code server},
+     * within the path MTU, or 0 if it takes one packet per datagram.
+     */
+    private int maxDatagram(TunnelProtocol.Parameters parameters, InetSocketAddress server) {
+        if (parameters.maxDatagram <= 0) {
+            return 0;
+        }
+        final int overhead = server.getAddress() instanceof Inet6Address
+                ? TunnelProtocol.UDP6_OVERHEAD : TunnelProtocol.UDP_OVERHEAD;
+        return Math.min(parameters.maxDatagram, mOptions.pathMtu - overhead);
+    }
+
+    /**
+     * Forwards packets between the tun interface and the pipeline until the tunnel times out,
+     * in tunnel mode, or until something goes wrong.
+     */
+    private void forward(ParcelFileDescriptor iface, FileDescriptor wakeupFd,
+            PacketPipeline pipeline, BufferPool buffers, boolean tunnel)
+            throws IOException, InterruptedException {
+        // Packets to be sent are queued in this input channel.
+        FileChannel in = new FileInputStream(iface.getFileDescriptor()).getChannel();
+        // Packets received need to be written to this output channel.
+        FileChannel out = new FileOutputStream(iface.getFileDescriptor()).getChannel();
+        // The interface is non-blocking: wait for it to become readable with poll() rather
+        // than sleeping, so a packet is picked up the moment it arrives and an idle tunnel
+        // costs no CPU. The wakeup pipe lets wakeup() cut the wait short.
+        final StructPollfd tunPollFd = new StructPollfd();
+        tunPollFd.fd = iface.getFileDescriptor();
+        tunPollFd.events = (short) OsConstants.POLLIN;
+        final StructPollfd wakeupPollFd = new StructPollfd();
+        wakeupPollFd.fd = wakeupFd;
+        wakeupPollFd.events = (short) OsConstants.POLLIN;
+        final StructPollfd[] pollFds = {tunPollFd, wakeupPollFd};
+        // Replies are written back to the tun interface by the last pipeline stage.
+        pipeline.setOutput(out);
+        // A batch of packets is drained from the interface per wakeup, each into a buffer
+        // borrowed from the pool, and spread over the pipeline inputs.
+        final int batchSize = mOptions.batchSize;
+        final PacketStage.Link[] inputs = pipeline.inputs();
+        int nextInput = 0;
+        // Timeouts, checked on every round whether the loop is busy or not:
         //   - when data has not been sent in a while, send empty keepalive messages.
-        //   - when data has not been received in a while, assume the connection is broken.
-        long lastSendTime = System.currentTimeMillis();
-        long lastReceiveTime = System.currentTimeMillis();
+        //   - in tunnel mode, when the tunnel stage has not received in a while, assume the
+        //     connection is broken. Other modes have no peer to lose, and an idle device sends
+        //     nothing through the tun interface, so they never time out.
+        final long startTime = System.currentTimeMillis();
+        mTimers.schedule(KEEPALIVE_TIMER, startTime + KEEPALIVE_INTERVAL_MS);
+        if (tunnel) {
+            mTimers.schedule(RECEIVE_TIMER, startTime + RECEIVE_TIMEOUT_MS);
+        }
+        mTimers.schedule(SNAPSHOT_TIMER, startTime + CACHE_SNAPSHOT_INTERVAL_MS);
         // We keep forwarding packets till something goes wrong.
         while (true) {
             // Assume that we did not make any progress in this iteration.
             boolean idle = true;
 
-
-            // (1) Read the outgoing packet from the input stream.
-            int length = in.read(reqBuf.array());
-
-
-            if (length > 0) {
-                reqBuf.limit(length);
-
-                // (2) L3 Packet deserialization
-
-                ByteBuffer reqTemp = reqBuf.asReadOnlyBuffer();
-                L3Packet reqPacket = new L3Packet(reqTemp);
-
-                // Accepts only UDP with port 53
-                if (!(reqPacket.protocol == 17 && reqPacket.destPort == 53)) {
-                    reqBuf.clear();
-                    reqTemp.clear();
-                    continue;
+            // (1) Read outgoing packets from the input stream until it runs dry or the batch
+            // budget is spent.
+            int reads = 0;
+            int sent = 0;
+            boolean starved = false;
+            while (reads < batchSize) {
+                final ByteBuffer reqBuf = buffers.acquire();
+                if (reqBuf == null) {
+                    // Every buffer is in flight; leave the rest in the interface.
+                    starved = true;
+                    break;
+                }
+                // Leave headroom like the forwarder does, so the pool stays uniform.
+                reqBuf.position(BufferPool.HEADROOM);
+                final int length = in.read(reqBuf);
+                if (length <= 0) {
+                    buffers.release(reqBuf);
+                    break;
                 }
+                reads++;
+
+                // (2) Hand the packet over to the next stage, which parses and classifies it.
+                reqBuf.limit(reqBuf.position()).position(BufferPool.HEADROOM);
+                if (inputs[nextInput].send(reqBuf)) {
+                    sent++;
+                } else {
+                    buffers.release(reqBuf);
+                }
+                if (++nextInput == inputs.length) {
+                    nextInput = 0;
+                }
+            }
 
+            if (reads > 0) {
+                mMetrics.recordReadBatch(reads);
+                // There might be more incoming packets.
                 idle = false;
-                lastReceiveTime = System.currentTimeMillis();
-
-                // (3) L4 Packet Forwarding (Device <-> DNS Server)
-
-
-                if (isDebugging) Log.e(TAG, "REQUEST========================================================================================================================");
-                if (isDebugging) reqPacket.print();
-                DatagramPacket respDatagramPacket = forwardL4Packet(reqPacket);
-
-                // TODO: (4) Packet Conversion (L3 <- L4)
-                // TODO: (5) Write the L3 Buffer to output stream.
-
-
-                ByteBuffer respBuf = ByteBuffer.allocate(MAX_PACKET_SIZE);
-
-                respBuf.put(reqBuf.array(), 0, 12);
+            }
+            if (sent > 0) {
+                // (3) L4 Packet Forwarding (Device <-> DNS Server) and (4) writing the
+                // L3 <- L4 converted replies (5) happen on the later stages, without waiting
+                // for each other.
+                for (PacketStage.Link input : inputs) {
+                    input.flush();
+                }
+                mTimers.schedule(KEEPALIVE_TIMER,
+                        System.currentTimeMillis() + KEEPALIVE_INTERVAL_MS);
+            }
+            if (starved && reads == 0) {
+                // The interface stays readable, so poll() would not wait; give the writer a
+                // moment to hand buffers back instead.
+                Thread.sleep(STARVED_WAIT_MS);
+                continue;
+            }
+            final long timeNow = System.currentTimeMillis();
+            mTimers.advance(timeNow, mTimerListener);
+            if (mReceiveDue) {
+                mReceiveDue = false;
+                final long receivedAt = pipeline.tunnelLastReceived();
+                if (timeNow - receivedAt >= RECEIVE_TIMEOUT_MS) {
+                    // The server is gone, or forgot us; a new handshake tells.
+                    Log.i(getTag(), "Tunnel timed out");
+                    return;
+                }
+                mTimers.schedule(RECEIVE_TIMER, receivedAt + RECEIVE_TIMEOUT_MS);
+            }
+            // If we are idle or waiting for the network, sleep until the next packet
+            // arrives or a timer is due.
+            if (idle) {
+                if (mSnapshotDue) {
+                    // Done while idle, so that no packet waits for the disk.
+                    mSnapshotDue = false;
+                    saveCacheSnapshot(pipeline);
+                }
+                awaitPacket(pollFds, mTimers.nextExpiry() - timeNow);
+            }
+        }
+    }
 
-                // SRC IP (4 bytes)
-//                respBuf.put((byte)1);
-//                respBuf.put((byte)1);
-//                respBuf.put((byte)1);
-//                respBuf.put((byte)1);
-                String[] destIpStr = reqPacket.destIP.split("\\.");
-                respBuf.put(Integer.valueOf(destIpStr[0]).byteValue());
-                respBuf.put(Integer.valueOf(destIpStr[1]).byteValue());
-                respBuf.put(Integer.valueOf(destIpStr[2]).byteValue());
-                respBuf.put(Integer.valueOf(destIpStr[3]).byteValue());
+    private void onTimer(int timer, long timeNow) {
+        if (timer == KEEPALIVE_TIMER) {
+            // We are receiving for a long time but not sending. Keepalives for a tunnel server
+            // are up to the tunnel stage, which does the sending, so just restart the timer.
+            if (isDebugging) Log.i(getTag(), "Metrics: " + mMetrics);
+            mTimers.schedule(KEEPALIVE_TIMER, timeNow + KEEPALIVE_INTERVAL_MS);
+        } else if (timer == RECEIVE_TIMER) {
+            // Only scheduled in tunnel mode; checked against what the tunnel received, back on
+            // the loop.
+            mReceiveDue = true;
+        } else {
+            mSnapshotDue = true;
+            mTimers.schedule(SNAPSHOT_TIMER, timeNow + CACHE_SNAPSHOT_INTERVAL_MS);
+        }
+    }
 
+    /**
+     * Watches the non-VPN networks, so that upstream sockets bound to a network that is gone
+     * get replaced instead of timing out query after query.
+     */
+    private ConnectivityManager.NetworkCallback registerNetworkCallback(
+            final PacketPipeline pipeline) {
+        final ConnectivityManager.NetworkCallback callback =
+                new ConnectivityManager.NetworkCallback() {
+                    private boolean mSeenFirst;
+
+                    @Override
+                    public void onAvailable(Network network) {
+                        // The first callback just reports the network we started on.
+                        if (mSeenFirst) {
+                            pipeline.invalidate();
+                        }
+                        mSeenFirst = true;
+                    }
 
-                // DEST IP (4 bytes)
-                String[] srcIpStr = reqPacket.srcIP.split("\\.");
-                respBuf.put(Integer.valueOf(srcIpStr[0]).byteValue());
-                respBuf.put(Integer.valueOf(srcIpStr[1]).byteValue());
-                respBuf.put(Integer.valueOf(srcIpStr[2]).byteValue());
-                respBuf.put(Integer.valueOf(srcIpStr[3]).byteValue());
+                    @Override
+                    public void onLost(Network network) {
+                        pipeline.invalidate();
+                    }
+                };
+        mService.getSystemService(ConnectivityManager.class).registerNetworkCallback(
+                new NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                        .build(),
+                callback);
+        return callback;
+    }
 
-                // UDP Header (8 bytes)
-                respBuf.putShort((short) reqPacket.destPort); // SRC PORT
-                respBuf.putShort((short) reqPacket.srcPort);  // DEST PORT
-                respBuf.putShort((short) (8 + respDatagramPacket.getLength()));  // UDP length
-                respBuf.putShort((short) 0);  // Optional checksum; 0 for unused
+    /**
+     * Blocks until the tun interface has a packet to read, {@link #wakeup()} is called or
+     * {@code timeoutMs} elapses.
+     */
+    private void awaitPacket(StructPollfd[] pollFds, long timeoutMs)
+            throws IOException, InterruptedException {
+        try {
+            Os.poll(pollFds, (int) Math.max(0, Math.min(timeoutMs, Integer.MAX_VALUE)));
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EINTR) {
+                throw e.rethrowAsIOException();
+            }
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
 
-                // L7 DNS Response Data
-                respBuf.put(respDatagramPacket.getData(), 0, respDatagramPacket.getLength());
-                respBuf.flip();  // limit = pos; pos = 0;
-                out.write(respBuf.array(), 0, respBuf.limit());
+    /**
+     * Maps the blocklist, if the app was given one. Only the header is read now; the rest is
+     * paged in as lookups need it.
+     *
+     * @return the blocklist, or {@code null} to block nothing.
+     */
+    private Blocklist openBlocklist() {
+        final File file = new File(mService.getFilesDir(), Blocklist.FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final Blocklist blocklist = Blocklist.open(file);
+            Log.i(getTag(), "Blocking " + blocklist.size() + " domains");
+            return blocklist;
+        } catch (IOException e) {
+            Log.w(getTag(), "Cannot load the blocklist", e);
+            return null;
+        }
+    }
 
+    private File cacheSnapshotFile() {
+        return new File(mService.getFilesDir(), DnsCache.SNAPSHOT_FILE_NAME);
+    }
 
-                ByteBuffer respTemp = respBuf.asReadOnlyBuffer();
-                L3Packet respPacket = new L3Packet(respTemp);
-                if (isDebugging) Log.e(TAG, "RESPONSE========================================================================================================================");
-                if (isDebugging) respPacket.print();
-                reqBuf.clear();
-                respBuf.clear();
+    /** Warms the DNS cache up with the answers of the last snapshot, if there is one. */
+    private void loadCacheSnapshot(PacketPipeline pipeline) {
+        final File file = cacheSnapshotFile();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            final int loaded = pipeline.loadCache(file);
+            if (loaded >= 0) {
+                Log.i(getTag(), "Loaded " + loaded + " cached DNS answers");
+            }
+        } catch (IOException e) {
+            Log.w(getTag(), "Cannot load the DNS cache snapshot", e);
+            file.delete();
+        }
+    }
 
-                // There might be more incoming packets.
-                idle = false;
-                lastSendTime = System.currentTimeMillis();
+    private void saveCacheSnapshot(PacketPipeline pipeline) {
+        try {
+            final int saved = pipeline.saveCache(cacheSnapshotFile());
+            if (isDebugging && saved >= 0) Log.i(getTag(), "Saved " + saved + " DNS answers");
+        } catch (IOException e) {
+            Log.w(getTag(), "Cannot save the DNS cache snapshot", e);
+        }
+    }
 
-            }
-            // If we are idle or waiting for the network, sleep for a
-            // fraction of time to avoid busy looping.
-            if (idle) {
-                Thread.sleep(IDLE_INTERVAL_MS);
-                final long timeNow = System.currentTimeMillis();
-                if (lastSendTime + KEEPALIVE_INTERVAL_MS <= timeNow) {
-                    // We are receiving for a long time but not sending.
-                    // Send empty control messages.
-                    reqBuf.put((byte) 0).limit(1);
-                    for (int i = 0; i < 3; ++i) {
-                        reqBuf.position(0);
-                        out.write(reqBuf.array(), 0, length);
-                    }
-                    reqBuf.clear();
-                    lastSendTime = timeNow;
-                } else if (lastReceiveTime + RECEIVE_TIMEOUT_MS <= timeNow) {
-                    // We are sending for a long time but not receiving.
-                    throw new IllegalStateException("Timed out");
-                }
-            }
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // Nothing left to do with it anyway.
         }
     }
 
-    private ParcelFileDescriptor configure() throws IllegalArgumentException {
+    /**
+     * Establishes the tun interface.
+     *
+     * @param parameters the parameters pushed by the tunnel server, or {@code null} if not in
+     *         tunnel mode.
+     */
+    private ParcelFileDescriptor configure(TunnelProtocol.Parameters parameters)
+            throws IllegalArgumentException {
         // Configure a builder while parsing the parameters.
         VpnService.Builder builder = mService.new Builder();
         // Create a new interface using the builder and save the parameters.
@@ -314,14 +708,50 @@ public class ToyVpnConnection implements Runnable {
 
             String VPN_IP_ADDRESS = "10.0.0.2";
             String VPN_VIRTUAL_DNS_SERVER = "10.0.0.99";
-
-
+            // Unique local (fd00::/8) counterparts, so IPv6-preferring resolvers use us too.
+            String VPN_IP6_ADDRESS = "fd00:746f:7976::2";
+            String VPN_VIRTUAL_DNS6_SERVER = "fd00:746f:7976::99";
+
+
+            if (parameters == null) {
+                builder.setMtu(mOptions.mtu)
+                        .addAddress(VPN_IP_ADDRESS, 32)
+                        .addAddress(VPN_IP6_ADDRESS, 128);
+            } else {
+                // Packet buffers are sized after our MTU, so the server's may only be lower.
+                builder.setMtu(parameters.mtu > 0
+                        ? Math.min(parameters.mtu, mOptions.mtu) : mOptions.mtu);
+                boolean ipv6 = false;
+                for (TunnelProtocol.Parameters.Prefix address : parameters.addresses) {
+                    builder.addAddress(address.address, address.length);
+                    ipv6 |= address.address instanceof Inet6Address;
+                }
+                if (!ipv6) {
+                    // For the IPv6 DNS server below.
+                    builder.addAddress(VPN_IP6_ADDRESS, 128);
+                }
+                for (TunnelProtocol.Parameters.Prefix route : parameters.routes) {
+                    builder.addRoute(route.address, route.length);
+                }
+                for (String searchDomain : parameters.searchDomains) {
+                    builder.addSearchDomain(searchDomain);
+                }
+                // The server's DNS servers are left out: queries are answered here, from the
+                // cache or the upstreams, whatever the routes.
+            }
             builder
-                    .addAddress(VPN_IP_ADDRESS, 32)
-//                    .addRoute("0.0.0.0", 1)
-//                    .addRoute("128.0.0.0", 1)
                     .addRoute(VPN_VIRTUAL_DNS_SERVER, 32)
-                    .addDnsServer(VPN_VIRTUAL_DNS_SERVER);
+                    .addRoute(VPN_VIRTUAL_DNS6_SERVER, 128)
+                    .addDnsServer(VPN_VIRTUAL_DNS_SERVER)
+                    .addDnsServer(VPN_VIRTUAL_DNS6_SERVER);
+            if (parameters == null && mOptions.fullTunnel) {
+                // Everything else too, relayed by the FlowForwarder; its own sockets are
+                // protected, so they do not loop back in.
+                builder.addRoute("0.0.0.0", 1)
+                        .addRoute("128.0.0.0", 1)
+                        .addRoute("::", 1)
+                        .addRoute("8000::", 1);
+            }
 
             vpnInterface = builder.establish();
             if (mOnEstablishListener != null) {
@@ -335,160 +765,4 @@ public class ToyVpnConnection implements Runnable {
     private final String getTag() {
         return ToyVpnConnection.class.getSimpleName() + "[" + mConnectionId + "]";
     }
-
-    private DatagramPacket forwardL4Packet(L3Packet l3Packet) throws IOException {
-
-        DatagramChannel channel = DatagramChannel.open();
-        mService.protect(channel.socket());
-        channel.connect(new InetSocketAddress(CF_DNS_SERVER, 53));
-        channel.write(ByteBuffer.wrap(l3Packet.data));
-        byte[] response = new byte[MAX_PACKET_SIZE];
-        DatagramPacket respDatagramPacket = new DatagramPacket(response, response.length);
-        channel.socket().receive(respDatagramPacket);
-
-        if (isDebugging) Log.e(TAG, "[address]: " + respDatagramPacket.getAddress()
-                + "\n[port]: " + respDatagramPacket.getPort()
-                + "\n[socket addr]: " + respDatagramPacket.getSocketAddress()
-                + "\n[length]: " + respDatagramPacket.getLength()
-                + "\n[offset]: " + respDatagramPacket.getOffset()
-                + "\n[L4 data]: " + new String(respDatagramPacket.getData(), UTF_8).substring(0, respDatagramPacket.getLength()));
-
-        short QDCOUNT = 1;
-        short ANCOUNT = 0;
-        short NSCOUNT = 0;
-        short ARCOUNT = 0;
-
-        if (isDebugging) Log.e(TAG, "\n\nResponse Received: " + respDatagramPacket.getLength() + " bytes");
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < respDatagramPacket.getLength(); i++) {
-            sb.append(response[i]);
-            sb.append(" ");
-        }
-        if (isDebugging) Log.e(TAG, sb.toString());
-
-        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(response));
-        if (isDebugging) Log.e(TAG, "\n\nStart response decode");
-        if (isDebugging) Log.e(TAG, "Transaction ID: " + dataInputStream.readShort()); // ID
-        short flags = dataInputStream.readByte();
-        int QR = (flags & 0b10000000) >>> 7;
-        int opCode = (flags & 0b01111000) >>> 3;
-        int AA = (flags & 0b00000100) >>> 2;
-        int TC = (flags & 0b00000010) >>> 1;
-        int RD = flags & 0b00000001;
-        if (isDebugging) Log.e(TAG, "QR " + QR);
-        if (isDebugging) Log.e(TAG, "Opcode " + opCode);
-        if (isDebugging) Log.e(TAG, "AA " + AA);
-        if (isDebugging) Log.e(TAG, "TC " + TC);
-        if (isDebugging) Log.e(TAG, "RD " + RD);
-        flags = dataInputStream.readByte();
-        int RA = (flags & 0b10000000) >>> 7;
-        int Z = (flags & 0b01110000) >>> 4;
-        int RCODE = flags & 0b00001111;
-        if (isDebugging) Log.e(TAG, "RA " + RA);
-        if (isDebugging) Log.e(TAG, "Z " + Z);
-        if (isDebugging) Log.e(TAG, "RCODE " + RCODE);
-
-        QDCOUNT = dataInputStream.readShort();
-        ANCOUNT = dataInputStream.readShort();
-        NSCOUNT = dataInputStream.readShort();
-        ARCOUNT = dataInputStream.readShort();
-
-        if (isDebugging) Log.e(TAG, "Questions: " + String.format("%s", QDCOUNT));
-        if (isDebugging) Log.e(TAG, "Answers RRs: " + String.format("%s", ANCOUNT));
-        if (isDebugging) Log.e(TAG, "Authority RRs: " + String.format("%s", NSCOUNT));
-        if (isDebugging) Log.e(TAG, "Additional RRs: " + String.format("%s", ARCOUNT));
-
-        String QNAME = "";
-        int recLen;
-        while ((recLen = dataInputStream.readByte()) > 0) {
-            byte[] record = new byte[recLen];
-            for (int i = 0; i < recLen; i++) {
-                record[i] = dataInputStream.readByte();
-            }
-            QNAME = new String(record, UTF_8);
-        }
-        short QTYPE = dataInputStream.readShort();
-        short QCLASS = dataInputStream.readShort();
-        if (isDebugging) Log.e(TAG, "Record: " + QNAME);
-        if (isDebugging) Log.e(TAG, "Record Type: " + String.format("%s", QTYPE));
-        if (isDebugging) Log.e(TAG, "Class: " + String.format("%s", QCLASS));
-
-        if (isDebugging) Log.e(TAG, "\n\nstart answer, authority, and additional sections\n");
-
-        byte firstBytes = dataInputStream.readByte();
-        int firstTwoBits = (firstBytes & 0b11000000) >>> 6;
-
-        ByteArrayOutputStream label = new ByteArrayOutputStream();
-        Map<String, String> domainToIp = new HashMap<>();
-
-        for (int i = 0; i < ANCOUNT; i++) {
-            if (firstTwoBits == 3) {
-                byte currentByte = dataInputStream.readByte();
-                boolean stop = false;
-                byte[] newArray = Arrays.copyOfRange(response, currentByte, response.length);
-                DataInputStream sectionDataInputStream = new DataInputStream(new ByteArrayInputStream(newArray));
-                ArrayList<Integer> RDATA = new ArrayList<>();
-                ArrayList<String> DOMAINS = new ArrayList<>();
-                while (!stop) {
-                    byte nextByte = sectionDataInputStream.readByte();
-                    if (nextByte > 0) {
-                        byte[] currentLabel = new byte[nextByte];
-                        for (int j = 0; j < nextByte; j++) {
-                            currentLabel[j] = sectionDataInputStream.readByte();
-                        }
-                        label.write(currentLabel);
-                    } else {
-                        stop = true;
-                        short TYPE = dataInputStream.readShort();
-                        short CLASS = dataInputStream.readShort();
-                        int TTL = dataInputStream.readInt();
-                        int RDLENGTH = dataInputStream.readShort();
-                        for (int s = 0; s < RDLENGTH; s++) {
-                            int nx = dataInputStream.readByte() & 255;// and with 255 to
-                            RDATA.add(nx);
-                        }
-
-                        if (isDebugging) Log.e(TAG, "Type: " + TYPE);
-                        if (isDebugging) Log.e(TAG, "Class: " + CLASS);
-                        if (isDebugging) Log.e(TAG, "Time to live: " + TTL);
-                        if (isDebugging) Log.e(TAG, "Rd Length: " + RDLENGTH);
-                    }
-
-                    DOMAINS.add(label.toString(UTF_8));
-                    label.reset();
-                }
-
-                StringBuilder ip = new StringBuilder();
-                StringBuilder domainSb = new StringBuilder();
-                for (Integer ipPart : RDATA) {
-                    ip.append(ipPart).append(".");
-                }
-
-                for (String domainPart : DOMAINS) {
-                    if (!domainPart.equals("")) {
-                        domainSb.append(domainPart).append(".");
-                    }
-                }
-                String domainFinal = domainSb.toString();
-                String ipFinal = ip.toString();
-                domainToIp.put(ipFinal.substring(0, ipFinal.length() - 1), domainFinal.substring(0, domainFinal.length() - 1));
-
-            } else if (firstTwoBits == 0) {
-                if (isDebugging) Log.e(TAG, "It's a label");
-            }
-
-            firstBytes = dataInputStream.readByte();
-            firstTwoBits = (firstBytes & 0b11000000) >>> 6;
-        }
-
-        domainToIp.forEach((key, value) -> {
-            if (isDebugging) Log.e(TAG, key + " : " + value);
-        });
-
-
-        channel.close();
-
-        return respDatagramPacket;
-    }
-
-}
\ No newline at end of file
+}
@@ -109,13 +109,22 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
         final int port = prefs.getInt(ToyVpnClient.Prefs.SERVER_PORT, 0);
         final String proxyHost = prefs.getString(ToyVpnClient.Prefs.PROXY_HOSTNAME, "");
         final int proxyPort = prefs.getInt(ToyVpnClient.Prefs.PROXY_PORT, 0);
-        startConnection(new ToyVpnConnection(
+        final ToyVpnConnection connection = new ToyVpnConnection(
                 this, mNextConnectionId.getAndIncrement(), server, port, secret,
-                proxyHost, proxyPort, allow, packages));
+                proxyHost, proxyPort, allow, packages);
+        connection.setOptions(ConnectionOptions.fromPreferences(prefs));
+        startConnection(connection);
     }
     private void startConnection(final ToyVpnConnection connection) {
         // Replace any existing connecting thread with the  new one.
-        final Thread thread = new Thread(connection, "ToyVpnThread");
+        final Thread thread = new Thread(connection, "ToyVpnThread") {
+            @Override
+            public void interrupt() {
+                super.interrupt();
+                // The connection sleeps in poll(), which an interrupt alone does not end.
+                connection.wakeup();
+            }
+        };
         setConnectingThread(thread);
         // Handler to mark as connected once onEstablish is called.
         connection.setConfigureIntent(mConfigureIntent);
@@ -0,0 +1,62 @@
+package com.example.toyvpnjava;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pipeline stage that writes replies to the tun interface back to back and returns their
+ * buffers to the pool.
+ * <p>
+ * It lives as long as its {@link ToyVpnConnection}; when the tun interface is recreated only
+ * the output channel is swapped with {@link #setOutput}.
+ */
+class TunWriter extends PacketStage {
+    private static final String TAG = TunWriter.class.getSimpleName();
+
+    private final BufferPool mBuffers;
+    private final Metrics mMetrics;
+    private final IpPacket mPacket = new IpPacket();
+    private volatile FileChannel mOut;
+    private int mWritten;
+
+    TunWriter(BufferPool buffers, int batchSize, Metrics metrics) {
+        super(batchSize);
+        mBuffers = buffers;
+        mMetrics = metrics;
+    }
+
+    /** Sets the tun interface channel replies are written to, or {@code null} to drop them. */
+    void setOutput(FileChannel out) {
+        mOut = out;
+    }
+
+    @Override
+    void process(ByteBuffer packet) {
+        final FileChannel out = mOut;
+        if (out != null) {
+            if (isDebugging && mPacket.wrap(packet, packet.position(), packet.remaining())) {
+                Log.e(TAG, "RESPONSE========================================================================================================================");
+                mPacket.print(TAG);
+            }
+            try {
+                out.write(packet);
+                mWritten++;
+            } catch (IOException e) {
+                // The interface is going away; its replacement will get the retries.
+                if (isDebugging) Log.e(TAG, "Cannot write reply", e);
+            }
+        }
+        mBuffers.release(packet);
+    }
+
+    @Override
+    void endBatch() {
+        if (mWritten > 0) {
+            mMetrics.recordReplyBurst(mWritten);
+            mWritten = 0;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.toyvpnjava;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of the tunnel, with AES-256-GCM under keys derived from the shared
+ * secret, so that tunnel traffic is neither readable nor forgeable by anyone without it. Pure
+ * Java like {@link TunnelProtocol}, which it wraps: every datagram of that protocol, control
+ * messages included, travels sealed once the handshake is done.
+ * <p>
+ * The handshake never shows the secret. The client sends a zero byte, 32 random bytes and an
+ * HMAC of them under a key derived from the secret; the server answers with a zero byte, 32
+ * random bytes of its own and the {@link TunnelProtocol.Parameters} sealed under the session
+ * keys. Those are derived with HKDF-SHA256 from the secret and both random values, one key per
+ * direction, so every session has fresh keys and a replayed handshake cannot make either side
+ * reuse a nonce, nor pass for the other side.
+ * <p>
+ * A sealed datagram is an 8-byte counter, the ciphertext and a 16-byte tag. The counter is the
+ * nonce, so it is authenticated along with the ciphertext, and a sliding window of the counters
+ * seen drops replays. Sealing and opening work in place in the caller's array and keep their
+ * {@link Cipher}s from one datagram to the next, but they do allocate for every datagram: a
+ * {@link GCMParameterSpec} for its nonce, which copies the nonce, and whatever
+ * {@link Cipher#init} allocates, close to 1 KB with the JDK's provider. The JCE API has no way
+ * to change the nonce without both. Arrays rather than direct buffers, which providers copy
+ * through arrays of the datagram's size.
+ * <p>
+ * Not thread-safe, beyond one thread sealing while another opens: each session has a cipher of
+ * its own, used by the threads of that session alone.
+ */
+final class TunnelCipher {
+    /** Counter in front of every sealed datagram. */
+    static final int HEADER_LENGTH = 8;
+    static final int TAG_LENGTH = 16;
+    /** Bytes a sealed datagram has on top of its plaintext. */
+    static final int OVERHEAD = HEADER_LENGTH + TAG_LENGTH;
+    /** Random bytes each side contributes to the session keys. */
+    static final int RANDOM_LENGTH = 32;
+    static final int HANDSHAKE_LENGTH = 1 + RANDOM_LENGTH + TAG_LENGTH;
+    /** Offset of the sealed parameters in the server's answer to the handshake. */
+    static final int ANSWER_HEADER_LENGTH = 1 + RANDOM_LENGTH;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final String MAC = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Cipher mSealer;
+    private final Cipher mOpener;
+    private final SecretKeySpec mSealKey;
+    private final SecretKeySpec mOpenKey;
+    // Sealing and opening keep apart, so that each can have a thread of its own.
+    private final byte[] mSealNonce = new byte[NONCE_LENGTH];
+    private final byte[] mOpenNonce = new byte[NONCE_LENGTH];
+    private final ReplayWindow mReplayWindow = new ReplayWindow();
+    private long mNextCounter;
+
+    private TunnelCipher(byte[] sealKey, byte[] openKey) throws GeneralSecurityException {
+        mSealer = Cipher.getInstance(CIPHER);
+        mOpener = Cipher.getInstance(CIPHER);
+        mSealKey = new SecretKeySpec(sealKey, "AES");
+        mOpenKey = new SecretKeySpec(openKey, "AES");
+    }
+
+    /** The client's end of the session that {@code clientRandom} and {@code serverRandom} key. */
+    static TunnelCipher forClient(byte[] secret, byte[] clientRandom, byte[] serverRandom)
+            throws GeneralSecurityException {
+        final byte[] salt = concat(clientRandom, serverRandom);
+        return new TunnelCipher(hkdf(salt, secret, "toyvpn client to server", KEY_LENGTH),
+                hkdf(salt, secret, "toyvpn server to client", KEY_LENGTH));
+    }
+
+    /** The server's end of the session that {@code clientRandom} and {@code serverRandom} key. */
+    static TunnelCipher forServer(byte[] secret, byte[] clientRandom, byte[] serverRandom)
+            throws GeneralSecurityException {
+        final byte[] salt = concat(clientRandom, serverRandom);
+        return new TunnelCipher(hkdf(salt, secret, "toyvpn server to client", KEY_LENGTH),
+                hkdf(salt, secret, "toyvpn client to server", KEY_LENGTH));
+    }
+
+    /** Returns {@link #RANDOM_LENGTH} fresh random bytes, for a handshake or its answer. */
+    static byte[] newRandom() {
+        final byte[] random = new byte[RANDOM_LENGTH];
+        RANDOM.nextBytes(random);
+        return random;
+    }
+
+    /** Writes the client's handshake into {@code buf}, ready to be sent. */
+    static ByteBuffer putHandshake(ByteBuffer buf, byte[] secret, byte[] clientRandom)
+            throws GeneralSecurityException {
+        buf.clear();
+        buf.put(TunnelProtocol.CONTROL).put(clientRandom)
+                .put(handshakeTag(secret, clientRandom)).flip();
+        return buf;
+    }
+
+    /**
+     * Checks the handshake at {@code buf[offset, offset + length)}.
+     *
+     * @return the client's random bytes, or {@code null} if it is not a handshake for
+     *         {@code secret}.
+     */
+    static byte[] readHandshake(ByteBuffer buf, int offset, int length, byte[] secret)
+            throws GeneralSecurityException {
+        if (length != HANDSHAKE_LENGTH || buf.get(offset) != TunnelProtocol.CONTROL) {
+            return null;
+        }
+        final byte[] clientRandom = new byte[RANDOM_LENGTH];
+        final byte[] tag = new byte[TAG_LENGTH];
+        buf.position(offset + 1);
+        buf.get(clientRandom).get(tag);
+        // Constant time, not to tell how much of a guess was right.
+        return MessageDigest.isEqual(tag, handshakeTag(secret, clientRandom)) ? clientRandom : null;
+    }
+
+    private static byte[] handshakeTag(byte[] secret, byte[] clientRandom)
+            throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(
+                hkdf(new byte[0], secret, "toyvpn handshake", KEY_LENGTH), MAC));
+        mac.update(TunnelProtocol.CONTROL);
+        final byte[] tag = new byte[TAG_LENGTH];
+        System.arraycopy(mac.doFinal(clientRandom), 0, tag, 0, TAG_LENGTH);
+        return tag;
+    }
+
+    /**
+     * Seals, in place, the plaintext at {@code buf[offset + HEADER_LENGTH...]} of
+     * {@code length} bytes: the counter goes in front of it, and the tag after it.
+     *
+     * @return the length of the sealed datagram at {@code buf[offset...]}.
+     */
+    int seal(byte[] buf, int offset, int length) {
+        final long counter = mNextCounter++;
+        putCounter(buf, offset, counter);
+        final int start = offset + HEADER_LENGTH;
+        try {
+            mSealer.init(Cipher.ENCRYPT_MODE, mSealKey, nonce(mSealNonce, counter));
+            return HEADER_LENGTH + mSealer.doFinal(buf, start, length, buf, start);
+        } catch (GeneralSecurityException e) {
+            // Keys and buffers are of the right sizes; this cannot happen.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Opens, in place, the sealed datagram at {@code buf[offset, offset + length)}; its
+     * plaintext is then at {@code buf[offset + HEADER_LENGTH...]}.
+     *
+     * @return the length of the plaintext, or -1 if the datagram is forged, damaged or a
+     *         replay.
+     */
+    int open(byte[] buf, int offset, int length) {
+        if (length < OVERHEAD) {
+            return -1;
+        }
+        final long counter = getCounter(buf, offset);
+        if (!mReplayWindow.isNew(counter)) {
+            return -1;
+        }
+        final int start = offset + HEADER_LENGTH;
+        final int plaintext;
+        try {
+            mOpener.init(Cipher.DECRYPT_MODE, mOpenKey, nonce(mOpenNonce, counter));
+            plaintext = mOpener.doFinal(buf, start, length - HEADER_LENGTH, buf, start);
+        } catch (AEADBadTagException e) {
+            return -1;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        mReplayWindow.add(counter);
+        return plaintext;
+    }
+
+    /**
+     * A new spec of the nonce for {@code counter}, written to {@code nonce} first; the key tells
+     * the directions apart.
+     */
+    private static GCMParameterSpec nonce(byte[] nonce, long counter) {
+        putCounter(nonce, NONCE_LENGTH - HEADER_LENGTH, counter);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    private static void putCounter(byte[] buf, int offset, long counter) {
+        for (int i = 0; i < HEADER_LENGTH; i++) {
+            buf[offset + i] = (byte) (counter >>> (8 * (HEADER_LENGTH - 1 - i)));
+        }
+    }
+
+    private static long getCounter(byte[] buf, int offset) {
+        long counter = 0;
+        for (int i = 0; i < HEADER_LENGTH; i++) {
+            counter = counter << 8 | (buf[offset + i] & 0xFF);
+        }
+        return counter;
+    }
+
+    /** HKDF-SHA256 (RFC 5869) of {@code length} bytes for {@code info}. */
+    private static byte[] hkdf(byte[] salt, byte[] secret, String info, int length)
+            throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(salt.length > 0 ? salt : new byte[mac.getMacLength()], MAC));
+        mac.init(new SecretKeySpec(mac.doFinal(secret), MAC));
+        final byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, i = 1; offset < length; offset += block.length, i++) {
+            mac.update(block);
+            mac.update(info.getBytes(StandardCharsets.US_ASCII));
+            mac.update((byte) i);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, output, offset, Math.min(block.length, length - offset));
+        }
+        return output;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Counters of the datagrams opened lately, as a bitmap over the {@link #SIZE} below the
+     * highest (RFC 6479): older ones, and ones seen already, are replays or too late to matter.
+     * Datagrams are checked before they are opened, which is the expensive part, and added
+     * once authentic, so that forgeries cannot move the window.
+     */
+    private static final class ReplayWindow {
+        private static final int WORDS = 32;
+        // A word of slack, so that moving up never clears bits still inside the window.
+        static final int SIZE = (WORDS - 1) * Long.SIZE;
+
+        private final long[] mBitmap = new long[WORDS];
+        private long mHighest = -1;
+
+        boolean isNew(long counter) {
+            if (counter < 0) {
+                return false;
+            }
+            if (counter > mHighest) {
+                return true;
+            }
+            if (mHighest - counter >= SIZE) {
+                return false;
+            }
+            return (mBitmap[word(counter)] & (1L << counter)) == 0;
+        }
+
+        void add(long counter) {
+            if (counter > mHighest) {
+                // Clears the words the window moves over, at most all of them.
+                final long first = mHighest < 0 ? 0 : (mHighest >>> 6) + 1;
+                final long last = Math.min(counter >>> 6, first + WORDS - 1);
+                for (long w = first; w <= last; w++) {
+                    mBitmap[(int) (w % WORDS)] = 0;
+                }
+                mHighest = counter;
+            }
+            mBitmap[word(counter)] |= 1L << counter;
+        }
+
+        private static int word(long counter) {
+            return (int) ((counter >>> 6) % WORDS);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.example.toyvpnjava;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the traffic read from the tun interface, DNS aside, to the ToyVpn server over the
+ * tunnel socket {@link ToyVpnConnection} set up, and passes what the server sends back on to
+ * the writer. See {@link TunnelProtocol} for the wire format.
+ * <p>
+ * With servers that take several packets per datagram, packets wait up to the aggregation
+ * delay for others to share a datagram with, up to the size the path takes; a full datagram
+ * goes out at once. Datagrams from the server are split into their packets in any case.
+ * <p>
+ * With a {@link TunnelCipher}, datagrams are sealed in place in the aggregator's buffer on the
+ * way out, and opened in place in the receive buffer on the way in, which is then on the heap
+ * for the cipher to work on its array; those that fail to open are dropped. The cipher
+ * belongs to this stage's thread, from the handover on.
+ * <p>
+ * Like the {@link FlowForwarder}, this stage has a thread of its own, waiting on a
+ * {@link Selector} for the tunnel socket and on its input rings for packets, with the flush
+ * deadline and keepalives on a {@link TimerWheel}. The tunnel socket outlives the stage's use
+ * of it: the connection hands over a new one after each handshake, with {@link #setTunnel}.
+ */
+class TunnelForwarder extends PacketStage implements Closeable {
+    private static final String TAG = TunnelForwarder.class.getSimpleName();
+
+    /** Time without sending after which keepalives go out, so that the server keeps us. */
+    private static final long KEEPALIVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
+    /** Time to back off when every packet buffer is in flight. */
+    private static final long STARVED_WAIT_MS = 1;
+    // Largest datagram UDP carries.
+    private static final int MAX_DATAGRAM_SIZE = 0xFFFF;
+    // Timer ids.
+    private static final int FLUSH_TIMER = 0;
+    private static final int KEEPALIVE_TIMER = 1;
+
+    private final BufferPool mBuffers;
+    private final Metrics mMetrics;
+    private final long mAggregationDelayMs;
+    private final Link mReplies;
+    private final Selector mSelector;
+    private final TimerWheel mTimers;
+    private final TimerWheel.Listener mTimerListener = this::onTimer;
+    // Datagrams are received here, then copied packet by packet into pooled buffers.
+    private ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mKeepalive = ByteBuffer.allocate(1);
+
+    // Handed over by setTunnel(), guarded by "this", and picked up by the stage's thread.
+    private DatagramChannel mNextTunnel;
+    private int mNextMaxDatagram;
+    private TunnelCipher mNextCipher;
+    private volatile boolean mTunnelChanged;
+    private volatile long mLastReceived;
+
+    private DatagramChannel mTunnel;
+    private SelectionKey mKey;
+    // Null if the tunnel is in the clear.
+    private TunnelCipher mCipher;
+    // Null unless the tunnel is encrypted, or the server takes aggregated datagrams and
+    // aggregation is enabled.
+    private DatagramAggregator mAggregator;
+    private boolean mAggregating;
+    private long mLastSent;
+    // Part of the datagram in mReceiveBuffer not passed on yet for lack of packet buffers.
+    private int mReceivedOffset;
+    private int mReceivedLength;
+    private boolean mStarved;
+    // Packets passed on since the last flush of mReplies.
+    private int mReplyCount;
+
+    /**
+     * @param aggregationDelayMs the time packets may wait for others to share a datagram with,
+     *         or 0 to send each on its own.
+     * @param replies the way to the writer.
+     */
+    TunnelForwarder(BufferPool buffers, int batchSize, Metrics metrics, long aggregationDelayMs,
+            Link replies) throws IOException {
+        super(batchSize);
+        mBuffers = buffers;
+        mMetrics = metrics;
+        mAggregationDelayMs = aggregationDelayMs;
+        mReplies = replies;
+        mTimers = new TimerWheel(KEEPALIVE_TIMER + 1, 1, System.currentTimeMillis());
+        mSelector = Selector.open();
+    }
+
+    /**
+     * Sets the socket, connected to the server and non-blocking, that the tunnel now goes
+     * over, or {@code null} to drop packets until there is one again. The caller keeps
+     * ownership of the socket, and closes it once replaced.
+     *
+     * @param maxDatagram the size of the largest datagram of several packets the server takes,
+     *         or 0 if it takes one per datagram.
+     * @param cipher the keys of the session, or {@code null} if the tunnel is in the clear;
+     *         only this stage uses it from now on.
+     */
+    void setTunnel(DatagramChannel tunnel, int maxDatagram, TunnelCipher cipher) {
+        synchronized (this) {
+            mNextTunnel = tunnel;
+            mNextMaxDatagram = maxDatagram;
+            mNextCipher = cipher;
+        }
+        mLastReceived = System.currentTimeMillis();
+        mTunnelChanged = true;
+        mSelector.wakeup();
+    }
+
+    /** Time anything, keepalives included, last came from the server. */
+    long lastReceived() {
+        return mLastReceived;
+    }
+
+    /** Sends a packet passed on by a {@link PacketClassifier} to the server. */
+    @Override
+    void process(ByteBuffer packet) {
+        if (mTunnel != null) {
+            mMetrics.tunnelPacketsSent.increment();
+            if (mAggregator == null) {
+                send(packet);
+            } else {
+                aggregate(packet);
+            }
+        }
+        mBuffers.release(packet);
+    }
+
+    private void aggregate(ByteBuffer packet) {
+        if (!mAggregator.add(packet)) {
+            flushDatagram();
+            mAggregator.add(packet);
+        }
+        // Packets too large to share a datagram go alone, fragmented on the way if need be.
+        if (!mAggregating || mAggregator.isFull()) {
+            flushDatagram();
+        } else if (!mTimers.isScheduled(FLUSH_TIMER)) {
+            mTimers.schedule(FLUSH_TIMER, System.currentTimeMillis() + mAggregationDelayMs);
+        }
+    }
+
+    private void send(ByteBuffer packet) {
+        try {
+            mTunnel.write(packet);
+            mMetrics.tunnelDatagramsSent.increment();
+            mLastSent = System.currentTimeMillis();
+        } catch (IOException e) {
+            // Lost like any datagram; the connection notices when the server is gone.
+            if (isDebugging) Log.e(TAG, "Cannot send to tunnel", e);
+        }
+    }
+
+    /** Sends the packets aggregated so far. */
+    private void flushDatagram() {
+        mTimers.cancel(FLUSH_TIMER);
+        try {
+            if (mAggregator.flush(mTunnel) > 0) {
+                mMetrics.tunnelDatagramsSent.increment();
+                mLastSent = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            if (isDebugging) Log.e(TAG, "Cannot send to tunnel", e);
+        }
+    }
+
+    @Override
+    void wake() {
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                if (mTunnelChanged) {
+                    mTunnelChanged = false;
+                    switchTunnel();
+                }
+                final int processed = drainInputs();
+                if (mStarved) {
+                    resumeStarved();
+                }
+                final long timeout = mStarved
+                        ? STARVED_WAIT_MS : mTimers.nextExpiry() - System.currentTimeMillis();
+                if (processed == 0 && timeout > 0 && prepareToWait()) {
+                    mSelector.select(timeout);
+                    doneWaiting();
+                } else {
+                    mSelector.selectNow();
+                }
+                if (!mSelector.selectedKeys().isEmpty()) {
+                    mSelector.selectedKeys().clear();
+                    receive();
+                }
+                flushReplies();
+                mTimers.advance(System.currentTimeMillis(), mTimerListener);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (mSelector.isOpen()) {
+                Log.e(TAG, "Tunnel forwarding failed", e);
+            }
+        }
+    }
+
+    /** Drops the old tunnel socket, and what is left of its traffic, for the new one. */
+    private void switchTunnel() throws IOException {
+        final DatagramChannel tunnel;
+        final int maxDatagram;
+        final TunnelCipher cipher;
+        synchronized (this) {
+            tunnel = mNextTunnel;
+            maxDatagram = mNextMaxDatagram;
+            cipher = mNextCipher;
+        }
+        if (mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+        mTimers.cancel(FLUSH_TIMER);
+        mTimers.cancel(KEEPALIVE_TIMER);
+        mReceivedOffset = 0;
+        mReceivedLength = 0;
+        mStarved = false;
+        mTunnel = tunnel;
+        mCipher = cipher;
+        mAggregator = null;
+        if (tunnel == null) {
+            return;
+        }
+        if (mReceiveBuffer.isDirect() == (cipher != null)) {
+            mReceiveBuffer = cipher != null ? ByteBuffer.allocate(MAX_DATAGRAM_SIZE)
+                    : ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        }
+        mAggregating = maxDatagram > 0 && mAggregationDelayMs > 0;
+        if (mAggregating || cipher != null) {
+            mAggregator = new DatagramAggregator(
+                    mAggregating ? maxDatagram : 0, mBuffers.packetSize(), cipher);
+        }
+        // Flushes the cancelled key out of the selector before the socket is registered.
+        mSelector.selectNow();
+        mKey = tunnel.register(mSelector, SelectionKey.OP_READ);
+        mLastSent = System.currentTimeMillis();
+        mTimers.schedule(KEEPALIVE_TIMER, mLastSent + KEEPALIVE_INTERVAL_MS);
+    }
+
+    /** Reads a batch of datagrams from the server and passes their packets on. */
+    private void receive() {
+        if (mTunnel == null || !passReceived()) {
+            return;
+        }
+        int datagrams = 0;
+        int rejected = 0;
+        while (datagrams + rejected < mBatchSize) {
+            mReceiveBuffer.clear();
+            int read;
+            try {
+                read = mTunnel.read(mReceiveBuffer);
+            } catch (IOException e) {
+                // Typically ICMP port unreachable while the server restarts.
+                if (isDebugging) Log.e(TAG, "Cannot receive from tunnel", e);
+                break;
+            }
+            if (read <= 0) {
+                break;
+            }
+            int offset = 0;
+            if (mCipher != null) {
+                read = mCipher.open(mReceiveBuffer.array(), 0, read);
+                if (read < 0) {
+                    rejected++;
+                    continue;
+                }
+                offset = TunnelCipher.HEADER_LENGTH;
+                mReceiveBuffer.limit(offset + read);
+            }
+            datagrams++;
+            // Keepalives and copies of the parameters need no answer.
+            if (TunnelProtocol.isControl(mReceiveBuffer, offset, read)) {
+                continue;
+            }
+            mReceivedOffset = offset;
+            mReceivedLength = offset + read;
+            if (!passReceived()) {
+                break;
+            }
+        }
+        if (rejected > 0) {
+            if (isDebugging) Log.e(TAG, rejected + " datagrams from tunnel failed to open");
+            mMetrics.tunnelDatagramsRejected.add(rejected);
+        }
+        if (datagrams > 0) {
+            // Only what opens counts as coming from the server.
+            mMetrics.tunnelDatagramsReceived.add(datagrams);
+            mLastReceived = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Passes the packets of the datagram in mReceiveBuffer on to the writer, as far as there
+     * are packet buffers for them.
+     *
+     * @return {@code false} if packets are left, and reading was stopped until buffers come
+     *         back.
+     */
+    private boolean passReceived() {
+        while (mReceivedOffset < mReceivedLength) {
+            final int offset = mReceivedOffset;
+            final int length = TunnelProtocol.packetLength(
+                    mReceiveBuffer, offset, mReceivedLength - offset);
+            if (length < 0) {
+                // Not a packet; nothing after it can be told apart either.
+                if (isDebugging) Log.e(TAG, "Malformed datagram from tunnel");
+                mReceivedOffset = mReceivedLength;
+                break;
+            }
+            mReceivedOffset += length;
+            if (length > mBuffers.packetSize()) {
+                // Larger than the tun MTU the server was told about.
+                continue;
+            }
+            final ByteBuffer packet = mBuffers.acquire();
+            if (packet == null) {
+                mReceivedOffset = offset;
+                mStarved = true;
+                mKey.interestOps(0);
+                // The writer returns buffers as it goes.
+                flushReplies();
+                return false;
+            }
+            mReceiveBuffer.limit(offset + length).position(offset);
+            packet.position(BufferPool.HEADROOM);
+            packet.put(mReceiveBuffer);
+            packet.limit(packet.position()).position(BufferPool.HEADROOM);
+            mReceiveBuffer.limit(mReceivedLength);
+            mMetrics.tunnelPacketsReceived.increment();
+            passReply(packet);
+        }
+        return true;
+    }
+
+    /** Goes on reading once packet buffers came back. */
+    private void resumeStarved() {
+        if (mTunnel == null) {
+            mStarved = false;
+        } else if (passReceived()) {
+            mStarved = false;
+            mKey.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onTimer(int timer, long timeNow) {
+        if (timer == FLUSH_TIMER) {
+            flushDatagram();
+            return;
+        }
+        final long keepaliveAt = mLastSent + KEEPALIVE_INTERVAL_MS;
+        if (keepaliveAt <= timeNow) {
+            // A control message goes in a datagram of its own.
+            if (mAggregator != null) {
+                flushDatagram();
+            }
+            try {
+                for (int i = 0; i < TunnelProtocol.CONTROL_COPIES; i++) {
+                    mKeepalive.clear();
+                    mKeepalive.put(TunnelProtocol.CONTROL).flip();
+                    if (mCipher != null) {
+                        mAggregator.add(mKeepalive);
+                        mAggregator.flush(mTunnel);
+                    } else {
+                        mTunnel.write(mKeepalive);
+                    }
+                }
+            } catch (IOException e) {
+                if (isDebugging) Log.e(TAG, "Cannot send keepalive", e);
+            }
+            mLastSent = timeNow;
+        }
+        mTimers.schedule(KEEPALIVE_TIMER, mLastSent + KEEPALIVE_INTERVAL_MS);
+    }
+
+    /** Passes the packet in {@code buf} on to the writer, which then owns the buffer. */
+    private void passReply(ByteBuffer buf) {
+        if (!mReplies.send(buf)) {
+            mBuffers.release(buf);
+            return;
+        }
+        if (++mReplyCount == mBatchSize) {
+            flushReplies();
+        }
+    }
+
+    /** Hands the packets passed on so far to the writer as one batch. */
+    private void flushReplies() {
+        if (mReplyCount > 0) {
+            mReplyCount = 0;
+            mReplies.flush();
+        }
+    }
+
+    /** Stops the stage; the tunnel socket is closed by its owner. */
+    @Override
+    public void close() throws IOException {
+        mSelector.close();
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.toyvpnjava;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of the ToyVpn tunnel, shared by {@link ToyVpnConnection} and the stand-in server
+ * under {@code server/}, which is why it depends on nothing from Android.
+ * <p>
+ * Every datagram either starts with a zero byte, making it a control message, or holds tun
+ * packets. Control messages are the client's handshake, the zero byte followed by the shared
+ * secret; the server's answer to it, the zero byte followed by the {@link Parameters} as text;
+ * and keepalives, a lone zero byte. A zero byte can never start an IP packet, whose first
+ * nibble is its version.
+ * <p>
+ * The original protocol carries one packet per datagram. Servers that push the
+ * {@link Parameters#maxDatagram} parameter also accept, and may send, datagrams holding
+ * several packets back to back, up to that size; each IP header gives its packet's length, so
+ * no further framing is needed.
+ * <p>
+ * Encrypted tunnels replace the handshake and its answer, and seal every other datagram; see
+ * {@link TunnelCipher}.
+ */
+final class TunnelProtocol {
+    static final byte CONTROL = 0;
+    /** Size of the server's answer to the handshake, padded with spaces. */
+    static final int PARAMETERS_LENGTH = 1024;
+    /** Copies of the handshake, its answer and keepalives sent, since datagrams get lost. */
+    static final int CONTROL_COPIES = 3;
+    /** Overhead of the IPv4 or IPv6 and UDP headers on the datagrams carrying the tunnel. */
+    static final int UDP_OVERHEAD = 28;
+    static final int UDP6_OVERHEAD = 48;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int IPV4_MIN_HEADER_LENGTH = 20;
+
+    private TunnelProtocol() {
+    }
+
+    /** Writes the handshake for {@code secret} into {@code buf}, ready to be sent. */
+    static ByteBuffer putHandshake(ByteBuffer buf, byte[] secret) {
+        buf.clear();
+        buf.put(CONTROL).put(secret).flip();
+        return buf;
+    }
+
+    /** Whether {@code buf[offset, offset + length)} is the handshake for {@code secret}. */
+    static boolean isHandshake(ByteBuffer buf, int offset, int length, byte[] secret) {
+        if (length != 1 + secret.length || buf.get(offset) != CONTROL) {
+            return false;
+        }
+        // Constant time, not to tell how much of a guess was right.
+        int differences = 0;
+        for (int i = 0; i < secret.length; i++) {
+            differences |= buf.get(offset + 1 + i) ^ secret[i];
+        }
+        return differences == 0;
+    }
+
+    static boolean isControl(ByteBuffer buf, int offset, int length) {
+        return length > 0 && buf.get(offset) == CONTROL;
+    }
+
+    /**
+     * Returns the length of the IP packet at {@code buf[offset...]}, as its header gives it,
+     * or -1 if the {@code available} bytes there do not start with a whole packet.
+     */
+    static int packetLength(ByteBuffer buf, int offset, int available) {
+        if (available < IPV4_MIN_HEADER_LENGTH) {
+            return -1;
+        }
+        final int version = (buf.get(offset) & 0xFF) >>> 4;
+        final int length;
+        if (version == 4) {
+            length = buf.getShort(offset + 2) & 0xFFFF;
+            if (length < IPV4_MIN_HEADER_LENGTH) {
+                return -1;
+            }
+        } else if (version == 6 && available >= IPV6_HEADER_LENGTH) {
+            length = IPV6_HEADER_LENGTH + (buf.getShort(offset + 4) & 0xFFFF);
+        } else {
+            return -1;
+        }
+        return length <= available ? length : -1;
+    }
+
+    /**
+     * Parameters the server pushes in answer to the handshake: space separated fields of comma
+     * separated values, the first naming the field. "m,1400" is the MTU, "a,10.0.0.2,32" an
+     * address and "r,0.0.0.0,0" a route for the tun interface, "d,8.8.8.8" a DNS server,
+     * "s,example.com" a search domain, and "g,1472" the largest datagram of aggregated packets
+     * the server takes. Unknown fields are skipped, so that servers can add more.
+     */
+    static final class Parameters {
+        /** An address or route: an address and its prefix length. */
+        static final class Prefix {
+            final InetAddress address;
+            final int length;
+
+            Prefix(InetAddress address, int length) {
+                this.address = address;
+                this.length = length;
+            }
+
+            @Override
+            public String toString() {
+                return address.getHostAddress() + "," + length;
+            }
+        }
+
+        int mtu;
+        final List<Prefix> addresses = new ArrayList<>();
+        final List<Prefix> routes = new ArrayList<>();
+        final List<InetAddress> dnsServers = new ArrayList<>();
+        final List<String> searchDomains = new ArrayList<>();
+        /** Largest datagram of several packets, or 0 if the server takes one at a time. */
+        int maxDatagram;
+
+        /**
+         * Parses the parameters in the control message at {@code buf[offset, offset + length)}.
+         *
+         * @throws IllegalArgumentException if they are malformed, or give no address.
+         */
+        static Parameters parse(ByteBuffer buf, int offset, int length) {
+            final byte[] text = new byte[length - 1];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = buf.get(offset + 1 + i);
+            }
+            return parse(new String(text, StandardCharsets.US_ASCII));
+        }
+
+        static Parameters parse(String text) {
+            final Parameters parameters = new Parameters();
+            for (String parameter : text.trim().split(" +")) {
+                final String[] fields = parameter.split(",");
+                try {
+                    switch (fields[0]) {
+                        case "m":
+                            parameters.mtu = Integer.parseInt(fields[1]);
+                            break;
+                        case "a":
+                            parameters.addresses.add(parsePrefix(fields));
+                            break;
+                        case "r":
+                            parameters.routes.add(parsePrefix(fields));
+                            break;
+                        case "d":
+                            parameters.dnsServers.add(numericAddress(fields[1]));
+                            break;
+                        case "s":
+                            parameters.searchDomains.add(fields[1]);
+                            break;
+                        case "g":
+                            parameters.maxDatagram = Integer.parseInt(fields[1]);
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException
+                        | UnknownHostException e) {
+                    throw new IllegalArgumentException("Bad parameter: " + parameter, e);
+                }
+            }
+            if (parameters.addresses.isEmpty()) {
+                throw new IllegalArgumentException("No address in: " + text);
+            }
+            return parameters;
+        }
+
+        private static Prefix parsePrefix(String[] fields) throws UnknownHostException {
+            return new Prefix(numericAddress(fields[1]), Integer.parseInt(fields[2]));
+        }
+
+        private static InetAddress numericAddress(String address) throws UnknownHostException {
+            // Host names would be looked up, over the very tunnel being set up.
+            if (!Util.isNumericHost(address)) {
+                throw new UnknownHostException("Not numeric: " + address);
+            }
+            return InetAddress.getByName(address);
+        }
+
+        /** Formats the parameters as pushed by the server, without padding. */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            if (mtu > 0) {
+                sb.append("m,").append(mtu);
+            }
+            for (Prefix address : addresses) {
+                sb.append(" a,").append(address);
+            }
+            for (Prefix route : routes) {
+                sb.append(" r,").append(route);
+            }
+            for (InetAddress dnsServer : dnsServers) {
+                sb.append(" d,").append(dnsServer.getHostAddress());
+            }
+            for (String searchDomain : searchDomains) {
+                sb.append(" s,").append(searchDomain);
+            }
+            if (maxDatagram > 0) {
+                sb.append(" g,").append(maxDatagram);
+            }
+            return sb.toString().trim();
+        }
+
+        /** Writes the server's answer to the handshake into {@code buf}, ready to be sent. */
+        ByteBuffer put(ByteBuffer buf) {
+            final byte[] text = toString().getBytes(StandardCharsets.US_ASCII);
+            buf.clear();
+            buf.put(CONTROL).put(text);
+            while (buf.position() < PARAMETERS_LENGTH) {
+                buf.put((byte) ' ');
+            }
+            buf.flip();
+            return buf;
+        }
+    }
+}
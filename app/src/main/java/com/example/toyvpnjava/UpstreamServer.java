@@ -0,0 +1,33 @@
+package com.example.toyvpnjava;
+
+import java.net.InetSocketAddress;
+
+/**
+ * An upstream resolver and how to reach it: plain DNS over UDP, falling back to TCP for large
+ * answers, or DNS over TLS (RFC 7858).
+ */
+final class UpstreamServer {
+    static final int DNS_PORT = 53;
+    static final int DNS_OVER_TLS_PORT = 853;
+
+    final InetSocketAddress address;
+    /**
+     * Name the TLS certificate must be valid for, or {@code null} for plain DNS. When no name
+     * was configured, this is the address itself.
+     */
+    final String tlsName;
+
+    UpstreamServer(InetSocketAddress address, String tlsName) {
+        this.address = address;
+        this.tlsName = tlsName;
+    }
+
+    boolean isTls() {
+        return tlsName != null;
+    }
+
+    @Override
+    public String toString() {
+        return isTls() ? "tls://" + address + "#" + tlsName : address.toString();
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.toyvpnjava;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A small set of long-lived UDP sockets to each upstream resolver, protected from the VPN and
+ * connected once instead of per query.
+ * <p>
+ * Socket {@code i} goes to upstream {@code i / socketsPerUpstream}. Queries to an upstream
+ * rotate through its sockets, so consecutive queries leave from different, kernel chosen source
+ * ports. A socket is only reopened after it failed, or when {@link #invalidate} reports that
+ * the underlying network changed. Opening, closing and registering with the selector happen on
+ * the selector thread; other threads only pick sockets and flag failures.
+ * <p>
+ * Upstreams reached over TLS get no UDP sockets: theirs stay flagged, and are never picked.
+ * The pool opens their connections, and those for TCP fallback, with {@link #openStream}.
+ */
+class UpstreamSocketPool implements Closeable {
+    private static final String TAG = UpstreamSocketPool.class.getSimpleName();
+
+    private final VpnService mService;
+    private final UpstreamServer[] mUpstreams;
+    // Shared by every TLS connection, so that their sessions can be resumed.
+    private final SSLContext mTlsContext;
+    private final int mSocketsPerUpstream;
+    private final DatagramChannel[] mChannels;
+    // Sockets that need reopening; guarded by "this" along with mChannels and mNext.
+    private final boolean[] mBroken;
+    private boolean mAnyBroken;
+    // Per upstream, the socket after the one used last.
+    private final int[] mNext;
+
+    UpstreamSocketPool(VpnService service, UpstreamServer[] upstreams, int socketsPerUpstream)
+            throws NoSuchAlgorithmException {
+        this(service, upstreams, socketsPerUpstream, SSLContext.getDefault());
+    }
+
+    /** @param tlsContext the context TLS connections are made with, and trust anchored in. */
+    UpstreamSocketPool(VpnService service, UpstreamServer[] upstreams, int socketsPerUpstream,
+            SSLContext tlsContext) {
+        mService = service;
+        mUpstreams = upstreams.clone();
+        mTlsContext = tlsContext;
+        mSocketsPerUpstream = socketsPerUpstream;
+        mChannels = new DatagramChannel[upstreams.length * socketsPerUpstream];
+        mBroken = new boolean[mChannels.length];
+        mNext = new int[upstreams.length];
+        invalidate();
+    }
+
+    int size() {
+        return mChannels.length;
+    }
+
+    int upstreamCount() {
+        return mUpstreams.length;
+    }
+
+    UpstreamServer upstreamServer(int upstream) {
+        return mUpstreams[upstream];
+    }
+
+    boolean isTls(int upstream) {
+        return mUpstreams[upstream].isTls();
+    }
+
+    /** Returns the upstream that socket {@code index} is connected to. */
+    int upstream(int index) {
+        return index / mSocketsPerUpstream;
+    }
+
+    /**
+     * Returns the index of the socket to send the next query to {@code upstream} on. If none
+     * of its sockets is open, any other open socket is returned, or -1 if there is none.
+     */
+    synchronized int next(int upstream) {
+        for (int u = 0; u < mUpstreams.length; u++) {
+            final int candidate = (upstream + u) % mUpstreams.length;
+            final int first = candidate * mSocketsPerUpstream;
+            for (int i = 0; i < mSocketsPerUpstream; i++) {
+                final int index = first + mNext[candidate];
+                mNext[candidate] = (mNext[candidate] + 1) % mSocketsPerUpstream;
+                if (!mBroken[index]) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    synchronized DatagramChannel channel(int index) {
+        return mChannels[index];
+    }
+
+    /** Flags a socket that failed, so that the selector thread reopens it. */
+    synchronized void markBroken(int index) {
+        mBroken[index] = true;
+        mAnyBroken = true;
+    }
+
+    /** Flags every socket; used when the network they were bound to went away. */
+    synchronized void invalidate() {
+        for (int i = 0; i < mChannels.length; i++) {
+            mBroken[i] = true;
+        }
+        mAnyBroken = true;
+    }
+
+    synchronized boolean needsRepair() {
+        return mAnyBroken;
+    }
+
+    /**
+     * Closes and reopens every flagged socket, registering the new ones with {@code selector}
+     * for reading. The socket's index is attached to its key. Sockets that cannot be opened
+     * stay flagged and are retried on the next call.
+     */
+    synchronized void repair(Selector selector) {
+        mAnyBroken = false;
+        for (int i = 0; i < mChannels.length; i++) {
+            if (!mBroken[i] || isTls(upstream(i))) {
+                continue;
+            }
+            closeQuietly(mChannels[i]);
+            mChannels[i] = null;
+            try {
+                mChannels[i] = open(selector, i);
+                mBroken[i] = false;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot open upstream socket", e);
+                mAnyBroken = true;
+            }
+        }
+    }
+
+    /**
+     * Starts a non-blocking TCP connection to {@code upstream}, protected from the VPN. The
+     * caller finishes connecting once the channel is ready for it.
+     */
+    SocketChannel openStream(int upstream) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            if (!mService.protect(channel.socket())) {
+                throw new IOException("Cannot protect upstream socket");
+            }
+            channel.configureBlocking(false);
+            channel.connect(mUpstreams[upstream].address);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Returns a client TLS engine checking that the certificate of {@code upstream} is valid
+     * for its name. Engines for the same upstream resume each other's sessions.
+     */
+    SSLEngine newTlsEngine(int upstream) {
+        final UpstreamServer server = mUpstreams[upstream];
+        final SSLEngine engine =
+                mTlsContext.createSSLEngine(server.tlsName, server.address.getPort());
+        engine.setUseClientMode(true);
+        final SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    private DatagramChannel open(Selector selector, int index) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (!mService.protect(channel.socket())) {
+                throw new IOException("Cannot protect upstream socket");
+            }
+            channel.connect(mUpstreams[upstream(index)].address);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, index);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < mChannels.length; i++) {
+            closeQuietly(mChannels[i]);
+            mChannels[i] = null;
+            mBroken[i] = true;
+        }
+    }
+
+    static void closeQuietly(Closeable channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it anyway.
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.toyvpnjava;
+
+/**
+ * Round-trip time and health bookkeeping for the upstream resolvers, used to pick where each
+ * query goes and when to give up waiting for an answer. Owned by the dispatcher thread and
+ * therefore not synchronized; times are passed in, so it can be driven without a network.
+ * <p>
+ * Every upstream has its own smoothed RTT and variance, from which its retransmission timeout
+ * is computed as in RFC 6298, with bounds suited to DNS rather than TCP. Its health is a
+ * success rate, decayed by timeouts and restored by answers. An upstream whose health falls
+ * below {@link #EJECT_SCORE} is ejected for a while, longer each time it happens in a row, and
+ * then let back in on probation. Queries go to the healthy upstream with the lowest expected
+ * latency, except for every {@link #EXPLORE_INTERVAL}th one, which goes to the next upstream
+ * in turn, so that the others' estimates stay current.
+ * <p>
+ * A histogram of each upstream's recent RTTs gives the delay after which a query is worth
+ * hedging, i.e. sending to a second upstream as well.
+ */
+final class Upstreams {
+    /** RTO before the first answer, as in RFC 6298. */
+    static final long INITIAL_RTO_MS = 1000;
+    /**
+     * Lower bound of the RTO. RFC 6298 asks for a second, which is meant for TCP; stub
+     * resolvers retry DNS over UDP much sooner.
+     */
+    static final long MIN_RTO_MS = 100;
+    static final long MAX_RTO_MS = 4000;
+    // Health is kept in thousandths.
+    private static final int FULL_SCORE = 1000;
+    static final int EJECT_SCORE = 500;
+    /** Health given back to an upstream when its ejection ends. */
+    private static final int PROBATION_SCORE = 600;
+    /** Health at which an upstream is trusted again and its ejection backoff forgotten. */
+    private static final int RECOVERED_SCORE = 900;
+    private static final long EJECT_MS = 5000;
+    private static final int MAX_EJECT_SHIFT = 4;
+    static final int EXPLORE_INTERVAL = 32;
+    /** Share of answers expected before a query gets hedged. */
+    static final int HEDGE_PERCENTILE = 95;
+    /** Samples needed before the hedge delay is trusted; until then the RTO stands in. */
+    private static final int MIN_HEDGE_SAMPLES = 32;
+    /** Lower bound of the hedge delay, below which hedges mostly race the answer. */
+    static final long MIN_HEDGE_DELAY_MS = 10;
+
+    // Smoothed RTT and RTT variance in milliseconds; a negative SRTT means no sample yet.
+    private final double[] mSrtt;
+    private final double[] mRttVar;
+    // Number of back-to-back RTO expiries, each doubling the RTO until the next sample.
+    private final int[] mBackoff;
+    private final int[] mScore;
+    // When the current ejection ends, or 0; and how many ejections happened in a row.
+    private final long[] mEjectedUntil;
+    private final int[] mEjections;
+    private final LatencyHistogram[] mRtts;
+    private int mPicks;
+    private int mExplore;
+
+    Upstreams(int count) {
+        mSrtt = new double[count];
+        mRttVar = new double[count];
+        mBackoff = new int[count];
+        mScore = new int[count];
+        mEjectedUntil = new long[count];
+        mEjections = new int[count];
+        mRtts = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            mRtts[i] = new LatencyHistogram();
+        }
+        reset();
+    }
+
+    int count() {
+        return mSrtt.length;
+    }
+
+    /** Forgets everything learned; called when the network changed under the upstreams. */
+    void reset() {
+        for (int i = 0; i < mSrtt.length; i++) {
+            mSrtt[i] = -1;
+            mRttVar[i] = 0;
+            mBackoff[i] = 0;
+            mScore[i] = FULL_SCORE;
+            mEjectedUntil[i] = 0;
+            mEjections[i] = 0;
+            mRtts[i].clear();
+        }
+    }
+
+    /**
+     * Returns the upstream the next query should go to, avoiding {@code exclude} unless it is
+     * the only one left. If every upstream is ejected, the one due back first is returned.
+     */
+    int pick(long now, int exclude) {
+        readmit(now);
+        final int count = mSrtt.length;
+        if (++mPicks % EXPLORE_INTERVAL == 0) {
+            for (int i = 0; i < count; i++) {
+                mExplore = (mExplore + 1) % count;
+                if (mExplore != exclude && mEjectedUntil[mExplore] == 0) {
+                    return mExplore;
+                }
+            }
+        }
+        int best = -1;
+        double bestCost = Double.MAX_VALUE;
+        int due = -1;
+        for (int i = 0; i < count; i++) {
+            if (mEjectedUntil[i] != 0) {
+                if (due < 0 || mEjectedUntil[i] < mEjectedUntil[due]) {
+                    due = i;
+                }
+                continue;
+            }
+            // Expected latency, inflated by the odds of having to wait for a retransmit.
+            final double cost = (mSrtt[i] >= 0 ? mSrtt[i] : INITIAL_RTO_MS)
+                    * FULL_SCORE / mScore[i] + (i == exclude ? MAX_RTO_MS * FULL_SCORE : 0);
+            if (cost < bestCost) {
+                best = i;
+                bestCost = cost;
+            }
+        }
+        return best >= 0 ? best : due;
+    }
+
+    /**
+     * Records an answer from {@code upstream}. {@code rttMs} is the time it took, or -1 if the
+     * query had been sent more than once on the same socket and the answer could be to either
+     * copy (Karn's algorithm).
+     */
+    void answered(int upstream, long rttMs) {
+        if (rttMs >= 0) {
+            if (mSrtt[upstream] < 0) {
+                mSrtt[upstream] = rttMs;
+                mRttVar[upstream] = rttMs / 2.0;
+            } else {
+                mRttVar[upstream] = 0.75 * mRttVar[upstream]
+                        + 0.25 * Math.abs(mSrtt[upstream] - rttMs);
+                mSrtt[upstream] = 0.875 * mSrtt[upstream] + 0.125 * rttMs;
+            }
+            mBackoff[upstream] = 0;
+            mRtts[upstream].record(rttMs);
+        }
+        mScore[upstream] += (FULL_SCORE - mScore[upstream]) / 8;
+        if (mScore[upstream] >= RECOVERED_SCORE) {
+            mEjections[upstream] = 0;
+        }
+    }
+
+    /**
+     * Records a query to {@code upstream} whose RTO ran out, backing its RTO off.
+     *
+     * @return {@code true} if this got the upstream ejected.
+     */
+    boolean timedOut(int upstream, long now) {
+        mBackoff[upstream] = Math.min(mBackoff[upstream] + 1, 8);
+        mScore[upstream] -= mScore[upstream] / 4;
+        if (mScore[upstream] >= EJECT_SCORE || mEjectedUntil[upstream] != 0) {
+            return false;
+        }
+        final int shift = Math.min(mEjections[upstream]++, MAX_EJECT_SHIFT);
+        // Never 0, which means not ejected.
+        mEjectedUntil[upstream] = Math.max(1, now + (EJECT_MS << shift));
+        return true;
+    }
+
+    /** Retransmission timeout of {@code upstream}, backoff included. */
+    long rto(int upstream) {
+        final long rto = mSrtt[upstream] < 0 ? INITIAL_RTO_MS
+                : (long) (mSrtt[upstream] + Math.max(1, 4 * mRttVar[upstream]));
+        return Math.min(MAX_RTO_MS,
+                Math.max(MIN_RTO_MS, rto) << Math.min(mBackoff[upstream], 8));
+    }
+
+    /**
+     * Time after which a query to {@code upstream} is slower than {@link #HEDGE_PERCENTILE}
+     * percent of its recent ones, and worth hedging; never more than its RTO.
+     */
+    long hedgeDelay(int upstream) {
+        final LatencyHistogram rtts = mRtts[upstream];
+        final long rto = rto(upstream);
+        if (rtts.count() < MIN_HEDGE_SAMPLES) {
+            return rto;
+        }
+        return Math.min(rto, Math.max(MIN_HEDGE_DELAY_MS, rtts.percentile(HEDGE_PERCENTILE)));
+    }
+
+    boolean isEjected(int upstream) {
+        return mEjectedUntil[upstream] != 0;
+    }
+
+    /** Lets upstreams whose ejection is over back in, on probation. */
+    private void readmit(long now) {
+        for (int i = 0; i < mEjectedUntil.length; i++) {
+            if (mEjectedUntil[i] != 0 && mEjectedUntil[i] <= now) {
+                mEjectedUntil[i] = 0;
+                mScore[i] = PROBATION_SCORE;
+                mBackoff[i] = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSrtt.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(i).append(": srtt=").append(Math.round(mSrtt[i]))
+                    .append(" rttvar=").append(Math.round(mRttVar[i]))
+                    .append(" rto=").append(rto(i))
+                    .append(" p").append(HEDGE_PERCENTILE).append('=')
+                    .append(mRtts[i].percentile(HEDGE_PERCENTILE))
+                    .append(" health=").append(mScore[i])
+                    .append(mEjectedUntil[i] != 0 ? " ejected" : "");
+        }
+        return sb.toString();
+    }
+}
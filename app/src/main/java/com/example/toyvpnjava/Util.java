@@ -1,5 +1,7 @@
 package com.example.toyvpnjava;
 
+import java.nio.ByteBuffer;
+
 public class Util {
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
     public static String bytesToHex(byte[] bytes) {
@@ -11,4 +13,44 @@ public class Util {
         }
         return new String(hexChars);
     }
+
+    public static String bytesToHex(ByteBuffer buffer, int offset, int length) {
+        char[] hexChars = new char[length * 2];
+        for (int j = 0; j < length; j++) {
+            int v = buffer.get(offset + j) & 0xFF;
+            hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+            hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Whether {@code host} is an IPv4 or IPv6 address literal, which InetAddress.getByName()
+     * parses without a lookup.
+     */
+    public static boolean isNumericHost(String host) {
+        final boolean ipv6 = host.indexOf(':') >= 0;
+        for (int i = 0; i < host.length(); i++) {
+            final char c = host.charAt(i);
+            final boolean hex = (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+            if (!(c >= '0' && c <= '9') && c != '.' && !(ipv6 && (hex || c == ':'))) {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
+
+    public static String ipv4ToString(int address) {
+        return (address >>> 24) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    public static String ipv6ToString(ByteBuffer buffer, int offset) {
+        StringBuilder sb = new StringBuilder(39);
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) sb.append(':');
+            sb.append(Integer.toHexString(buffer.getShort(offset + i) & 0xFFFF));
+        }
+        return sb.toString();
+    }
 }
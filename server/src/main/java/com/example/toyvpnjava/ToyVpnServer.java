@@ -0,0 +1,471 @@
+package com.example.toyvpnjava;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for a ToyVpn server, to try and benchmark tunnel mode on a single machine, without
+ * root. It speaks the {@link TunnelProtocol} to any number of clients, each on a socket and a
+ * thread of its own like the original server, but reflects the packets it gets instead of
+ * writing them to a tun interface: each goes back to the client with its addresses and ports
+ * swapped, which leaves every checksum valid.
+ * <p>
+ * Replies are aggregated like the client does it, with {@link DatagramAggregator}, unless the
+ * aggregation delay is zero. Unless told otherwise, the tunnel is encrypted with a
+ * {@link TunnelCipher} set up by the handshake, as the client does by default. A client is
+ * dropped after {@link #IDLE_TIMEOUT_MS} without traffic. Every address is a client of its own,
+ * so a client that opens several tunnel sockets has them served in parallel.
+ * <p>
+ * Usage: {@code ToyVpnServer <port> <secret> [-w <aggregation delay ms>] [-p] [parameter...]},
+ * where {@code -p} selects the original, plaintext protocol and parameters are as pushed to
+ * the client, e.g. {@code m,1400 a,10.0.0.2,32 r,0.0.0.0,0 g,1472}; see
+ * {@link TunnelProtocol.Parameters}. Built from the app's sources with:
+ * <pre>
+ *   javac -d out -sourcepath app/src/main/java server/src/main/java/com/example/toyvpnjava/*.java
+ * </pre>
+ */
+public final class ToyVpnServer implements Runnable, Closeable {
+    /** Parameters pushed when none are given: the ones of the original server's example. */
+    static final String DEFAULT_PARAMETERS = "m,1400 a,10.0.0.2,32 d,8.8.8.8 r,0.0.0.0,0 g,"
+            + (1500 - TunnelProtocol.UDP_OVERHEAD);
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
+    private static final long KEEPALIVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
+    private static final int MAX_DATAGRAM_SIZE = 0xFFFF;
+    private static final int IPV4_SOURCE = 12;
+    private static final int IPV6_SOURCE = 8;
+    private static final int PROTOCOL_TCP = 6;
+    private static final int PROTOCOL_UDP = 17;
+
+    boolean isDebugging;
+
+    // Takes handshakes; each client then has a socket of its own, on the same port.
+    private final DatagramChannel mChannel;
+    private final byte[] mSecret;
+    private final TunnelProtocol.Parameters mParameters;
+    private final long mAggregationDelayMs;
+    private final boolean mAggregating;
+    private final boolean mEncrypting;
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    // Sessions by client address; a session removes itself once it times out.
+    private final Map<SocketAddress, Session> mSessions = new ConcurrentHashMap<>();
+
+    /**
+     * @param port the UDP port to listen on, or 0 for any.
+     * @param aggregationDelayMs the time replies may wait to share a datagram, or 0 to send
+     *         each on its own, as also when the parameters have no "g" field.
+     * @param encrypt whether the tunnel is encrypted, rather than in the original protocol.
+     */
+    public ToyVpnServer(int port, byte[] secret, TunnelProtocol.Parameters parameters,
+            long aggregationDelayMs, boolean encrypt) throws IOException {
+        mSecret = secret;
+        mParameters = parameters;
+        mAggregationDelayMs = aggregationDelayMs;
+        mAggregating = parameters.maxDatagram > 0 && aggregationDelayMs > 0;
+        mEncrypting = encrypt;
+        mChannel = DatagramChannel.open();
+        mChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        mChannel.bind(new InetSocketAddress(port));
+    }
+
+    /** Port the server listens on. */
+    public int port() throws IOException {
+        return ((InetSocketAddress) mChannel.getLocalAddress()).getPort();
+    }
+
+    /** Takes handshakes until closed or interrupted, starting a session for each new client. */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                mReceiveBuffer.clear();
+                final SocketAddress from = mChannel.receive(mReceiveBuffer);
+                // Copies of a handshake may come after the session's socket took over.
+                if (mSessions.containsKey(from)) {
+                    continue;
+                }
+                final int length = mReceiveBuffer.position();
+                byte[] clientRandom = null;
+                if (mEncrypting) {
+                    clientRandom = TunnelCipher.readHandshake(mReceiveBuffer, 0, length, mSecret);
+                    if (clientRandom == null) {
+                        continue;
+                    }
+                } else if (!TunnelProtocol.isHandshake(mReceiveBuffer, 0, length, mSecret)) {
+                    continue;
+                }
+                final Session session = new Session(from);
+                try {
+                    session.accept(clientRandom);
+                } catch (IOException e) {
+                    session.close();
+                    continue;
+                }
+                mSessions.put(from, session);
+                final Thread thread = new Thread(session, "ToyVpnSession-" + from);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            if (mChannel.isOpen()) {
+                e.printStackTrace();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One client, on a socket connected to it alone, with a thread of its own: clients, and the
+     * sockets of a client that opens several, go through the server in parallel.
+     */
+    private final class Session implements Runnable, Closeable {
+        private final SocketAddress mClient;
+        private final DatagramChannel mChannel;
+        private final Selector mSelector;
+        // On the heap when encrypting, for the cipher to open datagrams in its array.
+        private final ByteBuffer mReceiveBuffer;
+        private final ByteBuffer mControl = ByteBuffer.allocate(TunnelProtocol.PARAMETERS_LENGTH);
+        private final ByteBuffer mAnswer = ByteBuffer.allocate(TunnelProtocol.PARAMETERS_LENGTH
+                + TunnelCipher.ANSWER_HEADER_LENGTH + TunnelCipher.OVERHEAD);
+
+        // Random bytes of the client's handshake and of the answer, which key the session, and
+        // its cipher; null in the clear.
+        private byte[] mClientRandom;
+        private byte[] mServerRandom;
+        private TunnelCipher mCipher;
+        // Null if replies go one per datagram, in the clear.
+        private DatagramAggregator mAggregator;
+        private long mLastReceived;
+        private long mLastSent;
+        // When the datagram being aggregated goes out, or Long.MAX_VALUE if there is none.
+        private long mFlushAt = Long.MAX_VALUE;
+        private long mPacketsReceived;
+        private long mPacketsSent;
+
+        Session(SocketAddress client) throws IOException {
+            mClient = client;
+            mReceiveBuffer = mEncrypting ? ByteBuffer.allocate(MAX_DATAGRAM_SIZE)
+                    : ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            if (!mEncrypting) {
+                mAggregator = newAggregator(null);
+            }
+            mChannel = DatagramChannel.open();
+            try {
+                // Bound where the listener is: the connected socket wins the client's datagrams.
+                mChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                mChannel.bind(ToyVpnServer.this.mChannel.getLocalAddress());
+                mChannel.connect(client);
+                mChannel.configureBlocking(false);
+                mSelector = Selector.open();
+                mChannel.register(mSelector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final long now = System.currentTimeMillis();
+                    final long wakeAt = Math.min(mFlushAt, Math.min(
+                            mLastSent + KEEPALIVE_INTERVAL_MS, mLastReceived + IDLE_TIMEOUT_MS));
+                    if (wakeAt > now) {
+                        mSelector.select(wakeAt - now);
+                        mSelector.selectedKeys().clear();
+                    }
+                    try {
+                        receive();
+                        if (!onTimers(System.currentTimeMillis())) {
+                            return;
+                        }
+                    } catch (PortUnreachableException e) {
+                        // The client went away; it times out unless it comes back.
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (mSelector.isOpen()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                mSessions.remove(mClient, this);
+                close();
+            }
+        }
+
+        /** Handles every datagram waiting in the socket. */
+        private void receive() throws IOException {
+            while (true) {
+                mReceiveBuffer.clear();
+                final SocketAddress from = mChannel.receive(mReceiveBuffer);
+                if (from == null) {
+                    return;
+                }
+                // Only datagrams queued before the socket was connected come from others.
+                if (!from.equals(mClient)) {
+                    continue;
+                }
+                int length = mReceiveBuffer.position();
+                if (acceptAgain(length)) {
+                    continue;
+                }
+                int offset = 0;
+                if (mCipher != null) {
+                    length = mCipher.open(mReceiveBuffer.array(), 0, length);
+                    if (length < 0) {
+                        continue;
+                    }
+                    offset = TunnelCipher.HEADER_LENGTH;
+                    mReceiveBuffer.limit(offset + length);
+                }
+                mLastReceived = System.currentTimeMillis();
+                if (!TunnelProtocol.isControl(mReceiveBuffer, offset, length)) {
+                    reflect(offset, offset + length);
+                }
+            }
+        }
+
+        /**
+         * Answers again if the datagram in the receive buffer is a handshake, as the client
+         * sends one again when it lost the answer, or reconnects from the same address.
+         *
+         * @return whether it was a handshake.
+         */
+        private boolean acceptAgain(int length) throws IOException {
+            byte[] clientRandom = null;
+            if (mEncrypting) {
+                try {
+                    clientRandom = TunnelCipher.readHandshake(mReceiveBuffer, 0, length, mSecret);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (clientRandom == null) {
+                    return false;
+                }
+            } else if (!TunnelProtocol.isHandshake(mReceiveBuffer, 0, length, mSecret)) {
+                return false;
+            }
+            accept(clientRandom);
+            return true;
+        }
+
+        /**
+         * Answers the client's handshake with the parameters, starting a new encrypted session
+         * unless {@code clientRandom} is that of the current one.
+         *
+         * @param clientRandom the random bytes of an encrypted handshake, or {@code null} in the
+         *         clear.
+         */
+        void accept(byte[] clientRandom) throws IOException {
+            if (clientRandom != null && !Arrays.equals(clientRandom, mClientRandom)) {
+                try {
+                    mServerRandom = TunnelCipher.newRandom();
+                    mCipher = TunnelCipher.forServer(mSecret, clientRandom, mServerRandom);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+                mClientRandom = clientRandom;
+                mAggregator = newAggregator(mCipher);
+                mFlushAt = Long.MAX_VALUE;
+            }
+            if (isDebugging && mLastReceived == 0) {
+                System.out.println("Client " + mClient + " connected");
+            }
+            mLastReceived = System.currentTimeMillis();
+            for (int i = 0; i < TunnelProtocol.CONTROL_COPIES; i++) {
+                mChannel.write(mCipher != null ? sealAnswer() : mParameters.put(mControl));
+            }
+            mLastSent = mLastReceived;
+        }
+
+        /** Returns the answer to an encrypted handshake: random bytes, then sealed parameters. */
+        private ByteBuffer sealAnswer() {
+            mParameters.put(mControl);
+            mAnswer.clear();
+            mAnswer.put(TunnelProtocol.CONTROL).put(mServerRandom);
+            mAnswer.position(TunnelCipher.ANSWER_HEADER_LENGTH + TunnelCipher.HEADER_LENGTH);
+            mAnswer.put(mControl);
+            final int sealed = mCipher.seal(
+                    mAnswer.array(), TunnelCipher.ANSWER_HEADER_LENGTH, mControl.limit());
+            mAnswer.limit(TunnelCipher.ANSWER_HEADER_LENGTH + sealed).position(0);
+            return mAnswer;
+        }
+
+        /** Sends the packets in the receive buffer up to {@code length} back, reflected. */
+        private void reflect(int offset, int length) throws IOException {
+            while (offset < length) {
+                final int packetLength =
+                        TunnelProtocol.packetLength(mReceiveBuffer, offset, length - offset);
+                if (packetLength < 0) {
+                    return;
+                }
+                mPacketsReceived++;
+                swapEndpoints(mReceiveBuffer, offset);
+                mReceiveBuffer.limit(offset + packetLength).position(offset);
+                if (mAggregator == null) {
+                    mChannel.write(mReceiveBuffer);
+                    mLastSent = System.currentTimeMillis();
+                } else {
+                    if (!mAggregator.add(mReceiveBuffer)) {
+                        flush();
+                        mAggregator.add(mReceiveBuffer);
+                    }
+                    if (!mAggregating || mAggregator.isFull()) {
+                        flush();
+                    } else if (mFlushAt == Long.MAX_VALUE) {
+                        mFlushAt = System.currentTimeMillis() + mAggregationDelayMs;
+                    }
+                }
+                mPacketsSent++;
+                mReceiveBuffer.limit(length);
+                offset += packetLength;
+            }
+        }
+
+        private void flush() throws IOException {
+            mFlushAt = Long.MAX_VALUE;
+            if (mAggregator.flush(mChannel) > 0) {
+                mLastSent = System.currentTimeMillis();
+            }
+        }
+
+        /** @return {@code false} once the client timed out. */
+        private boolean onTimers(long now) throws IOException {
+            if (mFlushAt <= now) {
+                flush();
+            }
+            if (now - mLastReceived >= IDLE_TIMEOUT_MS) {
+                if (isDebugging) {
+                    System.out.println("Client " + mClient + " timed out, after "
+                            + mPacketsReceived + " packets received and " + mPacketsSent
+                            + " sent");
+                }
+                return false;
+            }
+            if (now - mLastSent >= KEEPALIVE_INTERVAL_MS) {
+                for (int i = 0; i < TunnelProtocol.CONTROL_COPIES; i++) {
+                    mControl.clear();
+                    mControl.put(TunnelProtocol.CONTROL).flip();
+                    if (mCipher != null) {
+                        // In a datagram of its own, sealed.
+                        flush();
+                        mAggregator.add(mControl);
+                        mAggregator.flush(mChannel);
+                    } else {
+                        mChannel.write(mControl);
+                    }
+                }
+                mLastSent = now;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mSelector.close();
+                mChannel.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+        }
+    }
+
+    private DatagramAggregator newAggregator(TunnelCipher cipher) {
+        if (!mAggregating && cipher == null) {
+            return null;
+        }
+        return new DatagramAggregator(mAggregating ? mParameters.maxDatagram : 0,
+                MAX_DATAGRAM_SIZE - TunnelCipher.OVERHEAD, cipher);
+    }
+
+    /**
+     * Swaps the addresses of the IP packet at {@code buf[offset...]}, and its ports if it is
+     * TCP or UDP, so that it reads as the answer to itself. Checksums are sums, so still hold.
+     */
+    static void swapEndpoints(ByteBuffer buf, int offset) {
+        final int version = (buf.get(offset) & 0xFF) >>> 4;
+        final int source;
+        final int addressLength;
+        final int protocol;
+        final int transport;
+        if (version == 4) {
+            source = offset + IPV4_SOURCE;
+            addressLength = 4;
+            protocol = buf.get(offset + 9) & 0xFF;
+            final boolean fragment = (buf.getShort(offset + 6) & 0x3FFF) != 0;
+            transport = fragment ? -1 : offset + (buf.get(offset) & 0x0F) * 4;
+        } else {
+            source = offset + IPV6_SOURCE;
+            addressLength = 16;
+            protocol = buf.get(offset + 6) & 0xFF;
+            transport = offset + 40;
+        }
+        swap(buf, source, source + addressLength, addressLength);
+        if (transport >= 0 && (protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP)) {
+            swap(buf, transport, transport + 2, 2);
+        }
+    }
+
+    private static void swap(ByteBuffer buf, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            final byte t = buf.get(a + i);
+            buf.put(a + i, buf.get(b + i));
+            buf.put(b + i, t);
+        }
+    }
+
+    /** Stops taking handshakes and ends every session. */
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        for (Session session : mSessions.values()) {
+            session.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ToyVpnServer <port> <secret>"
+                    + " [-w <aggregation delay ms>] [-p] [parameter...]");
+            System.exit(2);
+        }
+        final int port = Integer.parseInt(args[0]);
+        final byte[] secret = args[1].getBytes(StandardCharsets.US_ASCII);
+        long aggregationDelayMs = 1;
+        boolean encrypt = true;
+        final StringBuilder parameters = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-w") && i + 1 < args.length) {
+                aggregationDelayMs = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-p")) {
+                encrypt = false;
+            } else {
+                parameters.append(args[i]).append(' ');
+            }
+        }
+        final ToyVpnServer server = new ToyVpnServer(port, secret,
+                TunnelProtocol.Parameters.parse(parameters.length() > 0
+                        ? parameters.toString() : DEFAULT_PARAMETERS),
+                aggregationDelayMs, encrypt);
+        server.isDebugging = true;
+        System.out.println("Listening on port " + server.port());
+        server.run();
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.toyvpnjava;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the packets per second, and megabits per second, carried through the tunnel to a
+ * {@link ToyVpnServer} and back on one machine, with each packet in a datagram of its own and
+ * with aggregation, in the clear and encrypted, for a few packet sizes.
+ * <p>
+ * The client end frames packets like {@link TunnelForwarder}, with the same
+ * {@link TunnelProtocol}, {@link DatagramAggregator} and {@link TunnelCipher}, but outside
+ * Android: a sender thread stands for the tun reader and the tunnel stage's sending side, and a
+ * receiver thread for its receiving side. At most {@link #WINDOW_BYTES} are in flight, as with
+ * a congestion window, so that socket buffers rarely overflow and what gets measured is what
+ * makes it back; packets that do get lost are written off after {@link #STALL_MS} without
+ * progress.
+ * <p>
+ * With {@code -n}, it rather measures how throughput scales with the number of tunnel sockets,
+ * as set by {@link ConnectionOptions#tunnelSockets}: each socket has a flow, a session on the
+ * server and sender and receiver threads of its own, as the flows hashed onto it would, and a
+ * share of the window. The curve flattens at the number of cores, which the client, the server
+ * and the loopback share.
+ * <p>
+ * Usage: {@code TunnelBenchmark [seconds per run] [packet size...] [-n <max sockets>]}; see
+ * {@link ToyVpnServer} for how to build it.
+ */
+public final class TunnelBenchmark {
+    private static final byte[] SECRET = "benchmark".getBytes(StandardCharsets.US_ASCII);
+    private static final int WINDOW_BYTES = 64 * 1024;
+    private static final long STALL_MS = 100;
+    private static final int IPV4_HEADER_LENGTH = 20;
+
+    private TunnelBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = 5;
+        int maxSockets = 0;
+        final List<Integer> sizeList = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                maxSockets = Integer.parseInt(args[++i]);
+            } else if (i == 0) {
+                seconds = Long.parseLong(args[i]);
+            } else {
+                sizeList.add(Integer.parseInt(args[i]));
+            }
+        }
+        final int[] sizes = sizeList.isEmpty() ? new int[] {64, 256, 1400}
+                : sizeList.stream().mapToInt(Integer::intValue).toArray();
+        // Lets the JIT compile the packet path before anything is measured.
+        run(sizes[0], true, true, 1, 1);
+        if (maxSockets > 0) {
+            printScaling(sizes, maxSockets, seconds);
+            return;
+        }
+        System.out.printf("%6s %11s %10s %12s %10s %14s%n",
+                "size", "aggregation", "encryption", "packets/s", "Mbit/s", "packets/dgram");
+        for (int size : sizes) {
+            for (boolean encrypt : new boolean[] {false, true}) {
+                for (boolean aggregate : new boolean[] {false, true}) {
+                    final Result result = run(size, aggregate, encrypt, 1, seconds);
+                    System.out.printf("%6d %11s %10s %12.0f %10.1f %14.1f%n", size,
+                            aggregate ? "on" : "off", encrypt ? "on" : "off",
+                            result.packetsPerSecond, result.packetsPerSecond * size * 8 / 1e6,
+                            result.packetsPerDatagram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints how throughput grows with the number of tunnel sockets, aggregated and encrypted
+     * as by default, doubling it from 1 up to {@code maxSockets}.
+     */
+    private static void printScaling(int[] sizes, int maxSockets, long seconds)
+            throws Exception {
+        System.out.printf("%d processors%n", Runtime.getRuntime().availableProcessors());
+        System.out.printf("%6s %8s %12s %10s %8s%n",
+                "size", "sockets", "packets/s", "Mbit/s", "speedup");
+        for (int size : sizes) {
+            double base = 0;
+            for (int sockets = 1; sockets <= maxSockets; sockets *= 2) {
+                final Result result = run(size, true, true, sockets, seconds);
+                if (sockets == 1) {
+                    base = result.packetsPerSecond;
+                }
+                System.out.printf("%6d %8d %12.0f %10.1f %8.2f%n", size, sockets,
+                        result.packetsPerSecond, result.packetsPerSecond * size * 8 / 1e6,
+                        base > 0 ? result.packetsPerSecond / base : 0);
+            }
+        }
+    }
+
+    private static final class Result {
+        double packetsPerSecond;
+        double packetsPerDatagram;
+    }
+
+    private static final class Session {
+        TunnelProtocol.Parameters parameters;
+        // Null in the clear.
+        TunnelCipher cipher;
+    }
+
+    /**
+     * Runs a server and a client with {@code sockets} tunnel sockets for {@code seconds},
+     * sending packets of {@code size}.
+     */
+    private static Result run(int size, boolean aggregate, boolean encrypt, int sockets,
+            long seconds) throws Exception {
+        final TunnelProtocol.Parameters parameters = TunnelProtocol.Parameters.parse(
+                aggregate ? ToyVpnServer.DEFAULT_PARAMETERS : "m,1400 a,10.0.0.2,32");
+        final ToyVpnServer server =
+                new ToyVpnServer(0, SECRET, parameters, aggregate ? 1 : 0, encrypt);
+        final Thread serverThread = new Thread(server, "ToyVpnServer");
+        serverThread.start();
+        final Lane[] lanes = new Lane[sockets];
+        final Thread[] senders = new Thread[sockets];
+        try {
+            final InetSocketAddress address =
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+            for (int i = 0; i < sockets; i++) {
+                lanes[i] = new Lane(address, encrypt, size, i);
+            }
+            final long start = System.nanoTime();
+            final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < sockets; i++) {
+                final Lane lane = lanes[i];
+                // The window is shared, so that more sockets do not just mean more in flight.
+                senders[i] = new Thread(() -> lane.send(end, WINDOW_BYTES / sockets),
+                        "Sender-" + i);
+                senders[i].start();
+            }
+            long received = 0;
+            long sent = 0;
+            long datagrams = 0;
+            for (int i = 0; i < sockets; i++) {
+                senders[i].join();
+                received += lanes[i].mReceived.get();
+                sent += lanes[i].mSent;
+                datagrams += lanes[i].mDatagrams;
+            }
+            final long elapsed = System.nanoTime() - start;
+            final Result result = new Result();
+            result.packetsPerSecond = received * 1e9 / elapsed;
+            result.packetsPerDatagram = datagrams > 0 ? (double) sent / datagrams : 0;
+            return result;
+        } finally {
+            for (Lane lane : lanes) {
+                if (lane != null) {
+                    lane.close();
+                }
+            }
+            serverThread.interrupt();
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    /**
+     * One tunnel socket, with its session, its sender and receiver threads, and a flow of its
+     * own, as the flows a client hashes onto that socket.
+     */
+    private static final class Lane {
+        private final DatagramChannel mTunnel;
+        private final Session mSession;
+        private final ByteBuffer mPacket;
+        private final AtomicLong mReceived = new AtomicLong();
+        private final Thread mReceiver;
+        // Written by the sender, read once it is done.
+        private long mSent;
+        private long mDatagrams;
+
+        Lane(InetSocketAddress server, boolean encrypt, int size, int index)
+                throws IOException, GeneralSecurityException {
+            mTunnel = DatagramChannel.open();
+            mTunnel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            mTunnel.connect(server);
+            mSession = handshake(mTunnel, encrypt);
+            mPacket = udpPacket(size, index);
+            // The cipher opens on the receiver thread, and seals on the sender.
+            mReceiver = new Thread(() -> receive(mTunnel, mSession.cipher, mReceived),
+                    "Receiver-" + index);
+            mReceiver.start();
+        }
+
+        /** Sends packets until {@code end}, in nanoseconds, with {@code windowBytes} in flight. */
+        void send(long end, int windowBytes) {
+            final int maxDatagram = mSession.parameters.maxDatagram;
+            final int size = mPacket.capacity();
+            final DatagramAggregator aggregator = maxDatagram > 0 || mSession.cipher != null
+                    ? new DatagramAggregator(maxDatagram, size, mSession.cipher) : null;
+            final int window = Math.max(1, windowBytes / size);
+            long sent = 0;
+            long lost = 0;
+            long datagrams = 0;
+            long lastReceived = 0;
+            long progressAt = System.nanoTime();
+            long flushAt = Long.MAX_VALUE;
+            long now = progressAt;
+            try {
+                while (now < end) {
+                    now = System.nanoTime();
+                    if (aggregator != null && flushAt <= now) {
+                        datagrams += aggregator.flush(mTunnel) > 0 ? 1 : 0;
+                        flushAt = Long.MAX_VALUE;
+                    }
+                    final long receivedNow = mReceived.get();
+                    if (receivedNow != lastReceived) {
+                        lastReceived = receivedNow;
+                        progressAt = now;
+                    }
+                    if (sent - lost - receivedNow >= window) {
+                        if (now - progressAt > TimeUnit.MILLISECONDS.toNanos(STALL_MS)) {
+                            lost = sent - receivedNow;
+                            progressAt = now;
+                        }
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    mPacket.position(0);
+                    if (aggregator == null) {
+                        mTunnel.write(mPacket);
+                        datagrams++;
+                    } else {
+                        if (!aggregator.add(mPacket)) {
+                            datagrams += aggregator.flush(mTunnel) > 0 ? 1 : 0;
+                            flushAt = Long.MAX_VALUE;
+                            aggregator.add(mPacket);
+                        }
+                        if (maxDatagram == 0 || aggregator.isFull()) {
+                            datagrams += aggregator.flush(mTunnel) > 0 ? 1 : 0;
+                            flushAt = Long.MAX_VALUE;
+                        } else if (flushAt == Long.MAX_VALUE) {
+                            flushAt = now + TimeUnit.MILLISECONDS.toNanos(1);
+                        }
+                    }
+                    sent++;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            mSent = sent;
+            mDatagrams = datagrams;
+        }
+
+        void close() throws IOException, InterruptedException {
+            mTunnel.close();
+            mReceiver.join();
+        }
+    }
+
+    /** Does the handshake as {@link ToyVpnConnection} does, over a lossless loopback. */
+    private static Session handshake(DatagramChannel tunnel, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        final Session session = new Session();
+        final ByteBuffer buf = ByteBuffer.allocate(TunnelProtocol.PARAMETERS_LENGTH
+                + TunnelCipher.ANSWER_HEADER_LENGTH + TunnelCipher.OVERHEAD);
+        if (!encrypt) {
+            tunnel.write(TunnelProtocol.putHandshake(buf, SECRET));
+            buf.clear();
+            final int length = tunnel.read(buf);
+            session.parameters = TunnelProtocol.Parameters.parse(buf, 0, length);
+            return session;
+        }
+        final byte[] clientRandom = TunnelCipher.newRandom();
+        tunnel.write(TunnelCipher.putHandshake(buf, SECRET, clientRandom));
+        buf.clear();
+        final int length = tunnel.read(buf);
+        final byte[] serverRandom = new byte[TunnelCipher.RANDOM_LENGTH];
+        buf.position(1);
+        buf.get(serverRandom);
+        session.cipher = TunnelCipher.forClient(SECRET, clientRandom, serverRandom);
+        final int plaintext = session.cipher.open(buf.array(),
+                TunnelCipher.ANSWER_HEADER_LENGTH, length - TunnelCipher.ANSWER_HEADER_LENGTH);
+        if (plaintext < 0) {
+            throw new IOException("Cannot open the parameters");
+        }
+        session.parameters = TunnelProtocol.Parameters.parse(buf,
+                TunnelCipher.ANSWER_HEADER_LENGTH + TunnelCipher.HEADER_LENGTH, plaintext);
+        return session;
+    }
+
+    /** Counts the packets coming back until the tunnel is closed. */
+    private static void receive(DatagramChannel tunnel, TunnelCipher cipher,
+            AtomicLong received) {
+        // On the heap when encrypted, like the tunnel stage's.
+        final ByteBuffer buf = cipher != null
+                ? ByteBuffer.allocate(0xFFFF) : ByteBuffer.allocateDirect(0xFFFF);
+        try {
+            while (true) {
+                buf.clear();
+                int length = tunnel.read(buf);
+                int start = 0;
+                if (cipher != null) {
+                    start = TunnelCipher.HEADER_LENGTH;
+                    length = cipher.open(buf.array(), 0, length);
+                    if (length < 0) {
+                        continue;
+                    }
+                    buf.limit(start + length);
+                }
+                if (TunnelProtocol.isControl(buf, start, length)) {
+                    continue;
+                }
+                int packets = 0;
+                final int end = start + length;
+                for (int offset = start; offset < end; ) {
+                    final int packetLength =
+                            TunnelProtocol.packetLength(buf, offset, end - offset);
+                    if (packetLength < 0) {
+                        break;
+                    }
+                    offset += packetLength;
+                    packets++;
+                }
+                received.addAndGet(packets);
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run.
+        }
+    }
+
+    /**
+     * Builds a UDP over IPv4 packet of {@code size} bytes, checksums left out, of the flow
+     * numbered {@code flow}.
+     */
+    private static ByteBuffer udpPacket(int size, int flow) {
+        final ByteBuffer packet = ByteBuffer.allocateDirect(size);
+        packet.put(0, (byte) 0x45);
+        packet.putShort(2, (short) size);
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) 17);
+        packet.putInt(12, 0x0A000002);
+        packet.putInt(16, 0xC0000201);
+        packet.putShort(IPV4_HEADER_LENGTH, (short) (40000 + flow));
+        packet.putShort(IPV4_HEADER_LENGTH + 2, (short) 9);
+        packet.putShort(IPV4_HEADER_LENGTH + 4, (short) (size - IPV4_HEADER_LENGTH));
+        return packet;
+    }
+}